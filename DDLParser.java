@@ -10,11 +10,13 @@ import java.util.ArrayList;
 import java.util.List;
 
 import catalog.Catalog;
+import catalog.SecondaryIndex;
 import page.RecordCodec;
 import page.RecordEntryType;
 import storage.StorageManager;
 import table.Table;
 import table.TableSchema;
+import tree.BPTree;
 
 public class DDLParser {
 
@@ -42,6 +44,17 @@ public class DDLParser {
         return;
     }
 
+    // the primary key index is a B+ tree unless the table asks for a hash index,
+    // and the rows are kept in primary key order unless the table asks to be a heap
+    List<String> optionWords = new ArrayList<>(List.of(input.substring(closeParen + 1).trim().split("\\s+")));
+    boolean heap = optionWords.remove("heap");
+    String options = String.join(" ", optionWords).trim();
+    boolean hashIndex = options.equals("using hash");
+    if (!options.isEmpty() && !hashIndex && !options.equals("using btree")) {
+        System.err.println("Syntax Error: expected HEAP, USING HASH or USING BTREE after the column definitions");
+        return;
+    }
+
     String[] columns = input.substring(openParen + 1, closeParen).split("\\s*,\\s*");
     if (columns.length > TableSchema.MAX_COLUMNS) return; // 32
 
@@ -131,11 +144,111 @@ public class DDLParser {
     }
 
     TableSchema schema = new TableSchema(names, types, sizes, defaultValues, unique, nullable, primaryKeyIndex, true);
-    catalog.createTable(tableName, new RecordCodec(schema));
+    if (catalog.indexMode && !hashIndex && !BPTree.fitsPage(catalog.getPageSize(), schema, primaryKeyIndex)) {
+        System.err.println("Error: primary key '" + names.get(primaryKeyIndex) + "' is too large for the page size, "
+                + "two keys must fit in an index page");
+        return;
+    }
+    int tableId = catalog.createTable(tableName, new RecordCodec(schema));
+    if (hashIndex) {
+        catalog.setHashIndexed(tableId);
+    }
+    if (heap) {
+        catalog.setHeap(tableId);
+    }
     System.out.println("Table created.");
 }
 
 
+    /*
+    Handle "CREATE INDEX indexName ON tableName(columnName);"
+    */
+    public void parseCreateIndex(String input) {
+        input = input.trim().toLowerCase();
+        if (input.endsWith(";")) {
+            input = input.substring(0, input.length() - 1).trim();
+        }
+        if (!catalog.indexMode) {
+            System.err.println("Error: CREATE INDEX requires indexing to be enabled");
+            return;
+        }
+
+        int onIndex = input.indexOf(" on ");
+        int openParen = input.indexOf('(');
+        int closeParen = input.lastIndexOf(')');
+        if (onIndex < 0 || openParen < onIndex || closeParen < openParen) {
+            System.err.println("Syntax Error: expected CREATE INDEX <name> ON <table>(<column>)");
+            return;
+        }
+
+        String indexName = input.substring("create index".length(), onIndex).trim();
+        String tableName = input.substring(onIndex + " on ".length(), openParen).trim();
+        String columnName = input.substring(openParen + 1, closeParen).trim();
+        if (indexName.isEmpty() || indexName.contains(" ")) {
+            System.err.println("Error: invalid index name: " + indexName);
+            return;
+        }
+        if (catalog.getSecondaryIndex(indexName) != null) {
+            System.err.println("Error: Index already exists: " + indexName);
+            return;
+        }
+
+        Integer tableId = catalog.getTable(tableName);
+        if (tableId == null) {
+            System.err.println("Error: Table '" + tableName + "' does not exist");
+            return;
+        }
+        TableSchema schema = catalog.getCodec(tableId).schema;
+        int columnIndex = schema.getColumnIndex(columnName);
+        if (columnIndex < 0) {
+            System.err.println("Error: No such column: " + columnName);
+            return;
+        }
+        if (columnIndex == schema.primaryKeyIndex) {
+            System.err.println("Error: Column '" + columnName + "' is already indexed as the primary key");
+            return;
+        }
+
+        if (!BPTree.fitsPage(catalog.getPageSize(), schema, columnIndex)) {
+            System.err.println("Error: Column '" + columnName + "' and the primary key are too large for the page size, "
+                    + "two keys must fit in an index page");
+            return;
+        }
+
+        SecondaryIndex index = catalog.createSecondaryIndex(indexName, tableId, columnName);
+        if (new Table(storageManager, tableId).buildSecondaryIndex(index)) {
+            System.out.println("Index created.");
+        } else {
+            catalog.removeSecondaryIndex(indexName);
+            System.err.println("Error: Unable to build index: " + indexName);
+        }
+    }
+
+    /*
+    Handle "DROP INDEX indexName;"
+    */
+    public void parseDropIndex(String input) {
+        input = input.trim().toLowerCase();
+        if (input.endsWith(";")) {
+            input = input.substring(0, input.length() - 1).trim();
+        }
+
+        String[] tokens = input.split("\\s+");
+        if (tokens.length != 3) {
+            System.err.println("Syntax Error: expected DROP INDEX <name>");
+            return;
+        }
+
+        SecondaryIndex index = catalog.getSecondaryIndex(tokens[2]);
+        if (index == null) {
+            System.err.println("Error: Index '" + tokens[2] + "' does not exist");
+            return;
+        }
+        storageManager.deleteIndex(index.indexId);
+        catalog.removeSecondaryIndex(index.name);
+        System.out.println("Index '" + index.name + "' dropped successfully.");
+    }
+
     /*
     Handle "DROP TABLE tableName;"
     */
@@ -171,6 +284,36 @@ public class DDLParser {
         }
     }
 
+    /*
+    Handle "TRUNCATE TABLE tableName;"
+    */
+    public void parseTruncateTable(String input) {
+        input = input.trim();
+        if (input.endsWith(";")) {
+            input = input.substring(0, input.length() - 1).trim();
+        }
+
+        String[] tokens = input.split("\\s+");
+        if (tokens.length != 3 || !tokens[1].equalsIgnoreCase("table")) {
+            System.err.println("Syntax Error: expected TRUNCATE TABLE <name>");
+            return;
+        }
+
+        String tableName = tokens[2];
+        Integer tableID = catalog.getTable(tableName);
+        if (tableID == null) {
+            System.err.println("Error: Table '" + tableName + "' does not exist");
+            return;
+        }
+
+        Table table = new Table(storageManager, tableID);
+        if (table.truncate()) {
+            System.out.println("Table '" + tableName + "' truncated successfully.");
+        } else {
+            System.err.println("Error: Unable to truncate table: '" + tableName + "'");
+        }
+    }
+
     public void parseAlterTable(String lower) {
         int index = lower.indexOf("alter table");
         if (index < 0) {
@@ -13,16 +13,25 @@ import clauses.FromClause;
 import clauses.OrderbyClause;
 import clauses.SelectClause;
 import clauses.WhereClause;
+import clauses.WhereEvaluator;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import operator.Limit;
+import operator.RowIterator;
 import page.RecordEntry;
 import page.RecordEntryType;
 import storage.StorageManager;
+import table.CsvReader;
 import table.Table;
 import table.TableSchema;
+import tree.KeyRange;
 
 
 public class DMLParser {
@@ -60,10 +69,14 @@ public class DMLParser {
             return;
         }
 
+        // every row is parsed first so the rows can be inserted as one batch
+        Table table = new Table(storageManager, tableId);
+        List<RecordEntry> records = new ArrayList<>();
         String[] valueEntryParts = parts[1].trim().split(",");
         for (String valuesPart : valueEntryParts) {
             valuesPart = valuesPart.trim();
             if (!valuesPart.startsWith("(") || !valuesPart.endsWith(")")) {
+                insertRecords(table, records);
                 return;
             }
 
@@ -88,6 +101,7 @@ public class DMLParser {
                     recordValues.add(value.replace("\"", ""));
                 } else {
                     System.err.println("Error: Could not parse value: " + value);
+                    insertRecords(table, records);
                     return;
                 }
             }
@@ -95,11 +109,13 @@ public class DMLParser {
             TableSchema schema = catalog.getCodec(tableId).schema;
             if (recordValues.size() != schema.types.size()) {
                 System.err.println("Error: incorrect number of values, got: " + recordValues.size() + ", need: " + schema.types.size());
+                insertRecords(table, records);
                 return;
             }
             for (int i = 0; i < schema.types.size(); i++) {
                 if (!schema.types.get(i).matchesType(recordValues.get(i))) {
                     System.err.println("Error: value '" + recordValues.get(i) + "' has wrong type: " + recordValues.get(i).getClass().getSimpleName() + ". Need: " + schema.types.get(i).displayStringSimple());
+                    insertRecords(table, records);
                     return;
                 }
             }
@@ -108,21 +124,75 @@ public class DMLParser {
                     if (recordValues.get(i) instanceof String s && s.length() >= schema.sizes.get(i) / Character.BYTES) {
                         // need to div by char bytes to compare string lengths instead of just using the raw byte amounts
                         System.err.println("Error: Value '" + recordValues.get(i) + "' is too large");
+                        insertRecords(table, records);
                         return;
                     }
                 }
             }
 
-            RecordEntry record = new RecordEntry(recordValues);
-            Table table = new Table(storageManager, tableId);
-            boolean result = table.insert(record, true);
-            if (!result) {
-                System.err.println("Insert failed for values: " + recordValues);
-                return;
-            }
+            records.add(new RecordEntry(recordValues));
+        }
+        if (insertRecords(table, records)) {
+            System.out.println("Success.");
+        }
+    }
+
+    /**
+     * Insert parsed rows, which are either every row of an insert or the rows before one which failed to parse
+     *
+     * @param table the table to insert into
+     * @param records the rows, in the order they were given
+     * @return if every row was inserted
+     */
+    private boolean insertRecords(Table table, List<RecordEntry> records) {
+        int inserted = table.insertBatch(records, true);
+        if (inserted < records.size()) {
+            System.err.println("Insert failed for values: " + records.get(inserted).data);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses and executes a "LOAD table FROM 'file'" statement, which streams the rows of a CSV file into a table
+     * in bulk and reports how fast they were loaded.
+     * @param input The raw SQL command.
+     */
+    public void parseLoad(String input) {
+        // the file name keeps its case, so only the keywords are matched without it
+        Matcher matcher = Pattern.compile("(?i)load\\s+(\\S+)\\s+from\\s+(['\"])(.+)\\2").matcher(input.trim());
+        if (!matcher.matches()) {
+            System.err.println("Error: malformed command input: " + input);
+            return;
+        }
+
+        String tableName = matcher.group(1).toLowerCase();
+        Integer tableId = catalog.getTable(tableName);
+        if (tableId == null) {
+            System.err.println("Error: No table exists with name " + tableName);
+            return;
+        }
+        Path path = Path.of(matcher.group(3));
+        if (!Files.isRegularFile(path)) {
+            System.err.println("Error: No file exists at " + path);
+            return;
+        }
 
+        Table table = new Table(storageManager, tableId);
+        long start = System.nanoTime();
+        long loaded;
+        try (CsvReader reader = new CsvReader(Files.newInputStream(path), table.getSchema())) {
+            loaded = table.load(reader);
+        } catch (IllegalArgumentException | IOException | UncheckedIOException e) {
+            System.err.println("Error: Could not load " + path + ": " + e.getMessage());
+            return;
         }
-        System.out.println("Success.");
+        if (loaded < 0) {
+            System.err.println("Load failed.");
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Loaded %d rows in %.3f s (%.0f rows/sec).%n", loaded, seconds, loaded / Math.max(seconds, 1e-9));
     }
 
     //parses Display Schema and display info
@@ -164,7 +234,8 @@ public class DMLParser {
     }
 
     /**
-     * Parses and executes a "SELECT ... FROM ... WHERE ... ORDERBY ..." statement.
+     * Parses and executes a "SELECT ... FROM ... WHERE ... ORDERBY ... LIMIT ..." statement. The rows are read from
+     * the tables as they are printed, without copying them into temporary tables.
      * @param input The raw SQL command.
      */
     public void parseSelect(String input) {
@@ -172,7 +243,18 @@ public class DMLParser {
         if (!input.toLowerCase().startsWith("select")) return;
         if (!input.toLowerCase().contains("from")) return;
 
-        String[] orderBySplit = input.split("(?i)orderby", 2);
+        String[] limitSplit = input.split("(?i)\\blimit\\b", 2);
+        int limit = -1;
+        if (limitSplit.length > 1) {
+            String limitRaw = limitSplit[1].trim();
+            if (!limitRaw.matches("\\d+")) {
+                System.err.println("Error: LIMIT must be a non-negative integer: " + limitRaw);
+                return;
+            }
+            limit = Integer.parseInt(limitRaw);
+        }
+
+        String[] orderBySplit = limitSplit[0].split("(?i)orderby", 2);
         String orderByRaw = null;
         if (orderBySplit.length > 1) {
             orderByRaw = orderBySplit[1];
@@ -213,62 +295,60 @@ public class DMLParser {
             return;
         }
 
-        // Create a temporary supertable containing all tables specified
-        Table superTable = FromClause.parseFrom(tableNames, storageManager, catalog);
-        if (superTable == null) {
-            return;
-        }
-
-        // filter selected columns
-        Table selectedTable = SelectClause.parseSelect(superTable, selectRaw);
-        if (selectedTable == null) {
-            tryDeleteTempTables(superTable);
+        List<Table> tables = FromClause.parseFrom(tableNames, storageManager, catalog);
+        if (tables == null) {
             return;
         }
 
-        // Evaluate table based on conditional expression
-        Table filteredTable;
+        // the where clause is tested before the columns are selected, so the indexes of a single table can be used,
+        // and equal columns of several tables can join them
+        WhereEvaluator eval = null;
         if (whereRaw != null) {
-            var eval = WhereClause.parseWhere(whereRaw, Collections.singletonList(selectedTable));
+            eval = WhereClause.parseWhere(whereRaw, tables);
             if (eval == null) {
-                tryDeleteTempTables(superTable);
-                tryDeleteTempTables(selectedTable);
-                return;
-            }
-            TableSchema schema = selectedTable.getSchema();
-            filteredTable = selectedTable.toFiltered(r -> eval.evaluate(r, schema));
-            if (filteredTable == null) {
-                tryDeleteTempTables(superTable);
-                tryDeleteTempTables(selectedTable);
                 return;
             }
-        } else {
-            filteredTable = selectedTable;
         }
 
-        // Sort table based on orderby
-        Table orderedTable;
-        if (orderByRaw != null) {
-            orderedTable = OrderbyClause.parseOrderby(filteredTable, orderByRaw.trim(), storageManager, catalog);
-            if (orderedTable == null) {
-                tryDeleteTempTables(superTable);
-                tryDeleteTempTables(selectedTable);
-                tryDeleteTempTables(filteredTable);
+        RowIterator rows = FromClause.scan(tables, eval, storageManager);
+        try {
+            RowIterator selected = SelectClause.parseSelect(rows, selectRaw);
+            if (selected == null) {
+                rows.close();
                 return;
             }
-        } else {
-            orderedTable = filteredTable;
-        }
+            rows = selected;
 
-        // Print selected records
-        System.out.println(orderedTable.getSchema().names);
-        orderedTable.findMatching(r -> true, System.out::println);
+            if (orderByRaw != null) {
+                RowIterator ordered = OrderbyClause.parseOrderby(rows, orderByRaw.trim(), storageManager);
+                if (ordered == null) {
+                    rows.close();
+                    return;
+                }
+                rows = ordered;
+            }
+            if (limit >= 0) {
+                rows = new Limit(rows, limit);
+            }
 
-        // Cleanup temporary tables
-        tryDeleteTempTables(superTable);
-        tryDeleteTempTables(selectedTable);
-        tryDeleteTempTables(filteredTable);
-        tryDeleteTempTables(orderedTable);
+            // the first row is read before anything is printed, so an error evaluating the where clause prints
+            // only the error
+            try (RowIterator printed = rows) {
+                boolean any = printed.hasNext();
+                // the columns of several tables are named by their table, which the header leaves out
+                List<String> names = new ArrayList<>();
+                for (String name : printed.getSchema().names) {
+                    names.add(name.substring(name.indexOf('.') + 1));
+                }
+                System.out.println(names);
+                if (any) {
+                    printed.forEachRemaining(System.out::println);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            rows.close();
+            System.err.println("Error: " + e.getMessage());
+        }
     }
 
     public void parseDelete(String input) {
@@ -292,6 +372,7 @@ public class DMLParser {
         TableSchema schema = table.getSchema();
 
         Predicate<RecordEntry> condition;
+        Map<Integer, KeyRange> ranges;
         if (!whereCondition.isEmpty()) {
             var eval = WhereClause.parseWhere(whereCondition, Collections.singletonList(table));
             if (eval == null) {
@@ -303,11 +384,13 @@ public class DMLParser {
                 System.err.println("Error: " + e.getMessage());
                 return;
             }
+            ranges = eval.keyRanges(schema);
         } else {
             condition = r -> true;
+            ranges = Map.of();
         }
 
-        boolean success = table.deleteMatching(condition);
+        boolean success = table.deleteMatching(ranges, condition);
         if (success) {
             System.out.println("Delete operation completed successfully.");
         } else {
@@ -315,18 +398,6 @@ public class DMLParser {
         }
     }
 
-    private static void tryDeleteTempTables(Table table) {
-        if (table.getName().startsWith("Merged[")) {
-            table.drop();
-        } else if (table.getName().startsWith("Selected[")) {
-            table.drop();
-        } else if (table.getName().startsWith("Filtered[")) {
-            table.drop();
-        } else if (table.getName().startsWith("Ordered[")) {
-            table.drop();
-        }
-    }
-
     public void parseUpdate(String query){
         query = query.trim();
         if(!query.toLowerCase().startsWith("update")){
@@ -414,7 +485,7 @@ public class DMLParser {
 
         boolean success;
         try {
-            success = table.updateMatching(r -> eval.evaluate(r, table.getSchema()),
+            success = table.updateMatching(eval.keyRanges(table.getSchema()), r -> eval.evaluate(r, table.getSchema()),
                 r -> r.data.set(index, newValue));
         } catch (IllegalArgumentException e) {
             System.err.println("Error: " + e.getMessage());
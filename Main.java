@@ -10,16 +10,18 @@
 
 
 import catalog.Catalog;
+import catalog.SecondaryIndex;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Scanner;
 
 import storage.PageBuffer;
 import storage.StorageManager;
-import tree.BPTree;
+import table.Table;
 
 public class Main {
 
@@ -75,6 +77,12 @@ public class Main {
             buf.rewind();
             catalog = Catalog.decode(buf);
             pageSize = catalog.getPageSize();
+            if (catalog.getFormatVersion() > Catalog.FORMAT_VERSION) {
+                System.err.println("Error: Database was written in format version " + catalog.getFormatVersion()
+                        + ", but only versions up to " + Catalog.FORMAT_VERSION + " can be read");
+                System.exit(1);
+                return;
+            }
         } else {
             catalog = new Catalog(pageSize);
         }
@@ -91,9 +99,52 @@ public class Main {
         PageBuffer pageBuffer = new PageBuffer(dbPath, pageSize, pageBufferSize);
         StorageManager storageManager = new StorageManager(catalog, pageBuffer);
 
+        if (catalog.getFormatVersion() < Catalog.FORMAT_VERSION) {
+            // convert pages written in an older layout, which discards the indexes so they are built again below
+            for (int tableId : new ArrayList<>(catalog.getTables().keySet())) {
+                boolean upgraded;
+                try {
+                    upgraded = new Table(storageManager, tableId).upgradeFormat();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    upgraded = false;
+                }
+                if (!upgraded) {
+                    System.err.println("Error: Unable to upgrade table: " + catalog.getTableName(tableId));
+                    System.exit(1);
+                    return;
+                }
+            }
+            catalog.setFormatVersion(Catalog.FORMAT_VERSION);
+        }
+
         if (catalog.indexMode) {
-            BPTree.catalog = catalog;
-            BPTree.storageManager = storageManager;
+            // bulk load indexes for tables created while indexing was off
+            for (int tableId : new ArrayList<>(catalog.getTables().keySet())) {
+                if (!catalog.hasIndex(tableId)) {
+                    new Table(storageManager, tableId).buildIndex();
+                }
+            }
+            for (SecondaryIndex index : catalog.getSecondaryIndexes()) {
+                if (!catalog.hasIndex(index.indexId)) {
+                    new Table(storageManager, index.getTableId()).buildSecondaryIndex(index);
+                }
+            }
+        } else {
+            // indexes are not maintained while indexing is off, so discard them instead of letting them go stale
+            for (int tableId : catalog.getTables().keySet()) {
+                if (catalog.hasIndex(tableId)) {
+                    storageManager.deleteIndex(tableId);
+                    catalog.removeIndex(tableId);
+                }
+            }
+            // secondary indexes keep their definitions, and are rebuilt the next time indexing is on
+            for (SecondaryIndex index : catalog.getSecondaryIndexes()) {
+                if (catalog.hasIndex(index.indexId)) {
+                    storageManager.deleteIndex(index.indexId);
+                    catalog.removeIndex(index.indexId);
+                }
+            }
         }
 
         DDLParser ddl = new DDLParser(catalog, storageManager);
@@ -118,13 +169,22 @@ public class Main {
                     query = query.substring(0, query.lastIndexOf(";")).trim();
 
                     //send to DDL Parser
-                    if(query.toLowerCase().startsWith("create")){
+                    if(query.toLowerCase().startsWith("create index")){
+                        ddl.parseCreateIndex(query);
+                        query = "";
+                    } else if(query.toLowerCase().startsWith("create")){
                             
                         ddl.parseCreateTable(query);
                         query = "";
+                    } else if(query.toLowerCase().startsWith("drop index")){
+                        ddl.parseDropIndex(query);
+                        query = "";
                     } else if(query.toLowerCase().startsWith("drop")){
                         ddl.parseDropTable(query);
                         query = "";
+                    } else if(query.toLowerCase().startsWith("truncate")){
+                        ddl.parseTruncateTable(query);
+                        query = "";
                     } else if(query.toLowerCase().startsWith("alter")){
                         ddl.parseAlterTable(query.toLowerCase());
                         query = "";
@@ -135,6 +195,9 @@ public class Main {
                         dml.parseInsert(query);
                         query = "";
 
+                    } else if(query.toLowerCase().startsWith("load")){
+                        dml.parseLoad(query);
+                        query = "";
                     } else if(query.toLowerCase().startsWith("display") ){
                         dml.parseDisplay(query);
                         query = "";
@@ -150,7 +213,7 @@ public class Main {
                         query = "";
                     }else {
                         query = "";
-                        System.out.println("Unknown command. Query must start with (CREATE, DROP, ALTER, INSERT, DISPLAY, or SELECT)");
+                        System.out.println("Unknown command. Query must start with (CREATE, DROP, TRUNCATE, ALTER, INSERT, LOAD, DISPLAY, SELECT, DELETE, or UPDATE)");
                     }
                 }
             }
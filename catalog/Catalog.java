@@ -2,11 +2,16 @@ package catalog;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import page.RecordCodec;
+import page.RecordEntryType;
 import table.TableSchema;
 import tree.BPTree;
 
@@ -14,16 +19,46 @@ import tree.BPTree;
 
 public class Catalog {
 
+    /**
+     * Version of the layout of the table and index pages, which is raised when either changes so files written in
+     * an earlier layout are converted before they are read. Catalogs written before it existed are version 0, when
+     * table entries had no slot numbers.
+     */
+    public static final int FORMAT_VERSION = 1;
+
     public boolean indexMode;
 
     private final Map<Integer, String> tables = new HashMap<>();
     private final Map<String, Integer> tableNames = new HashMap<>();
     private final Map<Integer, RecordCodec> codecs = new HashMap<>();
     private final Map<Integer, List<Integer>> pages = new HashMap<>();
+    /**
+     * The fence of each page of a table, in the same order as its pages. A fence is null until it is first known,
+     * which is when its page is written or read for a fence.
+     */
+    private final Map<Integer, List<PageFence>> fences = new HashMap<>();
     private final Map<Integer, Integer> indexByTableId = new HashMap<>();
+    private final Map<String, SecondaryIndex> secondaryIndexes = new HashMap<>();
+    /**
+     * Tables whose primary key index is a hash index instead of a B+ tree
+     */
+    private final Set<Integer> hashIndexed = new HashSet<>();
+    /**
+     * Tables whose pages keep their entries in insertion order instead of primary key order
+     */
+    private final Set<Integer> heaps = new HashSet<>();
+    /**
+     * The free bytes of each page of a heap table which has room worth reusing, by page number
+     */
+    private final Map<Integer, Map<Integer, Integer>> freeSpace = new HashMap<>();
+    /**
+     * The id of the hash set of values in each unique column of a table, by column name, for the sets built so far
+     */
+    private final Map<Integer, Map<String, Integer>> uniqueIndexes = new HashMap<>();
     private final int pageSize;
     private int tableCounter = 0;
     private int pageCounter = 0;
+    private int formatVersion = FORMAT_VERSION;
 
     public Catalog(int pageSize) {
         this.pageSize = pageSize;
@@ -45,11 +80,32 @@ public class Catalog {
         return tableCounter;
     }
 
+    /**
+     * @return the version of the layout the table and index pages were written in
+     */
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
     public int getPageCounter() {
         return pageCounter;
     }
 
     public int createTable(String name, RecordCodec codec) {
+        return createTable(name, codec, indexMode);
+    }
+
+    /**
+     * @param name the name of the table
+     * @param codec the codec for the table
+     * @param indexed if the table should have a primary key index, ignored when not in index mode
+     * @return the id of the new table
+     */
+    public int createTable(String name, RecordCodec codec, boolean indexed) {
         if (tableNames.containsKey(name)) {
             throw new IllegalArgumentException("Table already exists: " + name);
         }
@@ -57,7 +113,7 @@ public class Catalog {
         tables.put(id, name);
         tableNames.put(name, id);
         codecs.put(id, codec);
-        if (indexMode) {
+        if (indexMode && indexed) {
             indexByTableId.put(id, pageCounter++);
         }
         return id;
@@ -67,29 +123,248 @@ public class Catalog {
         return pages.get(tableId);
     }
 
-    public int requestNewPageNum(int tableId, int sortingIndex) {
+    public synchronized int requestNewPageNum(int tableId, int sortingIndex) {
         int num = pageCounter++;
         var list = pages.computeIfAbsent(tableId, (k) -> new ArrayList<>());
+        var fenceList = fences.computeIfAbsent(tableId, (k) -> new ArrayList<>());
         if (sortingIndex == -1) {
             list.add(num);
+            fenceList.add(null);
         } else {
             list.add(sortingIndex, num);
+            fenceList.add(sortingIndex, null);
         }
         return num;
     }
 
-    public int requestNewIndexPageNum() {
+    /**
+     * Remove a page from a table's page list
+     *
+     * @param tableId the table the page belongs to
+     * @param pageNum the page to remove
+     */
+    public void removePage(int tableId, int pageNum) {
+        var list = pages.get(tableId);
+        if (list == null) {
+            return;
+        }
+        int sortingIndex = list.indexOf(pageNum);
+        if (sortingIndex < 0) {
+            return;
+        }
+        list.remove(sortingIndex);
+        fences.get(tableId).remove(sortingIndex);
+        if (freeSpace.containsKey(tableId)) {
+            freeSpace.get(tableId).remove(pageNum);
+        }
+        if (list.isEmpty()) {
+            // tables with no pages have no list, so the next insert allocates a fresh first page
+            pages.remove(tableId);
+            fences.remove(tableId);
+        }
+    }
+
+    /**
+     * Remove every page from a table's page list
+     *
+     * @param tableId the table the pages belong to
+     */
+    public void removePages(int tableId) {
+        pages.remove(tableId);
+        fences.remove(tableId);
+        freeSpace.remove(tableId);
+    }
+
+    /**
+     * @param tableId the table id
+     * @param sortingIndex the position of the page in the table's pages
+     * @return the lowest and highest primary key on the page, or null if they are not known
+     */
+    public PageFence getFence(int tableId, int sortingIndex) {
+        return fences.get(tableId).get(sortingIndex);
+    }
+
+    /**
+     * @param tableId the table id
+     * @param sortingIndex the position of the page in the table's pages
+     * @param fence the lowest and highest primary key now on the page
+     */
+    public void setFence(int tableId, int sortingIndex, PageFence fence) {
+        fences.get(tableId).set(sortingIndex, fence);
+    }
+
+    /**
+     * @param tableId the table id
+     * @return if the table's entries are kept in insertion order instead of primary key order
+     */
+    public boolean isHeap(int tableId) {
+        return heaps.contains(tableId);
+    }
+
+    /**
+     * Keep a table's entries in insertion order, which must be set before the table has entries
+     *
+     * @param tableId the table id
+     */
+    public void setHeap(int tableId) {
+        heaps.add(tableId);
+    }
+
+    /**
+     * @param tableId a heap table
+     * @param bytes the amount of bytes needed
+     * @return a page of the table with more than that amount of bytes free, or -1 if there is none
+     */
+    public int findFreePage(int tableId, int bytes) {
+        Map<Integer, Integer> pageSpace = freeSpace.get(tableId);
+        if (pageSpace != null) {
+            for (var entry : pageSpace.entrySet()) {
+                if (entry.getValue() > bytes) {
+                    return entry.getKey();
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param tableId a heap table
+     * @param pageNum a page of the table
+     * @param bytes the amount of bytes free on the page, or 0 to no longer offer the page for reuse
+     */
+    public void setFreeSpace(int tableId, int pageNum, int bytes) {
+        if (bytes > 0) {
+            freeSpace.computeIfAbsent(tableId, (k) -> new HashMap<>()).put(pageNum, bytes);
+        } else if (freeSpace.containsKey(tableId)) {
+            freeSpace.get(tableId).remove(pageNum);
+        }
+    }
+
+    public synchronized int requestNewIndexPageNum() {
         return pageCounter++;
     }
 
-    public int getIndexHead(int tableId) {
+    public synchronized boolean hasIndex(int tableId) {
+        return indexByTableId.containsKey(tableId);
+    }
+
+    public synchronized int getIndexHead(int tableId) {
         return indexByTableId.get(tableId);
     }
 
-    public void setIndexHead(int tableId, int pageNum) {
+    public synchronized void setIndexHead(int tableId, int pageNum) {
         indexByTableId.put(tableId, pageNum);
     }
 
+    public synchronized void removeIndex(int tableId) {
+        indexByTableId.remove(tableId);
+    }
+
+    /**
+     * @param tableId the table id
+     * @return if the table's primary key index is a hash index
+     */
+    public boolean isHashIndexed(int tableId) {
+        return hashIndexed.contains(tableId);
+    }
+
+    /**
+     * Use a hash index instead of a B+ tree for a table's primary key, which must be set before the index is built
+     *
+     * @param tableId the table id
+     */
+    public void setHashIndexed(int tableId) {
+        hashIndexed.add(tableId);
+    }
+
+    /**
+     * @param name the name of the index
+     * @param tableId the indexed table
+     * @param columnName the indexed column
+     * @return the new index, which has no head page until it is built
+     */
+    public SecondaryIndex createSecondaryIndex(String name, int tableId, String columnName) {
+        if (secondaryIndexes.containsKey(name)) {
+            throw new IllegalArgumentException("Index already exists: " + name);
+        }
+        SecondaryIndex index = new SecondaryIndex(name, tableCounter++, tableId, columnName);
+        secondaryIndexes.put(name, index);
+        return index;
+    }
+
+    public SecondaryIndex getSecondaryIndex(String name) {
+        return secondaryIndexes.get(name);
+    }
+
+    public Collection<SecondaryIndex> getSecondaryIndexes() {
+        return secondaryIndexes.values();
+    }
+
+    /**
+     * @param tableId the table id
+     * @return the secondary indexes of the table
+     */
+    public List<SecondaryIndex> getSecondaryIndexes(int tableId) {
+        List<SecondaryIndex> list = new ArrayList<>();
+        for (SecondaryIndex index : secondaryIndexes.values()) {
+            if (index.tableId == tableId) {
+                list.add(index);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @param tableId the table id
+     * @param columnName a unique column of the table
+     * @return the id of the set of values in the column, or null if it has not been built
+     */
+    public Integer getUniqueIndex(int tableId, String columnName) {
+        Map<String, Integer> columns = uniqueIndexes.get(tableId);
+        return columns == null ? null : columns.get(columnName);
+    }
+
+    /**
+     * @param tableId the table id
+     * @param columnName a unique column of the table
+     * @return the id for a new set of values in the column, which has no head page until it is written
+     */
+    public int createUniqueIndex(int tableId, String columnName) {
+        int id = tableCounter++;
+        uniqueIndexes.computeIfAbsent(tableId, k -> new HashMap<>()).put(columnName, id);
+        return id;
+    }
+
+    /**
+     * @param tableId the table id
+     * @return the ids of the sets of values built for the table's unique columns
+     */
+    public Collection<Integer> getUniqueIndexes(int tableId) {
+        Map<String, Integer> columns = uniqueIndexes.get(tableId);
+        return columns == null ? List.of() : new ArrayList<>(columns.values());
+    }
+
+    /**
+     * Forget the sets of values of a table's unique columns, whose pages must already be deleted
+     *
+     * @param tableId the table id
+     */
+    public void removeUniqueIndexes(int tableId) {
+        Map<String, Integer> columns = uniqueIndexes.remove(tableId);
+        if (columns != null) {
+            for (int id : columns.values()) {
+                indexByTableId.remove(id);
+            }
+        }
+    }
+
+    public void removeSecondaryIndex(String name) {
+        SecondaryIndex index = secondaryIndexes.remove(name);
+        if (index != null) {
+            indexByTableId.remove(index.indexId);
+        }
+    }
+
     public RecordCodec getCodec(int tableId) {
         RecordCodec codec = codecs.get(tableId);
         if (codec == null) {
@@ -98,6 +373,16 @@ public class Catalog {
         return codec;
     }
 
+    /**
+     * Replace a table's codec after a column is added or dropped
+     *
+     * @param tableId the table id
+     * @param codec the codec of the new version of the table's schema
+     */
+    public void setCodec(int tableId, RecordCodec codec) {
+        codecs.put(tableId, codec);
+    }
+
     public String getTableName(int tableId) {
         return tables.get(tableId);
     }
@@ -107,7 +392,15 @@ public class Catalog {
         tables.remove(tableId);
         codecs.remove(tableId);
         pages.remove(tableId);
+        fences.remove(tableId);
         indexByTableId.remove(tableId);
+        hashIndexed.remove(tableId);
+        heaps.remove(tableId);
+        freeSpace.remove(tableId);
+        removeUniqueIndexes(tableId);
+        for (SecondaryIndex index : getSecondaryIndexes(tableId)) {
+            removeSecondaryIndex(index.name);
+        }
     }
 
     public void renameTable(int id, String name) {
@@ -157,6 +450,69 @@ public class Catalog {
         // index
         size += 4 * tables.size(); // 1 pageNum (int, 4) per table
 
+        // secondary indexes
+        size += 4; // secondary index count
+        for (SecondaryIndex index : secondaryIndexes.values()) {
+            size += 4 + index.name.getBytes().length; // name
+            size += 4 + index.columnName.getBytes().length; // column name
+            size += 4 * 3; // index id, table id, head pageNum
+        }
+
+        // hash indexed tables
+        size += 4 + 4 * hashIndexed.size();
+
+        // unique column sets
+        size += 4; // table count
+        for (Map<String, Integer> columns : uniqueIndexes.values()) {
+            size += 4 + 4; // table id, column count
+            for (String columnName : columns.keySet()) {
+                size += 4 + columnName.getBytes().length; // column name
+                size += 4 * 2; // set id, head pageNum
+            }
+        }
+
+        // page fences
+        size += 4; // table count
+        for (var entry : fences.entrySet()) {
+            size += 4 + 4; // table id, fence count
+            RecordEntryType keyType = keyType(entry.getKey());
+            for (PageFence fence : entry.getValue()) {
+                size += 1; // if the fence is known
+                if (fence != null) {
+                    size += keySize(keyType, fence.low) + keySize(keyType, fence.high);
+                }
+            }
+        }
+
+        // heap tables and their free space
+        size += 4 + 4 * heaps.size();
+        size += 4; // table count
+        for (Map<Integer, Integer> pageSpace : freeSpace.values()) {
+            size += 4 + 4 + 4 * 2 * pageSpace.size(); // table id, page count, (pageNum, free bytes) pairs
+        }
+
+        // earlier versions of altered schemas
+        size += 4; // table count
+        Map<Integer, List<ByteBuffer>> encodedVersions = new HashMap<>();
+        for (var entry : codecs.entrySet()) {
+            RecordCodec codec = entry.getValue();
+            if (codec.version == 0) {
+                continue;
+            }
+            List<ByteBuffer> versions = new ArrayList<>(codec.version);
+            size += 4 + 4; // table id, version count
+            for (int version = 0; version < codec.version; version++) {
+                ByteBuffer encoded = codec.earlierSchema(version).encode();
+                encoded.rewind();
+                versions.add(encoded);
+                size += encoded.capacity();
+                size += 4 * codec.schema.types.size(); // source column of each current column
+            }
+            encodedVersions.put(entry.getKey(), versions);
+        }
+
+        size += 4; // format version
+
         ByteBuffer buf = ByteBuffer.allocate(size);
         buf.putInt(pageSize);
         buf.putInt(tableCounter);
@@ -176,6 +532,79 @@ public class Catalog {
             }
         }
 
+        buf.putInt(secondaryIndexes.size());
+        for (SecondaryIndex index : secondaryIndexes.values()) {
+            buf.putInt(index.name.getBytes().length);
+            buf.put(index.name.getBytes());
+            buf.putInt(index.columnName.getBytes().length);
+            buf.put(index.columnName.getBytes());
+            buf.putInt(index.indexId);
+            buf.putInt(index.tableId);
+            buf.putInt(indexByTableId.getOrDefault(index.indexId, -1));
+        }
+
+        buf.putInt(hashIndexed.size());
+        for (int tableId : hashIndexed) {
+            buf.putInt(tableId);
+        }
+
+        buf.putInt(uniqueIndexes.size());
+        for (var entry : uniqueIndexes.entrySet()) {
+            buf.putInt(entry.getKey());
+            buf.putInt(entry.getValue().size());
+            for (var column : entry.getValue().entrySet()) {
+                buf.putInt(column.getKey().getBytes().length);
+                buf.put(column.getKey().getBytes());
+                buf.putInt(column.getValue());
+                buf.putInt(indexByTableId.getOrDefault(column.getValue(), -1));
+            }
+        }
+
+        buf.putInt(fences.size());
+        for (var entry : fences.entrySet()) {
+            buf.putInt(entry.getKey());
+            buf.putInt(entry.getValue().size());
+            RecordEntryType keyType = keyType(entry.getKey());
+            for (PageFence fence : entry.getValue()) {
+                if (fence == null) {
+                    buf.put((byte) 0);
+                } else {
+                    buf.put((byte) 1);
+                    putKey(buf, keyType, fence.low);
+                    putKey(buf, keyType, fence.high);
+                }
+            }
+        }
+
+        buf.putInt(heaps.size());
+        for (int tableId : heaps) {
+            buf.putInt(tableId);
+        }
+        buf.putInt(freeSpace.size());
+        for (var entry : freeSpace.entrySet()) {
+            buf.putInt(entry.getKey());
+            buf.putInt(entry.getValue().size());
+            for (var page : entry.getValue().entrySet()) {
+                buf.putInt(page.getKey());
+                buf.putInt(page.getValue());
+            }
+        }
+
+        buf.putInt(encodedVersions.size());
+        for (var entry : encodedVersions.entrySet()) {
+            RecordCodec codec = codecs.get(entry.getKey());
+            buf.putInt(entry.getKey());
+            buf.putInt(codec.version);
+            for (int version = 0; version < codec.version; version++) {
+                buf.put(entry.getValue().get(version));
+                for (int source : codec.sources(version)) {
+                    buf.putInt(source);
+                }
+            }
+        }
+
+        buf.putInt(formatVersion);
+
         if (buf.position() != buf.capacity()) {
             throw new IllegalStateException("Unable to fully encode catalog");
         }
@@ -186,6 +615,7 @@ public class Catalog {
         buf.rewind();
         int pageSize = buf.getInt();
         Catalog catalog = new Catalog(pageSize);
+        catalog.formatVersion = 0;
         catalog.tableCounter = buf.getInt();
         catalog.pageCounter = buf.getInt();
         int tableCount = buf.getInt();
@@ -205,12 +635,164 @@ public class Catalog {
             catalog.codecs.put(tableId, codec);
             if (!pages.isEmpty()) {
                 catalog.pages.put(tableId, pages);
+                catalog.fences.put(tableId, new ArrayList<>(Collections.nCopies(pages.size(), null)));
             }
             int indextableId = buf.getInt();
             if (indextableId != -1) {
                 catalog.indexByTableId.put(tableId, indextableId);
             }
         }
+        if (!buf.hasRemaining()) {
+            // written before secondary indexes existed
+            return catalog;
+        }
+        int secondaryCount = buf.getInt();
+        for (int i = 0; i < secondaryCount; i++) {
+            byte[] arr = new byte[buf.getInt()];
+            buf.get(arr);
+            String name = new String(arr);
+            arr = new byte[buf.getInt()];
+            buf.get(arr);
+            String columnName = new String(arr);
+            int indexId = buf.getInt();
+            int tableId = buf.getInt();
+            int head = buf.getInt();
+            catalog.secondaryIndexes.put(name, new SecondaryIndex(name, indexId, tableId, columnName));
+            if (head != -1) {
+                catalog.indexByTableId.put(indexId, head);
+            }
+        }
+        if (!buf.hasRemaining()) {
+            // written before hash indexes existed
+            return catalog;
+        }
+        int hashCount = buf.getInt();
+        for (int i = 0; i < hashCount; i++) {
+            catalog.hashIndexed.add(buf.getInt());
+        }
+        if (!buf.hasRemaining()) {
+            // written before unique columns had sets of values
+            return catalog;
+        }
+        int uniqueTableCount = buf.getInt();
+        for (int i = 0; i < uniqueTableCount; i++) {
+            int tableId = buf.getInt();
+            int columnCount = buf.getInt();
+            Map<String, Integer> columns = new HashMap<>();
+            for (int j = 0; j < columnCount; j++) {
+                byte[] arr = new byte[buf.getInt()];
+                buf.get(arr);
+                int id = buf.getInt();
+                int head = buf.getInt();
+                columns.put(new String(arr), id);
+                if (head != -1) {
+                    catalog.indexByTableId.put(id, head);
+                }
+            }
+            catalog.uniqueIndexes.put(tableId, columns);
+        }
+        if (!buf.hasRemaining()) {
+            // written before pages had fences, which are read from the pages instead
+            return catalog;
+        }
+        int fenceTableCount = buf.getInt();
+        for (int i = 0; i < fenceTableCount; i++) {
+            int tableId = buf.getInt();
+            int fenceCount = buf.getInt();
+            RecordEntryType keyType = catalog.keyType(tableId);
+            List<PageFence> fenceList = catalog.fences.get(tableId);
+            for (int j = 0; j < fenceCount; j++) {
+                if (buf.get() == 1) {
+                    fenceList.set(j, new PageFence(getKey(buf, keyType), getKey(buf, keyType)));
+                }
+            }
+        }
+        if (!buf.hasRemaining()) {
+            // written before heap tables existed
+            return catalog;
+        }
+        int heapCount = buf.getInt();
+        for (int i = 0; i < heapCount; i++) {
+            catalog.heaps.add(buf.getInt());
+        }
+        int freeTableCount = buf.getInt();
+        for (int i = 0; i < freeTableCount; i++) {
+            int tableId = buf.getInt();
+            int pageCount = buf.getInt();
+            Map<Integer, Integer> pageSpace = new HashMap<>();
+            for (int j = 0; j < pageCount; j++) {
+                pageSpace.put(buf.getInt(), buf.getInt());
+            }
+            catalog.freeSpace.put(tableId, pageSpace);
+        }
+        if (!buf.hasRemaining()) {
+            // written before schemas had versions
+            return catalog;
+        }
+        int alteredCount = buf.getInt();
+        for (int i = 0; i < alteredCount; i++) {
+            int tableId = buf.getInt();
+            int versionCount = buf.getInt();
+            TableSchema schema = catalog.codecs.get(tableId).schema;
+            List<RecordCodec> earlier = new ArrayList<>(versionCount);
+            List<int[]> sources = new ArrayList<>(versionCount);
+            for (int version = 0; version < versionCount; version++) {
+                earlier.add(new RecordCodec(TableSchema.decode(buf)));
+                int[] columns = new int[schema.types.size()];
+                for (int j = 0; j < columns.length; j++) {
+                    columns[j] = buf.getInt();
+                }
+                sources.add(columns);
+            }
+            catalog.codecs.put(tableId, new RecordCodec(schema, versionCount, earlier, sources));
+        }
+        if (!buf.hasRemaining()) {
+            // written before the layout of the pages had a version
+            return catalog;
+        }
+        catalog.formatVersion = buf.getInt();
         return catalog;
     }
+
+    /**
+     * @param tableId the table id
+     * @return the type of the table's primary key, or null if it has none
+     */
+    private RecordEntryType keyType(int tableId) {
+        TableSchema schema = codecs.get(tableId).schema;
+        return schema.primaryKeyIndex < 0 ? null : schema.types.get(schema.primaryKeyIndex);
+    }
+
+    private static int keySize(RecordEntryType type, Object key) {
+        return switch (type) {
+            case INT, DOUBLE, BOOL -> type.size();
+            case CHAR_FIXED, CHAR_VAR -> 4 + ((String) key).getBytes().length;
+        };
+    }
+
+    private static void putKey(ByteBuffer buf, RecordEntryType type, Object key) {
+        switch (type) {
+            case INT -> buf.putInt((Integer) key);
+            case DOUBLE -> buf.putDouble((Double) key);
+            case BOOL -> buf.put((byte) ((Boolean) key ? 1 : 0));
+            case CHAR_FIXED, CHAR_VAR -> {
+                byte[] arr = ((String) key).getBytes();
+                buf.putInt(arr.length);
+                buf.put(arr);
+            }
+        }
+    }
+
+    private static Object getKey(ByteBuffer buf, RecordEntryType type) {
+        return switch (type) {
+            case INT -> buf.getInt();
+            case DOUBLE -> buf.getDouble();
+            case BOOL -> buf.get() == 1;
+            case CHAR_FIXED, CHAR_VAR -> {
+                byte[] arr = new byte[buf.getInt()];
+                buf.get(arr);
+                yield new String(arr);
+            }
+        };
+    }
 }
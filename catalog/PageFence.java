@@ -0,0 +1,15 @@
+package catalog;
+
+/**
+ * The lowest and highest primary key on a page of a table, which bound the keys the page holds
+ */
+public final class PageFence {
+
+    public final Object low;
+    public final Object high;
+
+    public PageFence(Object low, Object high) {
+        this.low = low;
+        this.high = high;
+    }
+}
@@ -0,0 +1,26 @@
+package catalog;
+
+/**
+ * An index over a column other than the primary key, created with CREATE INDEX
+ */
+public final class SecondaryIndex {
+
+    public final String name;
+    /**
+     * The id the index pages and head page are stored under, which never collides with a table id
+     */
+    public final int indexId;
+    public final String columnName;
+    int tableId;
+
+    SecondaryIndex(String name, int indexId, int tableId, String columnName) {
+        this.name = name;
+        this.indexId = indexId;
+        this.tableId = tableId;
+        this.columnName = columnName;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+}
@@ -2,23 +2,31 @@
 
 package clauses;
 
+import operator.Filter;
+import operator.HashJoin;
+import operator.Join;
+import operator.Rename;
+import operator.RowIterator;
 import table.Table;
+import table.TableSchema;
 import storage.StorageManager;
 import catalog.Catalog;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
 
 public class FromClause {
 
     /**
-     * Merges list of tables together to process the 'FROM ...' part of a SELECT query
+     * Finds the tables named by the 'FROM ...' part of a SELECT query
      * 
-     * @param tableNames Array of strings, each the name of a table to be merged
+     * @param tableNames Array of strings, each the name of a table to be read
      * @param SM Predefined Storage Manager
      * @param catalog Predefined Catalog
-     * @return single table, merged from given list
+     * @return the tables, in the order given
      */
-    public static Table parseFrom(String[] tableNames, StorageManager SM, Catalog catalog) {
+    public static List<Table> parseFrom(String[] tableNames, StorageManager SM, Catalog catalog) {
 
         // Get table IDs
         ArrayList<Integer> tableIds = new ArrayList<>();
@@ -32,19 +40,100 @@ public class FromClause {
         }
 
         // Using IDs, find and store needed tables in an arraylist
-        ArrayList<Table> tablesToMerge = new ArrayList<>();
+        ArrayList<Table> tables = new ArrayList<>();
         for (Integer Id : tableIds) {
-            Table table = new Table(SM, Id);
-            tablesToMerge.add(table);
+            tables.add(new Table(SM, Id));
         }
+        return tables;
+    }
 
-        // Merge all tables together
-        if (tablesToMerge.size() == 1) {
-            return tablesToMerge.get(0);
+    /**
+     * @param tables the tables of the query
+     * @return the schema of the rows pairing the tables, whose columns come in the order of the tables and are named
+     *         by their table, as a where clause parsed against the tables names them
+     */
+    public static TableSchema qualifiedSchema(List<Table> tables) {
+        List<String> names = new ArrayList<>();
+        TableSchema schema = null;
+        for (Table table : tables) {
+            for (String name : table.getSchema().names) {
+                names.add(table.getName() + "." + name);
+            }
+            schema = schema == null ? table.getSchema() : TableSchema.merge(schema, table.getSchema(), -1);
         }
+        return new TableSchema(names, schema.types, schema.sizes, schema.defaultValues, schema.uniques,
+                schema.nullables, -1, false);
+    }
 
-        // This table needs to be deleted at some point after we are done with it
-        return Table.mergeN(tablesToMerge);
+    /**
+     * Pairs every row of each table with the rows of the others, keeping the rows the where clause matches. The rows
+     * of a single table are found through its indexes when the where clause allows it, and are otherwise tested a
+     * batch of columns at a time when the where clause only compares columns with constants.
+     * <p>
+     * The tables are joined in order. A table which the where clause requires to have columns equal to columns of
+     * the tables before it is joined to them by a hash join, which holds the side with fewer pages in memory. Other
+     * tables are paired with every row before them. The columns of the paired rows are named by their table, as
+     * in {@link #qualifiedSchema}.
+     *
+     * @param tables the tables of the query
+     * @param where the where clause, parsed against the tables, or null to keep every row
+     * @param SM Predefined Storage Manager
+     * @return the rows, which are read as they are asked for
+     */
+    public static RowIterator scan(List<Table> tables, WhereEvaluator where, StorageManager SM) {
+        if (tables.size() == 1) {
+            Table table = tables.get(0);
+            if (where == null) {
+                return table.rows();
+            }
+            TableSchema schema = table.getSchema();
+            return table.rows(where.keyRanges(schema), r -> where.evaluate(r, schema), where.toBatchPredicate(schema));
+        }
+
+        TableSchema qualified = qualifiedSchema(tables);
+        List<int[]> equalities = where == null ? List.of() : where.columnEqualities(qualified);
+        Path tempDir = SM.pageBuffer.getPagesDir().toAbsolutePath().getParent();
+
+        Table first = tables.get(0);
+        RowIterator rows = first.rows();
+        long pages = first.getPageCount();
+        int width = first.getSchema().names.size();
+        for (int i = 1; i < tables.size(); i++) {
+            Table table = tables.get(i);
+            int columns = table.getSchema().names.size();
+            // the columns of the table are at [width, width + columns) of the joined rows
+            List<Integer> leftKeys = new ArrayList<>();
+            List<Integer> rightKeys = new ArrayList<>();
+            for (int[] equality : equalities) {
+                for (int side = 0; side < 2; side++) {
+                    int before = equality[side];
+                    int after = equality[1 - side];
+                    if (before < width && after >= width && after < width + columns) {
+                        leftKeys.add(before);
+                        rightKeys.add(after - width);
+                    }
+                }
+            }
+
+            long tablePages = table.getPageCount();
+            if (leftKeys.isEmpty()) {
+                rows = new Join(rows, table::rows);
+                pages = pages * Math.max(1, tablePages);
+            } else {
+                int[] left = leftKeys.stream().mapToInt(Integer::intValue).toArray();
+                int[] right = rightKeys.stream().mapToInt(Integer::intValue).toArray();
+                rows = new HashJoin(rows, table.rows(), left, right, pages < tablePages, tempDir);
+                // rows usually match few rows of the other side, so the result is about as large as the larger side
+                pages = Math.max(pages, tablePages);
+            }
+            width += columns;
+        }
+        rows = new Rename(rows, qualified);
+        if (where == null) {
+            return rows;
+        }
+        // the joins only pair rows with equal keys, so the whole clause is still tested on the joined rows
+        return new Filter(rows, r -> where.evaluate(r, qualified));
     }
 
 }
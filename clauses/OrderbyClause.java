@@ -2,39 +2,34 @@
 
 package clauses;
 
-import catalog.Catalog;
+import operator.RowIterator;
+import operator.Sort;
 import storage.StorageManager;
-import page.RecordCodec;
-import table.Table;
-import table.TableSchema;
 
 public class OrderbyClause {
 
     /**
-     * Returns a new table, with the same records as the original, but sorted on a provided column.
-     * The new table must be deleted after use. 
+     * Returns the rows sorted on a provided column, spilling them next to the database's pages when they do not
+     * fit in memory.
      * 
-     * @param table original table to be sorted
-     * @param columnName name of column to sort new table on
+     * @param rows rows to be sorted
+     * @param columnName name of column to sort the rows on
      * @param SM Predefined storage manager
-     * @param catalog Predefined catalog
+     * @throws IllegalArgumentException if a column named without its table is in more than one table
      */
-    public static Table parseOrderby(Table table, String columnName, StorageManager SM, Catalog catalog) {
+    public static RowIterator parseOrderby(RowIterator rows, String columnName, StorageManager SM) {
         if (columnName == null) {
-            return table;
+            return rows;
         }
-        int newPrimaryKeyIndex = table.getSchema().getColumnIndex(columnName);
-        if (newPrimaryKeyIndex < 0) {
+        int columnIndex = rows.getSchema().findColumn(columnName);
+        if (columnIndex < 0) {
             System.err.println("Error: unable to find column " + columnName);
             return null;
         }
-        TableSchema newSchema = table.getSchema().copy(newPrimaryKeyIndex);
-        int id = catalog.createTable("Ordered[" + table.getName() + "]", new RecordCodec(newSchema));
-        Table ordered = new Table(SM, id);
-        table.findMatching(r -> true, r -> {
-            ordered.insert(r, false);
-        });
-
-        return ordered; // Make sure to cleanup!
+        if (columnIndex == rows.getSortedColumn()) {
+            // rows read in primary key order are already sorted
+            return rows;
+        }
+        return new Sort(rows, columnIndex, SM.pageBuffer.getPagesDir().toAbsolutePath().getParent());
     }
 }
@@ -1,24 +1,26 @@
 package clauses;
 
-import table.Table;
+import operator.RowIterator;
 
 public class SelectClause {
 
     /**
-     * Build a projected table containing only requested columns.
+     * Keep only the requested columns of the rows. A column may be named by its table, as in t1.a, when the rows
+     * pair several tables.
      *
-     * @param table the table to project
+     * @param rows the rows to project
      * @param selectRaw the raw select clause
+     * @throws IllegalArgumentException if a column named without its table is in more than one table
      */
-    public static Table parseSelect(Table table, String selectRaw) {
+    public static RowIterator parseSelect(RowIterator rows, String selectRaw) {
         String[] columnNames = selectRaw.split(",");
         int[] columnIndices = new int[columnNames.length];
         for (int i = 0; i < columnNames.length; i++) {
             String column = columnNames[i].strip();
             if (column.equals("*")) {
-                return table;
+                return rows;
             }
-            int index = table.getSchema().getColumnIndex(column);
+            int index = rows.getSchema().findColumn(column);
             if (index >= 0) {
                 columnIndices[i] = index;
             } else {
@@ -27,7 +29,7 @@ public class SelectClause {
             }
         }
 
-        return table.toSelected(columnIndices);
+        return rows.project(columnIndices);
     }
 
-}
\ No newline at end of file
+}
@@ -11,7 +11,9 @@
 package clauses;
 
 import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import page.RecordEntry;
 import table.Table;
 import table.TableSchema;
@@ -44,10 +46,23 @@ public class WhereClause {
     }
 
     public static WhereEvaluator parseWhere(String userInput, List<Table> tables) {
+        Map<String, TableSchema> schemas = new LinkedHashMap<>();
+        for (Table table : tables) {
+            schemas.put(table.getName(), table.getSchema());
+        }
+        return parseWhere(userInput, schemas);
+    }
+
+    /**
+     * @param userInput the raw where clause
+     * @param schemas the schema of each table the clause may name, by table name
+     * @return the evaluator of the clause, or null if it does not parse
+     */
+    public static WhereEvaluator parseWhere(String userInput, Map<String, TableSchema> schemas) {
         try {
             WhereTree.conditionalTreeRoot = null;
 
-            List<Token> tokenList = WhereTree.tokenize(userInput, tables);
+            List<Token> tokenList = WhereTree.tokenize(userInput, schemas);
 
             ArrayDeque<List<Object>> operators = new ArrayDeque<>();
             ArrayDeque<List<Object>> operands = new ArrayDeque<>();
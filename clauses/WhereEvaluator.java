@@ -1,10 +1,16 @@
 package clauses;
 
+import operator.BatchMask;
+import operator.BatchPredicate;
 import page.RecordEntry;
 import table.TableSchema;
+import tree.KeyRange;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("unchecked")
 public class WhereEvaluator {
@@ -38,7 +44,17 @@ public class WhereEvaluator {
             if (leftVal == null) {
                 return false;
             }
-            Object rightVal = parseValue(right.value, right.type);
+            Object rightVal;
+            if (right.type.equals("colName")) {
+                int rightIndex = schema.getColumnIndex(right.value);
+                if (rightIndex < 0) {
+                    System.err.println("Error: Column not found: " + right.value);
+                    return false;
+                }
+                rightVal = record.data.get(rightIndex);
+            } else {
+                rightVal = parseValue(right.value, right.type);
+            }
             if (rightVal == null) {
                 return false;
             }
@@ -67,6 +83,174 @@ public class WhereEvaluator {
         }
     }
 
+    /**
+     * Find the comparisons of two columns for equality which the whole condition depends on, being joined to the
+     * rest of it by "and", so rows which fail one of them never match. Only columns of the same type are paired,
+     * leaving mismatched types for {@link #evaluate} to report.
+     *
+     * @param schema the schema of the rows the condition applies to
+     * @return the indices of the two columns of each comparison
+     */
+    public List<int[]> columnEqualities(TableSchema schema) {
+        List<int[]> equalities = new ArrayList<>();
+        columnEqualities(schema, tree.getFirst(), equalities);
+        return equalities;
+    }
+
+    private static void columnEqualities(TableSchema schema, List<Object> node, List<int[]> equalities) {
+        if (!(node.get(0) instanceof List<?> operatorList)) {
+            return;
+        }
+        Token operator = (Token) operatorList.get(0);
+        if (operator.type.equals("And/Or") && operator.value.equals("and")) {
+            columnEqualities(schema, (List<Object>) node.get(1), equalities);
+            columnEqualities(schema, (List<Object>) node.get(2), equalities);
+            return;
+        }
+        if (!operator.type.equals("RelOp") || !operator.value.equals("=")) {
+            return;
+        }
+        Token left = (Token) ((List<Object>) node.get(1)).get(0);
+        Token right = (Token) ((List<Object>) node.get(2)).get(0);
+        if (!left.type.equals("colName") || !right.type.equals("colName")) {
+            return;
+        }
+        int leftColumn = schema.getColumnIndex(left.value);
+        int rightColumn = schema.getColumnIndex(right.value);
+        if (leftColumn >= 0 && rightColumn >= 0 && schema.types.get(leftColumn) == schema.types.get(rightColumn)) {
+            equalities.add(new int[]{leftColumn, rightColumn});
+        }
+    }
+
+    /**
+     * Build the condition as a test of column batches, for conditions which only compare columns against constants
+     * of the column's type. Other conditions, including those {@link #evaluate} reports errors for, are left to it.
+     * Parts of the condition which only compare numeric columns are tested as masks of the whole batch.
+     *
+     * @param schema the schema of the table the condition applies to
+     * @return the test, or null if the condition cannot be tested a batch at a time
+     */
+    public BatchPredicate toBatchPredicate(TableSchema schema) {
+        return toBatchPredicate(schema, tree.getFirst());
+    }
+
+    private static BatchPredicate toBatchPredicate(TableSchema schema, List<Object> node) {
+        BatchMask mask = toBatchMask(schema, node);
+        if (mask != null) {
+            return mask.toPredicate();
+        }
+        if (!(node.get(0) instanceof List<?> operatorList)) {
+            // a lone operand, not a comparison
+            return null;
+        }
+        Token operator = (Token) operatorList.get(0);
+        if (operator.type.equals("And/Or")) {
+            BatchPredicate left = toBatchPredicate(schema, (List<Object>) node.get(1));
+            BatchPredicate right = toBatchPredicate(schema, (List<Object>) node.get(2));
+            if (left == null || right == null) {
+                return null;
+            }
+            return operator.value.equals("and") ? BatchPredicate.and(left, right) : BatchPredicate.or(left, right);
+        }
+        if (!operator.type.equals("RelOp")) {
+            return null;
+        }
+
+        Token left = (Token) ((List<Object>) node.get(1)).get(0);
+        Token right = (Token) ((List<Object>) node.get(2)).get(0);
+        if (!left.type.equals("colName") || right.type.equals("colName")) {
+            return null;
+        }
+        int column = schema.getColumnIndex(left.value);
+        Object value = parseValue(right.value, right.type);
+        if (column < 0 || value == null || !schema.types.get(column).matchesType(value)) {
+            return null;
+        }
+        return BatchPredicate.compare(column, operator.value, value);
+    }
+
+    private static BatchMask toBatchMask(TableSchema schema, List<Object> node) {
+        if (!(node.get(0) instanceof List<?> operatorList)) {
+            return null;
+        }
+        Token operator = (Token) operatorList.get(0);
+        if (operator.type.equals("And/Or")) {
+            BatchMask left = toBatchMask(schema, (List<Object>) node.get(1));
+            BatchMask right = left == null ? null : toBatchMask(schema, (List<Object>) node.get(2));
+            if (right == null) {
+                return null;
+            }
+            return operator.value.equals("and") ? BatchMask.and(left, right) : BatchMask.or(left, right);
+        }
+        if (!operator.type.equals("RelOp")) {
+            return null;
+        }
+
+        Token left = (Token) ((List<Object>) node.get(1)).get(0);
+        Token right = (Token) ((List<Object>) node.get(2)).get(0);
+        if (!left.type.equals("colName") || right.type.equals("colName")) {
+            return null;
+        }
+        int column = schema.getColumnIndex(left.value);
+        Object value = parseValue(right.value, right.type);
+        if (column < 0 || value == null || !schema.types.get(column).matchesType(value)) {
+            return null;
+        }
+        return BatchMask.compare(column, operator.value, value);
+    }
+
+    /**
+     * Find the range of values each column can have to satisfy the condition, from comparisons of columns against
+     * constants which are joined by "and". The ranges may be wider than the condition, so matching entries still
+     * need to be checked with {@link #evaluate}.
+     *
+     * @param schema the schema of the table the condition applies to
+     * @return the range for each constrained column index, where columns which are not present can have any value
+     */
+    public Map<Integer, KeyRange> keyRanges(TableSchema schema) {
+        return keyRanges(schema, tree.getFirst());
+    }
+
+    private static Map<Integer, KeyRange> keyRanges(TableSchema schema, List<Object> node) {
+        if (!(node.get(0) instanceof List<?> operatorList)) {
+            // a lone operand, not a comparison
+            return Map.of();
+        }
+        Token operator = (Token) operatorList.get(0);
+        if (operator.type.equals("And/Or")) {
+            if (!operator.value.equals("and")) {
+                return Map.of();
+            }
+            Map<Integer, KeyRange> ranges = new HashMap<>(keyRanges(schema, (List<Object>) node.get(1)));
+            keyRanges(schema, (List<Object>) node.get(2)).forEach((column, range) -> ranges.merge(column, range, KeyRange::intersect));
+            return ranges;
+        }
+        if (!operator.type.equals("RelOp")) {
+            return Map.of();
+        }
+
+        Token left = (Token) ((List<Object>) node.get(1)).get(0);
+        Token right = (Token) ((List<Object>) node.get(2)).get(0);
+        if (!left.type.equals("colName") || right.type.equals("colName")) {
+            return Map.of();
+        }
+        int column = schema.getColumnIndex(left.value);
+        Object value = parseValue(right.value, right.type);
+        if (column < 0 || value == null || !schema.types.get(column).matchesType(value)) {
+            // leave unknown columns and mismatched types for evaluate to report
+            return Map.of();
+        }
+        KeyRange range = switch (operator.value) {
+            case "=" -> KeyRange.equalTo(value);
+            case ">" -> KeyRange.greaterThan(value, false);
+            case ">=" -> KeyRange.greaterThan(value, true);
+            case "<" -> KeyRange.lessThan(value, false);
+            case "<=" -> KeyRange.lessThan(value, true);
+            default -> KeyRange.all();
+        };
+        return range.isAll() ? Map.of() : Map.of(column, range);
+    }
+
     private static Object parseValue(String token, String type) {
         try {
             return switch (type) {
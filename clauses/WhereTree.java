@@ -8,10 +8,11 @@
 
 package clauses;
 
-import table.Table;
+import table.TableSchema;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class WhereTree {
     private String token;
@@ -93,7 +94,7 @@ public class WhereTree {
         }
     }
     
-    public static List<Token> tokenize(String input, List<Table> tables) throws Exception {
+    public static List<Token> tokenize(String input, Map<String, TableSchema> schemas) throws Exception {
         List<Token> tokens = new ArrayList<>();
         String[] rawTokens = input.trim().split("\\s+");
 
@@ -112,14 +113,14 @@ public class WhereTree {
                 int dot = token.indexOf('.');
                 if (dot < 0) {
                     boolean found = false;
-                    for (var table : tables) {
-                        var schema = table.getSchema();
+                    for (var table : schemas.entrySet()) {
+                        var schema = table.getValue();
                         int col = schema.getColumnIndex(token);
                         if (col >= 0) {
                             if (found) {
                                 throw new Exception("Ambiguous column in WHERE clause: " + token);
                             }
-                            token = table.getName() + "." + token;
+                            token = table.getKey() + "." + token;
                             found = true;
                         }
                     }
@@ -128,10 +129,14 @@ public class WhereTree {
                     }
                 } else {
                     String tableName = token.substring(0, dot);
+                    if (schemas.size() > 1 && !schemas.containsKey(tableName)) {
+                        // with several tables the column is found by its table, so the table must be one of them
+                        throw new Exception("No column found in WHERE clause: " + token);
+                    }
                     boolean found = false;
-                    for (var table : tables) {
-                        var schema = table.getSchema();
-                        if (table.getName().equals(tableName)) {
+                    for (var table : schemas.entrySet()) {
+                        var schema = table.getValue();
+                        if (table.getKey().equals(tableName)) {
                             int col = schema.getColumnIndex(token);
                             if (col >= 0) {
                                 if (found) {
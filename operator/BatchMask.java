@@ -0,0 +1,200 @@
+package operator;
+
+import page.ColumnBatch;
+
+/**
+ * A condition on numeric columns tested on every row of a batch at once, which sets one bit per row in an array of
+ * longs.
+ * <p>
+ * Each comparison runs over the whole array of its column without looking at the selection, so the loop reads the
+ * values in order and never branches on them. Conditions joined by "and" or "or" combine their masks 64 rows at a
+ * time, instead of merging lists of rows. Null values match no comparison.
+ */
+@FunctionalInterface
+public interface BatchMask {
+    /**
+     * @param batch the batch
+     * @param words receives the mask, where bit i % 64 of word i / 64 is set when row i matches, and which holds at
+     *              least {@link #words(int)} of the batch's size
+     */
+    void mask(ColumnBatch batch, long[] words);
+
+    /**
+     * @param rows an amount of rows
+     * @return the amount of words a mask of the rows takes
+     */
+    static int words(int rows) {
+        return (rows + Long.SIZE - 1) >>> 6;
+    }
+
+    /**
+     * @return the condition as a predicate, which keeps the rows of the selection whose bit is set
+     */
+    default BatchPredicate toPredicate() {
+        return (batch, in, count, out) -> {
+            long[] words = new long[words(batch.size())];
+            mask(batch, words);
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                int row = in[i];
+                out[matched] = row;
+                matched += (int) (words[row >>> 6] >>> row) & 1;
+            }
+            return matched;
+        };
+    }
+
+    /**
+     * @param left a mask
+     * @param right a mask
+     * @return a mask of the rows both match
+     */
+    static BatchMask and(BatchMask left, BatchMask right) {
+        return (batch, words) -> {
+            long[] rightWords = new long[words(batch.size())];
+            left.mask(batch, words);
+            right.mask(batch, rightWords);
+            for (int i = 0; i < rightWords.length; i++) {
+                words[i] &= rightWords[i];
+            }
+        };
+    }
+
+    /**
+     * @param left a mask
+     * @param right a mask
+     * @return a mask of the rows either matches
+     */
+    static BatchMask or(BatchMask left, BatchMask right) {
+        return (batch, words) -> {
+            long[] rightWords = new long[words(batch.size())];
+            left.mask(batch, words);
+            right.mask(batch, rightWords);
+            for (int i = 0; i < rightWords.length; i++) {
+                words[i] |= rightWords[i];
+            }
+        };
+    }
+
+    /**
+     * @param column the index of an INT or DOUBLE column
+     * @param operator the relational operator, one of =, !=, <, <=, >, >=
+     * @param value the constant the column is compared to, of the column's type
+     * @return the mask, or null if the operator is not known or the constant is not a number
+     */
+    static BatchMask compare(int column, String operator, Object value) {
+        int accepted = BatchPredicate.accepted(operator);
+        if (accepted == 0) {
+            return null;
+        }
+        if (value instanceof Integer i) {
+            return compareInts(column, accepted, i);
+        } else if (value instanceof Double d) {
+            return compareDoubles(column, accepted, d);
+        }
+        return null;
+    }
+
+    // each kernel finds the rows less than and greater than the constant from the sign bit of a difference, which
+    // the loops compute without branching, and combines them into the rows the operator accepts
+
+    private static BatchMask compareInts(int column, int accepted, long value) {
+        return (batch, words) -> {
+            int[] values = batch.ints[column];
+            int size = batch.size();
+            for (int w = 0, start = 0; start < size; w++, start += Long.SIZE) {
+                int end = Math.min(start + Long.SIZE, size);
+                long less = 0;
+                long greater = 0;
+                for (int row = start; row < end; row++) {
+                    // the difference of two ints fits in a long, so its sign bit is the comparison
+                    long x = values[row];
+                    less |= ((x - value) >>> 63) << row;
+                    greater |= ((value - x) >>> 63) << row;
+                }
+                words[w] = combine(accepted, less, greater);
+            }
+            clearNulls(batch, column, words);
+        };
+    }
+
+    private static BatchMask compareDoubles(int column, int accepted, double value) {
+        long constant = sortable(value);
+        return (batch, words) -> {
+            double[] values = batch.doubles[column];
+            int size = batch.size();
+            for (int w = 0, start = 0; start < size; w++, start += Long.SIZE) {
+                int end = Math.min(start + Long.SIZE, size);
+                long less = 0;
+                long greater = 0;
+                for (int row = start; row < end; row++) {
+                    long x = sortable(values[row]);
+                    less |= lessThan(x, constant) << row;
+                    greater |= lessThan(constant, x) << row;
+                }
+                words[w] = combine(accepted, less, greater);
+            }
+            clearNulls(batch, column, words);
+        };
+    }
+
+    /**
+     * @param accepted the results of a comparison the operator accepts, like {@link BatchPredicate#accepted}
+     * @param less the rows less than the constant
+     * @param greater the rows greater than the constant
+     * @return the rows the operator accepts
+     */
+    private static long combine(int accepted, long less, long greater) {
+        long word = 0;
+        if ((accepted & 0b001) != 0) {
+            word |= less;
+        }
+        if ((accepted & 0b010) != 0) {
+            word |= ~(less | greater);
+        }
+        if ((accepted & 0b100) != 0) {
+            word |= greater;
+        }
+        return word;
+    }
+
+    /**
+     * @param value a double
+     * @return a long which orders like the double does under {@link Double#compare}, including -0.0 and NaN
+     */
+    private static long sortable(double value) {
+        long bits = Double.doubleToLongBits(value);
+        // negative doubles order backwards by their bits, so flip every bit but the sign
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * @param a a long
+     * @param b a long
+     * @return 1 if a is less than b, otherwise 0, from the sign of a - b corrected for overflow
+     */
+    private static long lessThan(long a, long b) {
+        long difference = a - b;
+        return (difference ^ ((a ^ b) & (difference ^ a))) >>> 63;
+    }
+
+    /**
+     * Clear the bits of the rows whose value is null, when the column can hold nulls
+     *
+     * @param batch the batch
+     * @param column the index of the column
+     * @param words the mask
+     */
+    private static void clearNulls(ColumnBatch batch, int column, long[] words) {
+        if (!batch.schema.nullables.get(column)) {
+            return;
+        }
+        boolean[] nulls = batch.nulls[column];
+        int size = batch.size();
+        for (int row = 0; row < size; row++) {
+            if (nulls[row]) {
+                words[row >>> 6] &= ~(1L << row);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package operator;
+
+import page.ColumnBatch;
+
+import java.util.Arrays;
+
+/**
+ * A condition tested on a batch of rows at a time, by loops over the arrays of the columns it compares.
+ * <p>
+ * A predicate reads the rows to test from one selection and writes the matching ones to another, which may be the
+ * same array, since a row is only written at or before the position it was read from. Null values match no
+ * comparison.
+ */
+@FunctionalInterface
+public interface BatchPredicate {
+    /**
+     * @param batch the batch
+     * @param in the rows to test, in ascending order
+     * @param count the amount of rows to test
+     * @param out receives the matching rows in ascending order, which may be the same array as in
+     * @return the amount of matching rows
+     */
+    int select(ColumnBatch batch, int[] in, int count, int[] out);
+
+    /**
+     * Narrow the selection of the batch to the rows which match
+     *
+     * @param batch the batch
+     */
+    default void filter(ColumnBatch batch) {
+        batch.selected = select(batch, batch.selection, batch.selected, batch.selection);
+    }
+
+    /**
+     * @return a predicate every row matches
+     */
+    static BatchPredicate all() {
+        return (batch, in, count, out) -> {
+            if (in != out) {
+                System.arraycopy(in, 0, out, 0, count);
+            }
+            return count;
+        };
+    }
+
+    /**
+     * @param left a predicate
+     * @param right a predicate
+     * @return a predicate rows match when they match both, which only tests the rows left matches against right
+     */
+    static BatchPredicate and(BatchPredicate left, BatchPredicate right) {
+        return (batch, in, count, out) -> right.select(batch, out, left.select(batch, in, count, out), out);
+    }
+
+    /**
+     * @param left a predicate
+     * @param right a predicate
+     * @return a predicate rows match when they match either
+     */
+    static BatchPredicate or(BatchPredicate left, BatchPredicate right) {
+        return (batch, in, count, out) -> {
+            int[] leftRows = new int[count];
+            int[] rightRows = new int[count];
+            int leftCount = left.select(batch, in, count, leftRows);
+            int rightCount = right.select(batch, in, count, rightRows);
+            // both are in ascending order, so merge them like sorted lists, keeping rows in both once
+            int matched = 0;
+            int i = 0;
+            int j = 0;
+            while (i < leftCount || j < rightCount) {
+                if (j >= rightCount || (i < leftCount && leftRows[i] < rightRows[j])) {
+                    out[matched++] = leftRows[i++];
+                } else if (i >= leftCount || rightRows[j] < leftRows[i]) {
+                    out[matched++] = rightRows[j++];
+                } else {
+                    out[matched++] = leftRows[i++];
+                    j++;
+                }
+            }
+            return matched;
+        };
+    }
+
+    /**
+     * @param column the index of the column
+     * @param operator the relational operator, one of =, !=, <, <=, >, >=
+     * @param value the constant the column is compared to, of the column's type
+     * @return the predicate, or null if the operator or the type of the constant is not known
+     */
+    static BatchPredicate compare(int column, String operator, Object value) {
+        int accepted = accepted(operator);
+        if (accepted == 0) {
+            return null;
+        }
+        if (value instanceof Integer i) {
+            return compareInts(column, accepted, i);
+        } else if (value instanceof Double d) {
+            return compareDoubles(column, accepted, d);
+        } else if (value instanceof Boolean b) {
+            return compareBools(column, accepted, b);
+        } else if (value instanceof String s) {
+            return compareStrings(column, accepted, s);
+        }
+        return null;
+    }
+
+    /**
+     * @param operator a relational operator
+     * @return the results of a comparison the operator accepts, where bit cmp + 1 stands for a result of cmp, or 0 if
+     *         the operator is not known
+     */
+    static int accepted(String operator) {
+        return switch (operator) {
+            case "<" -> 0b001;
+            case "=" -> 0b010;
+            case ">" -> 0b100;
+            case "<=" -> 0b011;
+            case ">=" -> 0b110;
+            case "!=" -> 0b101;
+            default -> 0;
+        };
+    }
+
+    // each comparison writes every row and only counts the matching ones, so the loops do not branch on the values
+
+    private static BatchPredicate compareInts(int column, int accepted, int value) {
+        return (batch, in, count, out) -> {
+            int[] values = batch.ints[column];
+            boolean[] nulls = batch.nulls[column];
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                int row = in[i];
+                out[matched] = row;
+                matched += (accepted >>> (Integer.compare(values[row], value) + 1)) & (nulls[row] ? 0 : 1);
+            }
+            return matched;
+        };
+    }
+
+    private static BatchPredicate compareDoubles(int column, int accepted, double value) {
+        return (batch, in, count, out) -> {
+            double[] values = batch.doubles[column];
+            boolean[] nulls = batch.nulls[column];
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                int row = in[i];
+                out[matched] = row;
+                matched += (accepted >>> (Double.compare(values[row], value) + 1)) & (nulls[row] ? 0 : 1);
+            }
+            return matched;
+        };
+    }
+
+    private static BatchPredicate compareBools(int column, int accepted, boolean value) {
+        return (batch, in, count, out) -> {
+            boolean[] values = batch.bools[column];
+            boolean[] nulls = batch.nulls[column];
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                int row = in[i];
+                out[matched] = row;
+                matched += (accepted >>> (Boolean.compare(values[row], value) + 1)) & (nulls[row] ? 0 : 1);
+            }
+            return matched;
+        };
+    }
+
+    private static BatchPredicate compareStrings(int column, int accepted, String value) {
+        byte[] bytes = value.getBytes();
+        boolean ascii = true;
+        for (byte b : bytes) {
+            ascii &= b >= 0;
+        }
+        if (!ascii) {
+            // the order of encoded bytes can differ from the order of the strings past the first characters
+            return (batch, in, count, out) -> {
+                boolean[] nulls = batch.nulls[column];
+                int matched = 0;
+                for (int i = 0; i < count; i++) {
+                    int row = in[i];
+                    out[matched] = row;
+                    if (!nulls[row]) {
+                        matched += (accepted >>> (Integer.signum(batch.string(column, row).compareTo(value)) + 1)) & 1;
+                    }
+                }
+                return matched;
+            };
+        }
+        // against a constant of single byte characters, the encoded bytes compare like the strings
+        return (batch, in, count, out) -> {
+            byte[] chars = batch.chars[column];
+            int[] offsets = batch.offsets[column];
+            boolean[] nulls = batch.nulls[column];
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                int row = in[i];
+                out[matched] = row;
+                int cmp = Arrays.compareUnsigned(chars, offsets[row], offsets[row + 1], bytes, 0, bytes.length);
+                matched += (accepted >>> (Integer.signum(cmp) + 1)) & (nulls[row] ? 0 : 1);
+            }
+            return matched;
+        };
+    }
+}
@@ -0,0 +1,90 @@
+package operator;
+
+import page.ColumnBatch;
+import page.RecordEntry;
+import table.TableSchema;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Turns the selected rows of column batches into rows, boxing only the values of the columns which are kept. A
+ * projection of these rows picks the columns to box instead of copying rows which were already built.
+ */
+public class BatchRows implements RowIterator {
+    private final TableSchema schema;
+    private final Iterator<ColumnBatch> batches;
+    private final int[] columns;
+    private final int sortedColumn;
+
+    private ColumnBatch batch = null;
+    private int index = 0;
+
+    /**
+     * @param schema the schema of the batches
+     * @param batches the batches, whose selections hold the rows to return
+     * @param sortedColumn the index of the column the rows are in ascending order of, or -1 if they are in no order
+     */
+    public BatchRows(TableSchema schema, Iterator<ColumnBatch> batches, int sortedColumn) {
+        this(schema, batches, allColumns(schema), sortedColumn);
+    }
+
+    private BatchRows(TableSchema schema, Iterator<ColumnBatch> batches, int[] columns, int sortedColumn) {
+        this.schema = schema;
+        this.batches = batches;
+        this.columns = columns;
+        this.sortedColumn = sortedColumn;
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public int getSortedColumn() {
+        return sortedColumn;
+    }
+
+    @Override
+    public RowIterator project(int[] columnIndices) {
+        int[] kept = Project.kept(schema, columnIndices);
+        int[] projected = new int[kept.length];
+        for (int i = 0; i < kept.length; i++) {
+            projected[i] = columns[kept[i]];
+        }
+        return new BatchRows(Project.schema(schema, kept), batches, projected, Project.sortedColumn(kept, sortedColumn));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (batch == null || index >= batch.selected) {
+            if (!batches.hasNext()) {
+                return false;
+            }
+            batch = batches.next();
+            index = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public RecordEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.row(batch.selection[index++], columns);
+    }
+
+    /**
+     * @param schema a schema
+     * @return the index of every column of the schema
+     */
+    private static int[] allColumns(TableSchema schema) {
+        int[] columns = new int[schema.names.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = i;
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,61 @@
+package operator;
+
+import page.RecordEntry;
+import table.TableSchema;
+
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the rows of its input which match a predicate, in the order of the input
+ */
+public class Filter implements RowIterator {
+    private final RowIterator input;
+    private final Predicate<RecordEntry> predicate;
+    private RecordEntry next = null;
+
+    /**
+     * @param input the rows to filter
+     * @param predicate the predicate the rows which are kept match
+     */
+    public Filter(RowIterator input, Predicate<RecordEntry> predicate) {
+        this.input = input;
+        this.predicate = predicate;
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return input.getSchema();
+    }
+
+    @Override
+    public int getSortedColumn() {
+        return input.getSortedColumn();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && input.hasNext()) {
+            RecordEntry row = input.next();
+            if (predicate.test(row)) {
+                next = row;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public RecordEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RecordEntry row = next;
+        next = null;
+        return row;
+    }
+
+    @Override
+    public void close() {
+        input.close();
+    }
+}
@@ -0,0 +1,340 @@
+package operator;
+
+import page.RecordCodec;
+import page.RecordEntry;
+import table.TableSchema;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Pairs the rows of its left and right inputs whose key columns are equal, as a hash join.
+ * <p>
+ * The rows of one input, the build side, are read into a hash table by their keys, and each row of the other input,
+ * the probe side, is paired with the rows of the build side which have its key. Each input is read once. Rows with
+ * a null key column are paired with nothing.
+ * <p>
+ * When the build side's rows take more than the memory budget, both inputs are split into partition files by the
+ * hash of their keys, and the partitions are joined one at a time, so only one partition of the build side is held
+ * in memory at once. A partition which still exceeds the budget, as when many rows share a key, is held whole.
+ */
+public class HashJoin implements RowIterator {
+    /**
+     * Size in encoded bytes of the build side's rows held in memory before they are partitioned
+     */
+    private static final long MEMORY_BYTES = 1 << 24;
+    /**
+     * Amount of partitions the inputs are split into when the build side does not fit in memory
+     */
+    private static final int PARTITIONS = 32;
+
+    private final RowIterator left;
+    private final RowIterator right;
+    private final int[] leftKeys;
+    private final int[] rightKeys;
+    private final boolean buildLeft;
+    private final Path tempDir;
+    private final long memoryBytes;
+    private final TableSchema schema;
+
+    private final Map<List<Object>, List<RecordEntry>> table = new HashMap<>();
+    private final List<Path> files = new ArrayList<>();
+    private final List<DataInputStream> readers = new ArrayList<>();
+    private Path[] buildFiles = null;
+    private Path[] probeFiles = null;
+    private int partition = 0;
+
+    private boolean built = false;
+    private Iterator<RecordEntry> probe;
+    private RecordEntry probeRow = null;
+    private List<RecordEntry> matches = List.of();
+    private int matchIndex = 0;
+
+    /**
+     * @param left the left rows, whose columns come first
+     * @param right the right rows
+     * @param leftKeys the indices of the key columns of the left rows
+     * @param rightKeys the indices of the key columns of the right rows, in the order of the left ones
+     * @param buildLeft if the left rows are read into the hash table, rather than the right rows
+     * @param tempDir the directory the partitions are spilled to
+     */
+    public HashJoin(RowIterator left, RowIterator right, int[] leftKeys, int[] rightKeys, boolean buildLeft, Path tempDir) {
+        this(left, right, leftKeys, rightKeys, buildLeft, tempDir, MEMORY_BYTES);
+    }
+
+    /**
+     * @param left the left rows, whose columns come first
+     * @param right the right rows
+     * @param leftKeys the indices of the key columns of the left rows
+     * @param rightKeys the indices of the key columns of the right rows, in the order of the left ones
+     * @param buildLeft if the left rows are read into the hash table, rather than the right rows
+     * @param tempDir the directory the partitions are spilled to
+     * @param memoryBytes the size in encoded bytes of the build side's rows held in memory before they are partitioned
+     */
+    HashJoin(RowIterator left, RowIterator right, int[] leftKeys, int[] rightKeys, boolean buildLeft, Path tempDir,
+             long memoryBytes) {
+        this.left = left;
+        this.right = right;
+        this.leftKeys = leftKeys;
+        this.rightKeys = rightKeys;
+        this.buildLeft = buildLeft;
+        this.tempDir = tempDir;
+        this.memoryBytes = memoryBytes;
+        this.schema = TableSchema.merge(left.getSchema(), right.getSchema(), -1);
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            if (!built) {
+                build();
+                built = true;
+            }
+            while (matchIndex >= matches.size()) {
+                if (!probe.hasNext()) {
+                    if (probeFiles == null || partition >= PARTITIONS) {
+                        return false;
+                    }
+                    loadPartition();
+                    continue;
+                }
+                probeRow = probe.next();
+                List<Object> key = key(probeRow, buildLeft ? rightKeys : leftKeys);
+                matches = key == null ? List.of() : table.getOrDefault(key, List.of());
+                matchIndex = 0;
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public RecordEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RecordEntry buildRow = matches.get(matchIndex++);
+        List<Object> values = new ArrayList<>(buildLeft ? buildRow.data : probeRow.data);
+        values.addAll(buildLeft ? probeRow.data : buildRow.data);
+        return new RecordEntry(values);
+    }
+
+    @Override
+    public void close() {
+        left.close();
+        right.close();
+        try {
+            for (DataInputStream reader : readers) {
+                reader.close();
+            }
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read the build side into the hash table, or into partition files once it exceeds the memory budget, in which
+     * case the probe side is partitioned too
+     */
+    private void build() throws IOException {
+        RowIterator build = buildLeft ? left : right;
+        RowIterator probeSide = buildLeft ? right : left;
+        int[] buildKeys = buildLeft ? leftKeys : rightKeys;
+        int[] probeKeys = buildLeft ? rightKeys : leftKeys;
+        RecordCodec buildCodec = spillCodec(build.getSchema());
+
+        long bytes = 0;
+        DataOutputStream[] buildOut = null;
+        while (build.hasNext()) {
+            RecordEntry row = build.next();
+            List<Object> key = key(row, buildKeys);
+            if (key == null) {
+                continue;
+            }
+            if (buildOut != null) {
+                write(buildOut, buildCodec, key, row);
+                continue;
+            }
+            table.computeIfAbsent(key, k -> new ArrayList<>()).add(row);
+            bytes += buildCodec.encode(row).capacity();
+            if (bytes > memoryBytes) {
+                // the build side does not fit, so every row read so far moves to the partitions
+                buildFiles = createPartitions();
+                buildOut = open(buildFiles);
+                for (Map.Entry<List<Object>, List<RecordEntry>> entry : table.entrySet()) {
+                    for (RecordEntry held : entry.getValue()) {
+                        write(buildOut, buildCodec, entry.getKey(), held);
+                    }
+                }
+                table.clear();
+            }
+        }
+        if (buildOut == null) {
+            probe = probeSide;
+            return;
+        }
+        close(buildOut);
+
+        RecordCodec probeCodec = spillCodec(probeSide.getSchema());
+        probeFiles = createPartitions();
+        DataOutputStream[] probeOut = open(probeFiles);
+        while (probeSide.hasNext()) {
+            RecordEntry row = probeSide.next();
+            List<Object> key = key(row, probeKeys);
+            if (key != null) {
+                write(probeOut, probeCodec, key, row);
+            }
+        }
+        close(probeOut);
+        probe = Collections.emptyIterator();
+    }
+
+    /**
+     * Read the next partition of the build side into the hash table, and probe it with the same partition of the
+     * probe side
+     */
+    private void loadPartition() throws IOException {
+        RowIterator build = buildLeft ? left : right;
+        RowIterator probeSide = buildLeft ? right : left;
+        int[] buildKeys = buildLeft ? leftKeys : rightKeys;
+        table.clear();
+        Iterator<RecordEntry> buildRows = read(buildFiles[partition], spillCodec(build.getSchema()));
+        while (buildRows.hasNext()) {
+            RecordEntry row = buildRows.next();
+            table.computeIfAbsent(key(row, buildKeys), k -> new ArrayList<>()).add(row);
+        }
+        probe = read(probeFiles[partition], spillCodec(probeSide.getSchema()));
+        partition++;
+    }
+
+    /**
+     * @param row a row
+     * @param keys the indices of the key columns
+     * @return the values of the key columns, or null if any is null
+     */
+    private static List<Object> key(RecordEntry row, int[] keys) {
+        List<Object> key = new ArrayList<>(keys.length);
+        for (int i : keys) {
+            Object value = row.data.get(i);
+            if (value == null) {
+                return null;
+            }
+            key.add(value);
+        }
+        return key;
+    }
+
+    /**
+     * @param schema the schema of an input
+     * @return a codec for the input's rows, which can hold nulls in every column
+     */
+    private static RecordCodec spillCodec(TableSchema schema) {
+        int columns = schema.names.size();
+        return new RecordCodec(new TableSchema(schema.names, schema.types, schema.sizes, schema.defaultValues,
+                new ArrayList<>(Collections.nCopies(columns, false)), new ArrayList<>(Collections.nCopies(columns, true)),
+                -1, false));
+    }
+
+    /**
+     * @return a new file for each partition, which is deleted when the join is closed
+     */
+    private Path[] createPartitions() throws IOException {
+        Path[] partitions = new Path[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = Files.createTempFile(tempDir, "join", ".tmp");
+            files.add(partitions[i]);
+        }
+        return partitions;
+    }
+
+    private static DataOutputStream[] open(Path[] partitions) throws IOException {
+        DataOutputStream[] out = new DataOutputStream[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            out[i] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partitions[i])));
+        }
+        return out;
+    }
+
+    private static void close(DataOutputStream[] out) throws IOException {
+        for (DataOutputStream stream : out) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Write a row to the partition of its key, as the length of the encoded row followed by the row
+     */
+    private static void write(DataOutputStream[] out, RecordCodec codec, List<Object> key, RecordEntry row) throws IOException {
+        // the hash table uses the low bits of the hash, so the partition is picked from the high bits
+        int hash = key.hashCode() * 0x9E3779B9;
+        DataOutputStream stream = out[Math.floorMod(hash >> 16, PARTITIONS)];
+        ByteBuffer encoded = codec.encode(row);
+        stream.writeInt(encoded.capacity());
+        stream.write(encoded.array(), 0, encoded.capacity());
+    }
+
+    /**
+     * @param file a partition
+     * @param codec the codec of its rows
+     * @return the rows of the partition, which are read as they are asked for
+     */
+    private Iterator<RecordEntry> read(Path file, RecordCodec codec) throws IOException {
+        DataInputStream reader = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        readers.add(reader);
+        return new Iterator<>() {
+            private RecordEntry next = advance();
+
+            private RecordEntry advance() {
+                try {
+                    int length = reader.readInt();
+                    byte[] encoded = new byte[length];
+                    reader.readFully(encoded);
+                    return codec.decode(ByteBuffer.wrap(encoded));
+                } catch (EOFException e) {
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public RecordEntry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                RecordEntry row = next;
+                next = advance();
+                return row;
+            }
+        };
+    }
+}
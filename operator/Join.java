@@ -0,0 +1,99 @@
+package operator;
+
+import page.RecordEntry;
+import table.TableSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * Pairs every row of its left input with every row of its right input, as a block nested loop.
+ * <p>
+ * The left rows are read a block at a time, and the right input is read once for each block, pairing each right
+ * row with every row of the block in turn. The right input is opened again for every block, so it must be a source
+ * which can be read more than once, such as a table.
+ */
+public class Join implements RowIterator {
+    /**
+     * Amount of left rows held in memory at once, for each of which the right input is not read again
+     */
+    private static final int BLOCK_ROWS = 1 << 12;
+
+    private final RowIterator left;
+    private final Supplier<RowIterator> rightSource;
+    private final TableSchema schema;
+
+    private final List<RecordEntry> block = new ArrayList<>();
+    private RowIterator right;
+    private RecordEntry rightRow = null;
+    private int blockIndex = 0;
+
+    /**
+     * @param left the left rows, whose columns come first
+     * @param rightSource opens the right rows each time they are read
+     */
+    public Join(RowIterator left, Supplier<RowIterator> rightSource) {
+        this.left = left;
+        this.rightSource = rightSource;
+        // the first block reads the right rows opened here
+        this.right = rightSource.get();
+        this.schema = TableSchema.merge(left.getSchema(), right.getSchema(), -1);
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (rightRow == null || blockIndex >= block.size()) {
+            if (!block.isEmpty()) {
+                if (right.hasNext()) {
+                    rightRow = right.next();
+                    blockIndex = 0;
+                    continue;
+                }
+                if (rightRow == null) {
+                    // the right input has no rows to pair with any block
+                    return false;
+                }
+                // the block is paired with every right row, so read the next block and the right rows again
+                right.close();
+                right = null;
+                block.clear();
+                rightRow = null;
+            }
+            while (block.size() < BLOCK_ROWS && left.hasNext()) {
+                block.add(left.next());
+            }
+            if (block.isEmpty()) {
+                return false;
+            }
+            if (right == null) {
+                right = rightSource.get();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public RecordEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<Object> values = new ArrayList<>(block.get(blockIndex++).data);
+        values.addAll(rightRow.data);
+        return new RecordEntry(values);
+    }
+
+    @Override
+    public void close() {
+        if (right != null) {
+            right.close();
+        }
+        left.close();
+    }
+}
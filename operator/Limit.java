@@ -0,0 +1,52 @@
+package operator;
+
+import page.RecordEntry;
+import table.TableSchema;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Keeps the first rows of its input, and stops reading the input once it has them
+ */
+public class Limit implements RowIterator {
+    private final RowIterator input;
+    private int remaining;
+
+    /**
+     * @param input the rows to limit
+     * @param count the amount of rows to keep
+     */
+    public Limit(RowIterator input, int count) {
+        this.input = input;
+        this.remaining = count;
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return input.getSchema();
+    }
+
+    @Override
+    public int getSortedColumn() {
+        return input.getSortedColumn();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return remaining > 0 && input.hasNext();
+    }
+
+    @Override
+    public RecordEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        remaining--;
+        return input.next();
+    }
+
+    @Override
+    public void close() {
+        input.close();
+    }
+}
@@ -0,0 +1,108 @@
+package operator;
+
+import page.RecordEntry;
+import table.TableSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps some of the columns of each row of its input. The columns keep the order they have in the input, and a
+ * column which is asked for twice is kept once.
+ */
+public class Project implements RowIterator {
+    private final RowIterator input;
+    private final TableSchema schema;
+    private final int[] kept;
+
+    /**
+     * @param input the rows to project
+     * @param columnIndices the indices of the columns to keep
+     */
+    public Project(RowIterator input, int[] columnIndices) {
+        this.input = input;
+        this.kept = kept(input.getSchema(), columnIndices);
+        this.schema = schema(input.getSchema(), kept);
+    }
+
+    /**
+     * @param schema the schema of the input
+     * @param columnIndices the indices of the columns to keep
+     * @return the indices of the kept columns, in the order of the input, each once
+     */
+    static int[] kept(TableSchema schema, int[] columnIndices) {
+        boolean[] asked = new boolean[schema.names.size()];
+        int count = 0;
+        for (int i : columnIndices) {
+            if (!asked[i]) {
+                asked[i] = true;
+                count++;
+            }
+        }
+        int[] kept = new int[count];
+        int next = 0;
+        for (int i = 0; i < asked.length; i++) {
+            if (asked[i]) {
+                kept[next++] = i;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @param schema the schema of the input
+     * @param kept the indices of the kept columns
+     * @return the schema of the kept columns
+     */
+    static TableSchema schema(TableSchema schema, int[] kept) {
+        List<Integer> indices = new ArrayList<>(kept.length);
+        for (int i : kept) {
+            indices.add(i);
+        }
+        return TableSchema.filter(schema, indices);
+    }
+
+    /**
+     * @param kept the indices of the kept columns
+     * @param sortedColumn the index of the column the input is sorted on, or -1
+     * @return the index among the kept columns of the column the input is sorted on, or -1 if it is not kept
+     */
+    static int sortedColumn(int[] kept, int sortedColumn) {
+        for (int i = 0; i < kept.length; i++) {
+            if (kept[i] == sortedColumn) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public int getSortedColumn() {
+        return sortedColumn(kept, input.getSortedColumn());
+    }
+
+    @Override
+    public boolean hasNext() {
+        return input.hasNext();
+    }
+
+    @Override
+    public RecordEntry next() {
+        RecordEntry row = input.next();
+        List<Object> values = new ArrayList<>(kept.length);
+        for (int i : kept) {
+            values.add(row.data.get(i));
+        }
+        return new RecordEntry(values);
+    }
+
+    @Override
+    public void close() {
+        input.close();
+    }
+}
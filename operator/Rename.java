@@ -0,0 +1,50 @@
+package operator;
+
+import page.RecordEntry;
+import table.TableSchema;
+
+/**
+ * Passes on the rows of its input under another schema with the same columns, such as one which names each column
+ * by its table
+ */
+public class Rename implements RowIterator {
+    private final RowIterator input;
+    private final TableSchema schema;
+
+    /**
+     * @param input the rows to rename
+     * @param schema the schema of the rows, whose columns are those of the input in the same order
+     */
+    public Rename(RowIterator input, TableSchema schema) {
+        if (schema.names.size() != input.getSchema().names.size()) {
+            throw new IllegalArgumentException("A renamed schema must have the columns of its input");
+        }
+        this.input = input;
+        this.schema = schema;
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public int getSortedColumn() {
+        return input.getSortedColumn();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return input.hasNext();
+    }
+
+    @Override
+    public RecordEntry next() {
+        return input.next();
+    }
+
+    @Override
+    public void close() {
+        input.close();
+    }
+}
@@ -0,0 +1,73 @@
+package operator;
+
+import page.RecordEntry;
+import table.TableSchema;
+
+import java.util.Iterator;
+
+/**
+ * A stream of rows which are pulled one at a time, which a query is built from by wrapping one operator in another.
+ * <p>
+ * Each operator produces a row only when it is asked for one, so a query holds only the rows its operators need at
+ * once, and nothing is written to disk unless an operator has to spill. Closing an operator closes its inputs.
+ */
+public interface RowIterator extends Iterator<RecordEntry>, AutoCloseable {
+    /**
+     * @return the schema of the rows
+     */
+    TableSchema getSchema();
+
+    /**
+     * @return the index of the column the rows are in ascending order of, or -1 if they are in no known order
+     */
+    default int getSortedColumn() {
+        return -1;
+    }
+
+    /**
+     * Keep some of the columns of each row, in the order they have in these rows, and each once
+     *
+     * @param columnIndices the indices of the columns to keep
+     * @return the projected rows, which replace these rows
+     */
+    default RowIterator project(int[] columnIndices) {
+        return new Project(this, columnIndices);
+    }
+
+    /**
+     * Release anything the rows are held in, such as the files an operator spilled to
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * @param schema the schema of the rows
+     * @param rows the rows
+     * @param sortedColumn the index of the column the rows are in ascending order of, or -1 if they are in no order
+     * @return the rows as a row iterator which holds nothing to close
+     */
+    static RowIterator of(TableSchema schema, Iterator<RecordEntry> rows, int sortedColumn) {
+        return new RowIterator() {
+            @Override
+            public TableSchema getSchema() {
+                return schema;
+            }
+
+            @Override
+            public int getSortedColumn() {
+                return sortedColumn;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public RecordEntry next() {
+                return rows.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+package operator;
+
+import page.RecordCodec;
+import page.RecordEntry;
+import table.ExternalSort;
+import table.TableSchema;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Orders the rows of its input by one column, keeping the input order of rows with the same value. Null values come
+ * first.
+ * <p>
+ * Every row of the input is read when the first row is asked for. The rows are sorted in memory while they fit in
+ * one run, and are otherwise spilled to sorted files which are merged as the rows are read.
+ */
+public class Sort implements RowIterator {
+    /**
+     * Size in encoded bytes of the sorted runs held in memory
+     */
+    private static final long RUN_BYTES = 1 << 24;
+
+    private final RowIterator input;
+    private final int columnIndex;
+    private final Path tempDir;
+    private ExternalSort sort = null;
+    private Iterator<RecordEntry> sorted = null;
+
+    /**
+     * @param input the rows to sort
+     * @param columnIndex the index of the column to sort on
+     * @param tempDir the directory the runs are spilled to
+     */
+    public Sort(RowIterator input, int columnIndex, Path tempDir) {
+        this.input = input;
+        this.columnIndex = columnIndex;
+        this.tempDir = tempDir;
+    }
+
+    @Override
+    public TableSchema getSchema() {
+        return input.getSchema();
+    }
+
+    @Override
+    public int getSortedColumn() {
+        return columnIndex;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (sorted == null) {
+            try {
+                sort();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return sorted.hasNext();
+    }
+
+    @Override
+    public RecordEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return sorted.next();
+    }
+
+    @Override
+    public void close() {
+        input.close();
+        if (sort != null) {
+            try {
+                sort.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Read every row of the input into the sort
+     */
+    private void sort() throws IOException {
+        // the sort orders rows by their primary key, so the column becomes the key of the runs' schema
+        TableSchema schema = input.getSchema();
+        int columns = schema.names.size();
+        TableSchema keyed = new TableSchema(schema.names, schema.types, schema.sizes, schema.defaultValues,
+                new ArrayList<>(Collections.nCopies(columns, false)), new ArrayList<>(Collections.nCopies(columns, true)),
+                columnIndex, false);
+        sort = new ExternalSort(new RecordCodec(keyed), tempDir, RUN_BYTES);
+        while (input.hasNext()) {
+            sort.add(input.next());
+        }
+        sorted = sort.sorted();
+    }
+}
@@ -0,0 +1,210 @@
+package page;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import table.TableSchema;
+
+/**
+ * The rows of some pages of a table, stored a column at a time so filters can run over primitive arrays instead of
+ * boxed entries.
+ * <p>
+ * Each column keeps its values in an array of its type: ints, doubles or booleans, and strings as their bytes with
+ * the offset each row's bytes start at. Every column also marks which rows are null. The selection holds the rows
+ * which are still part of the batch, in ascending order, so a filter narrows it without moving any values.
+ */
+public class ColumnBatch {
+    /**
+     * Amount of rows a batch is sized for, which is exceeded when the pages of a batch hold more
+     */
+    public static final int BATCH_ROWS = 1 << 10;
+
+    public final TableSchema schema;
+    public final int[][] ints;
+    public final double[][] doubles;
+    public final boolean[][] bools;
+    /**
+     * The bytes of the strings of each string column, where row i is at [offsets[i], offsets[i + 1])
+     */
+    public final byte[][] chars;
+    public final int[][] offsets;
+    public final boolean[][] nulls;
+
+    /**
+     * The rows which are selected, in ascending order, of which the first {@link #selected} are in use
+     */
+    public int[] selection;
+    public int selected = 0;
+
+    private int size = 0;
+    private int capacity;
+
+    /**
+     * @param schema the schema of the rows
+     * @param capacity the amount of rows to make room for
+     */
+    public ColumnBatch(TableSchema schema, int capacity) {
+        this.schema = schema;
+        this.capacity = Math.max(1, capacity);
+        int columns = schema.types.size();
+        ints = new int[columns][];
+        doubles = new double[columns][];
+        bools = new boolean[columns][];
+        chars = new byte[columns][];
+        offsets = new int[columns][];
+        nulls = new boolean[columns][];
+        for (int i = 0; i < columns; i++) {
+            switch (schema.types.get(i)) {
+                case INT -> ints[i] = new int[this.capacity];
+                case DOUBLE -> doubles[i] = new double[this.capacity];
+                case BOOL -> bools[i] = new boolean[this.capacity];
+                case CHAR_FIXED, CHAR_VAR -> {
+                    chars[i] = new byte[this.capacity * 8];
+                    offsets[i] = new int[this.capacity + 1];
+                }
+            }
+            nulls[i] = new boolean[this.capacity];
+        }
+        selection = new int[this.capacity];
+    }
+
+    /**
+     * @return the amount of rows in the batch, selected or not
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Select every row of the batch
+     */
+    public void selectAll() {
+        for (int i = 0; i < size; i++) {
+            selection[i] = i;
+        }
+        selected = size;
+    }
+
+    /**
+     * Make room for one more row, whose values are then set by the caller
+     *
+     * @return the index of the row
+     */
+    int addRow() {
+        if (size == capacity) {
+            grow();
+        }
+        int row = size++;
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] != null) {
+                offsets[i][row + 1] = offsets[i][row];
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Copy the bytes of a string value of the last row from a buffer
+     *
+     * @param column the index of the string column
+     * @param buf the buffer, with position at the bytes, which is moved past them
+     * @param length the amount of bytes of the string
+     */
+    void putString(int column, ByteBuffer buf, int length) {
+        int row = size - 1;
+        int start = offsets[column][row];
+        if (start + length > chars[column].length) {
+            chars[column] = Arrays.copyOf(chars[column], Math.max(chars[column].length * 2, start + length));
+        }
+        buf.get(chars[column], start, length);
+        offsets[column][row + 1] = start + length;
+    }
+
+    /**
+     * Add a row from an entry, for rows which were not decoded into the batch directly
+     *
+     * @param entry the entry, which matches the schema
+     */
+    public void add(RecordEntry entry) {
+        int row = addRow();
+        for (int i = 0; i < entry.data.size(); i++) {
+            Object value = entry.data.get(i);
+            if (value == null) {
+                nulls[i][row] = true;
+                continue;
+            }
+            nulls[i][row] = false;
+            switch (schema.types.get(i)) {
+                case INT -> ints[i][row] = (Integer) value;
+                case DOUBLE -> doubles[i][row] = (Double) value;
+                case BOOL -> bools[i][row] = (Boolean) value;
+                case CHAR_FIXED, CHAR_VAR -> {
+                    byte[] bytes = ((String) value).getBytes();
+                    putString(i, ByteBuffer.wrap(bytes), bytes.length);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param column the index of a string column
+     * @param row the row
+     * @return the string value of the row
+     */
+    public String string(int column, int row) {
+        int start = offsets[column][row];
+        return new String(chars[column], start, offsets[column][row + 1] - start);
+    }
+
+    /**
+     * @param column the index of the column
+     * @param row the row
+     * @return the value of the row, boxed
+     */
+    public Object value(int column, int row) {
+        if (nulls[column][row]) {
+            return null;
+        }
+        return switch (schema.types.get(column)) {
+            case INT -> ints[column][row];
+            case DOUBLE -> doubles[column][row];
+            case BOOL -> bools[column][row];
+            case CHAR_FIXED, CHAR_VAR -> string(column, row);
+        };
+    }
+
+    /**
+     * @param row the row
+     * @param columns the indices of the columns to keep, in order
+     * @return the entry holding the row's values of the columns
+     */
+    public RecordEntry row(int row, int[] columns) {
+        List<Object> values = new ArrayList<>(columns.length);
+        for (int column : columns) {
+            values.add(value(column, row));
+        }
+        return new RecordEntry(values);
+    }
+
+    /**
+     * Double the amount of rows the batch has room for
+     */
+    private void grow() {
+        capacity *= 2;
+        for (int i = 0; i < nulls.length; i++) {
+            if (ints[i] != null) {
+                ints[i] = Arrays.copyOf(ints[i], capacity);
+            } else if (doubles[i] != null) {
+                doubles[i] = Arrays.copyOf(doubles[i], capacity);
+            } else if (bools[i] != null) {
+                bools[i] = Arrays.copyOf(bools[i], capacity);
+            } else if (offsets[i] != null) {
+                offsets[i] = Arrays.copyOf(offsets[i], capacity + 1);
+            }
+            nulls[i] = Arrays.copyOf(nulls[i], capacity);
+        }
+        selection = Arrays.copyOf(selection, capacity);
+    }
+}
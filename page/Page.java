@@ -6,7 +6,27 @@ import java.util.List;
 
 // Author: Spencer Warren
 
+/**
+ * A page of a table or an index.
+ * <p>
+ * A table page holds the amount of entries, followed by each entry in key order. Every entry is prefixed with a
+ * slot number which stays the same while the entry is on the page, so index pointers refer to the slot rather than
+ * the position, and entries can move within the page without updating the index.
+ * <p>
+ * The int holding the amount of entries also holds the version of the table's schema the entries were written in,
+ * in the bits above the amount, so pages written before the schema changed are still read in their own layout.
+ * Pages of a catalog with no format version have no slot numbers, and are converted when the database is opened.
+ */
 public class Page {
+    /**
+     * Size of the slot number before each entry
+     */
+    public static final int SLOT_BYTES = Short.BYTES;
+    /**
+     * Amount of low bits of a table page's first int which hold the amount of entries, since slots are shorts
+     */
+    private static final int COUNT_BITS = 16;
+
     public final int tableId;
     public final int num;
     public final boolean isIndex;
@@ -36,35 +56,98 @@ public class Page {
      * @return the data stored
      */
     public List<RecordEntry> read(RecordCodec codec, int limit) {
-        buf.rewind();
-        int count = Math.min(buf.getInt(), limit);
+        return read(codec, limit, null);
+    }
+
+    /**
+     * Read the contents of the page
+     *
+     * @param codec the codec for the data
+     * @param slots if not null, receives the slot of each entry, in order
+     * @return the data stored
+     */
+    public List<RecordEntry> read(RecordCodec codec, List<Integer> slots) {
+        return read(codec, Integer.MAX_VALUE, slots);
+    }
+
+    private List<RecordEntry> read(RecordCodec codec, int limit, List<Integer> slots) {
+        // a view of the buffer has its own position, so several threads can read the page at once
+        ByteBuffer buf = this.buf.duplicate().rewind();
+        int header = buf.getInt();
+        int count = Math.min(count(header), limit);
         List<RecordEntry> list = new ArrayList<>(count);
         for (int i = 0; i < count; i++) {
-            list.add(codec.decode(buf));
+            int slot = Short.toUnsignedInt(buf.getShort());
+            if (slots != null) {
+                slots.add(slot);
+            }
+            list.add(codec.decode(buf, version(header)));
         }
-        buf.rewind();
         return list;
     }
 
-    public int getSize(RecordCodec codec) {
-        buf.rewind();
+    /**
+     * Read the contents of a table page written before entries had slot numbers, which holds the amount of entries
+     * followed by the entries, all in the first version of the schema
+     *
+     * @param codec the codec for the data
+     * @return the data stored
+     */
+    public List<RecordEntry> readUnslotted(RecordCodec codec) {
+        ByteBuffer buf = this.buf.duplicate().rewind();
         int count = buf.getInt();
+        List<RecordEntry> list = new ArrayList<>(count);
         for (int i = 0; i < count; i++) {
-            codec.decode(buf);
+            list.add(codec.decode(buf, 0));
         }
-        int size = buf.position();
-        buf.rewind();
-        return size;
+        return list;
     }
 
     /**
-     * Write the contents of the page
+     * Decode the contents of the page into new rows of a batch
+     *
+     * @param codec the codec for the data
+     * @param batch the batch, whose schema is the codec's
+     */
+    public void readColumns(RecordCodec codec, ColumnBatch batch) {
+        ByteBuffer buf = this.buf.duplicate().rewind();
+        int header = buf.getInt();
+        for (int i = 0; i < count(header); i++) {
+            buf.position(buf.position() + SLOT_BYTES);
+            codec.decodeInto(buf, version(header), batch);
+        }
+    }
+
+    public int getSize(RecordCodec codec) {
+        ByteBuffer buf = this.buf.duplicate().rewind();
+        int header = buf.getInt();
+        for (int i = 0; i < count(header); i++) {
+            buf.position(buf.position() + SLOT_BYTES);
+            codec.decode(buf, version(header));
+        }
+        return buf.position();
+    }
+
+    /**
+     * Write the contents of the page, giving the entries consecutive slots
      * @param codec the codec for the data
      * @param list the list of entries to write
      * @param start the starting position within the list
      * @return the amount of entries written
      */
     public int write(RecordCodec codec, List<RecordEntry> list, int start) {
+        return write(codec, list, null, start);
+    }
+
+    /**
+     * Write the contents of the page
+     * @param codec the codec for the data
+     * @param list the list of entries to write
+     * @param slots the slot of each entry in the list, or null to give the written entries consecutive slots
+     * @param start the starting position within the list
+     * @return the amount of entries written
+     */
+    public int write(RecordCodec codec, List<RecordEntry> list, List<Integer> slots, int start) {
         if (list.isEmpty() || start >= list.size()) {
             return 0;
         }
@@ -73,15 +156,16 @@ public class Page {
         int written = 0;
         for (int i = start; i < list.size(); i++) {
             ByteBuffer encoded = codec.encode(list.get(i));
-            if (buf.position() + encoded.capacity() < buf.capacity()) {
+            if (buf.position() + SLOT_BYTES + encoded.capacity() < buf.capacity()) {
                 encoded.rewind();
+                buf.putShort((short) (slots == null ? i - start : slots.get(i)));
                 buf.put(encoded);
                 written++;
             } else {
                 buf.rewind();
-                int currentAmount = buf.getInt();
+                int currentAmount = count(buf.getInt());
                 buf.rewind();
-                buf.putInt(currentAmount + written);
+                buf.putInt(header(currentAmount + written, codec.version));
                 buf.rewind();
                 return written;
             }
@@ -89,11 +173,64 @@ public class Page {
 
         int pos = buf.position();
         buf.rewind();
-        buf.putInt(written);
+        buf.putInt(header(written, codec.version));
         buf.position(pos);
         return written;
     }
 
+    /**
+     * @param codec the codec for the data
+     * @return if the entries on the page are written in the codec's version of the schema, which a page with no
+     *         entries always is
+     */
+    public boolean isWrittenIn(RecordCodec codec) {
+        int header = buf.getInt(0);
+        return count(header) == 0 || version(header) == codec.version;
+    }
+
+    /**
+     * @param count the amount of entries on a table page
+     * @param version the version of the table's schema the entries are written in
+     * @return the first int of the page
+     */
+    public static int header(int count, int version) {
+        return version << COUNT_BITS | count;
+    }
+
+    /**
+     * @param header the first int of a table page
+     * @return the amount of entries on the page
+     */
+    public static int count(int header) {
+        return header & ((1 << COUNT_BITS) - 1);
+    }
+
+    /**
+     * @param header the first int of a table page
+     * @return the version of the table's schema the entries on the page were written in
+     */
+    public static int version(int header) {
+        return header >>> COUNT_BITS;
+    }
+
+    /**
+     * @param slots the slots in use on a page
+     * @return the lowest slot which is not in use
+     */
+    public static int freeSlot(List<Integer> slots) {
+        boolean[] used = new boolean[slots.size() + 1];
+        for (int slot : slots) {
+            if (slot < used.length) {
+                used[slot] = true;
+            }
+        }
+        int slot = 0;
+        while (used[slot]) {
+            slot++;
+        }
+        return slot;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof Page page)) {
@@ -11,12 +11,81 @@ import table.TableSchema;
 
 public class RecordCodec {
     public final TableSchema schema;
+    /**
+     * The version of the schema, which counts the columns added to and dropped from the table
+     */
+    public final int version;
+    /**
+     * The codec of each earlier version of the schema, by version
+     */
+    private final List<RecordCodec> earlier;
+    /**
+     * For each earlier version, the column of its schema each column of the schema comes from, or -1 for a column
+     * added since
+     */
+    private final List<int[]> sources;
 
     /**
      * @param schema the schema of the table this codec applies to
      */
     public RecordCodec(TableSchema schema) {
+        this(schema, 0, List.of(), List.of());
+    }
+
+    /**
+     * @param schema the schema of the table this codec applies to
+     * @param version the version of the schema
+     * @param earlier the codec of each earlier version of the schema, by version
+     * @param sources for each earlier version, the column of its schema each column of the schema comes from, or
+     *                -1 for a column added since
+     */
+    public RecordCodec(TableSchema schema, int version, List<RecordCodec> earlier, List<int[]> sources) {
+        if (earlier.size() != version || sources.size() != version) {
+            throw new IllegalArgumentException("Expected " + version + " earlier versions of the schema");
+        }
         this.schema = schema;
+        this.version = version;
+        this.earlier = earlier;
+        this.sources = sources;
+    }
+
+    /**
+     * @param schema the schema after a column is added or dropped
+     * @param sources the column of this codec's schema each column of the new schema comes from, or -1 for the
+     *                added column
+     * @return the codec of the next version of the schema, which still decodes entries written in this version
+     *         and every earlier one
+     */
+    public RecordCodec alter(TableSchema schema, int[] sources) {
+        List<RecordCodec> earlier = new ArrayList<>(this.earlier);
+        earlier.add(new RecordCodec(this.schema));
+        List<int[]> allSources = new ArrayList<>(this.sources.size() + 1);
+        for (int[] columns : this.sources) {
+            int[] composed = new int[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                composed[i] = sources[i] < 0 ? -1 : columns[sources[i]];
+            }
+            allSources.add(composed);
+        }
+        allSources.add(sources.clone());
+        return new RecordCodec(schema, version + 1, earlier, allSources);
+    }
+
+    /**
+     * @param version an earlier version of the schema
+     * @return the schema of that version
+     */
+    public TableSchema earlierSchema(int version) {
+        return earlier.get(version).schema;
+    }
+
+    /**
+     * @param version an earlier version of the schema
+     * @return the column of that version's schema each column of the schema comes from, or -1 for a column added
+     *         since
+     */
+    public int[] sources(int version) {
+        return sources.get(version).clone();
     }
 
     /**
@@ -93,6 +162,30 @@ public class RecordCodec {
         return buf;
     }
 
+    /**
+     * Decode an entry written in any version of the schema. Columns added since take their default value, and
+     * columns dropped since are skipped.
+     *
+     * @param buf the encoded form, with position at the start of the region to read
+     * @param version the version of the schema the entry was written in
+     * @return the decoded form, with the columns of this version
+     */
+    public RecordEntry decode(ByteBuffer buf, int version) {
+        if (version == this.version) {
+            return decode(buf);
+        }
+        if (version > this.version) {
+            throw new IllegalStateException("Entry was written in a later version of the schema: " + version);
+        }
+        RecordEntry written = earlier.get(version).decode(buf);
+        int[] columns = sources.get(version);
+        List<Object> list = new ArrayList<>(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            list.add(columns[i] < 0 ? schema.defaultValues.get(i) : written.data.get(columns[i]));
+        }
+        return new RecordEntry(list);
+    }
+
     /**
      * @param buf the encoded form, with position at the start of the region to read
      * @return the decoded form
@@ -150,12 +243,65 @@ public class RecordCodec {
         return new RecordEntry(list);
     }
 
+    /**
+     * Decode an entry written in any version of the schema into a new row of a batch. Entries written in this
+     * version are copied into the batch's arrays without boxing their values.
+     *
+     * @param buf the encoded form, with position at the start of the region to read
+     * @param version the version of the schema the entry was written in
+     * @param batch the batch, whose schema is this codec's
+     */
+    public void decodeInto(ByteBuffer buf, int version, ColumnBatch batch) {
+        if (version != this.version) {
+            batch.add(decode(buf, version));
+            return;
+        }
+        int row = batch.addRow();
+        int mask = buf.getInt();
+        for (int i = 0; i < schema.types.size(); i++) {
+            if ((mask & (1 << i)) != 0) {
+                if (!schema.nullables.get(i)) {
+                    throw new IllegalArgumentException("Value cannot be null at index:" + i);
+                }
+                batch.nulls[i][row] = true;
+                continue;
+            }
+            switch (schema.types.get(i)) {
+                case INT -> batch.ints[i][row] = buf.getInt();
+                case DOUBLE -> batch.doubles[i][row] = buf.getDouble();
+                case BOOL -> batch.bools[i][row] = buf.get() == 1;
+                case CHAR_FIXED -> {
+                    int size = schema.sizes.get(i);
+                    // the padding is the null bytes at the end
+                    int length = size;
+                    while (length > 0 && buf.get(buf.position() + length - 1) == 0) {
+                        length--;
+                    }
+                    batch.putString(i, buf, length);
+                    buf.position(buf.position() + size - length);
+                }
+                case CHAR_VAR -> batch.putString(i, buf, buf.getInt());
+            }
+        }
+    }
+
     public int compareRecords(RecordEntry e1, RecordEntry e2) {
         if (schema.primaryKeyIndex < 0) {
             return -1;
         }
-        Object key1 = e1.data.get(schema.primaryKeyIndex);
-        Object key2 = e2.data.get(schema.primaryKeyIndex);
+        return compareKeys(e1.data.get(schema.primaryKeyIndex), e2.data.get(schema.primaryKeyIndex));
+    }
+
+    /**
+     * @param key1 a primary key of the table
+     * @param key2 another primary key of the table
+     * @return the order of the keys, like {@link Comparable#compareTo}
+     */
+    public int compareKeys(Object key1, Object key2) {
+        if (key1 == null || key2 == null) {
+            // only columns which rows are sorted on can be null, whose nulls come first
+            return key1 == null ? (key2 == null ? 0 : -1) : 1;
+        }
         if (key1 instanceof Integer i) {
             return i.compareTo((Integer) key2);
         } else if (key1 instanceof Double d) {
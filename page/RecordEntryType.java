@@ -21,6 +21,10 @@ public enum RecordEntryType {
         };
     }
 
+    public boolean isString() {
+        return this == CHAR_FIXED || this == CHAR_VAR;
+    }
+
     public boolean matchesType(Object o) {
         return switch (this) {
             case INT -> o instanceof Integer;
@@ -13,6 +13,10 @@ import page.Page;
 
 // Author: Spencer Warren
 
+/**
+ * LRU buffer of table and index pages. Its methods are synchronized so index pages can be read and written by
+ * several threads at once.
+ */
 public class PageBuffer {
 
     private final Path pagesDir;
@@ -47,19 +51,14 @@ public class PageBuffer {
         return capacity;
     }
 
-    public Page getTablePage(int tableId, int num) throws IOException {
+    public synchronized Page getTablePage(int tableId, int num) throws IOException {
         var tablePages = tableMap.computeIfAbsent(tableId, k -> new HashMap<>());
         Page page = tablePages.get(num);
         if (page == null) {
             page = readOrCreatePage(tableId, num, false);
             tablePages.put(num, page);
             if (queue.size() == capacity) {
-                Page removed = queue.removeFirst();
-                var inner = tableMap.get(removed.tableId);
-                if (inner != null) {
-                    inner.remove(removed.num);
-                }
-                write(removed, false);
+                evict();
             }
             queue.addLast(page);
         } else {
@@ -70,19 +69,14 @@ public class PageBuffer {
         return page;
     }
 
-    public Page getIndexPage(int tableId, int num) throws IOException {
+    public synchronized Page getIndexPage(int tableId, int num) throws IOException {
         var indexPages = indexMap.computeIfAbsent(tableId, k -> new HashMap<>());
         Page page = indexPages.get(num);
         if (page == null) {
             page = readOrCreatePage(tableId, num, true);
             indexPages.put(num, page);
             if (queue.size() == capacity) {
-                Page removed = queue.removeFirst();
-                var inner = indexMap.get(removed.tableId);
-                if (inner != null) {
-                    inner.remove(removed.num);
-                }
-                write(removed, true);
+                evict();
             }
             queue.addLast(page);
         } else {
@@ -93,7 +87,32 @@ public class PageBuffer {
         return page;
     }
 
-    public void purge() throws IOException {
+    /**
+     * Copy the contents of an index page into the buffer. Fetching and filling the page happen together, so the page
+     * cannot be evicted in between by another thread, which would lose the write.
+     *
+     * @param tableId the id the index pages are stored under
+     * @param num the page number
+     * @param data the new contents of the page
+     */
+    public synchronized void writeIndexPage(int tableId, int num, byte[] data) throws IOException {
+        Page page = getIndexPage(tableId, num);
+        System.arraycopy(data, 0, page.buf.array(), 0, data.length);
+    }
+
+    /**
+     * Write out and remove the least recently used page, which may be either a table or an index page
+     */
+    private void evict() throws IOException {
+        Page removed = queue.removeFirst();
+        var inner = (removed.isIndex ? indexMap : tableMap).get(removed.tableId);
+        if (inner != null) {
+            inner.remove(removed.num);
+        }
+        write(removed, removed.isIndex);
+    }
+
+    public synchronized void purge() throws IOException {
         for (var pages : tableMap.values()) {
             for (Page page : pages.values()) {
                 write(page, false);
@@ -153,7 +172,7 @@ public class PageBuffer {
         }
     }
 
-    public void deleteTablePage(int tableId, int pageNum) throws IOException {
+    public synchronized void deleteTablePage(int tableId, int pageNum) throws IOException {
         var pages = tableMap.get(tableId);
         if (pages != null) {
             Page page = pages.remove(pageNum);
@@ -169,11 +188,25 @@ public class PageBuffer {
         }
     }
 
-    public void deleteIndex(int tableId) throws IOException {
+    /**
+     * Delete every page of a table at once, discarding its pages in the buffer without writing them and removing
+     * its file
+     *
+     * @param tableId the table id
+     */
+    public synchronized void deleteTable(int tableId) throws IOException {
+        if (tableMap.remove(tableId) != null) {
+            queue.removeIf(page -> !page.isIndex && page.tableId == tableId);
+        }
+
+        Path pagePath = pagesDir.resolve(String.valueOf(tableId));
+        Files.deleteIfExists(pagePath);
+    }
+
+    public synchronized void deleteIndex(int tableId) throws IOException {
         var pages = indexMap.remove(tableId);
         if (pages != null) {
-            for (int pageNum : pages.keySet()) {
-                Page page = pages.remove(pageNum);
+            for (Page page : pages.values()) {
                 queue.remove(page);
             }
         }
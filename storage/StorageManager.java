@@ -2,17 +2,23 @@ package storage;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
 
 import catalog.Catalog;
 import page.Page;
-import page.RecordCodec;
-import page.RecordEntry;
+import tree.Index;
 
 // Author: Spencer Warren
 
 public class StorageManager {
     public final Catalog catalog;
     public final PageBuffer pageBuffer;
+    /**
+     * Open indexes by id, so every user of an index shares its latches
+     */
+    private final Map<Integer, Index> indexes = new ConcurrentHashMap<>();
 
     public StorageManager(Catalog catalog, PageBuffer pageBuffer) {
         this.catalog = catalog;
@@ -20,11 +26,12 @@ public class StorageManager {
     }
 
     /**
+     * Count the records of a table from the amount of entries in each page's header, without decoding them
+     *
      * @param tableId the id of the table
      * @return the amount of records in the table
      */
     public int findRecordCount(int tableId) {
-        RecordCodec codec = catalog.getCodec(tableId);
         List<Integer> pages = catalog.getPages(tableId);
         if (pages == null) {
             return 0;
@@ -36,10 +43,7 @@ public class StorageManager {
             if (page == null) {
                 return 0;
             }
-
-            page.buf.rewind();
-            List<RecordEntry> entries = page.read(codec);
-            sum += entries.size();
+            sum += Page.count(page.buf.getInt(0));
         }
         return sum;
     }
@@ -90,6 +94,22 @@ public class StorageManager {
         }
     }
 
+    /**
+     * Delete every page of a table, removing its file instead of clearing each page
+     *
+     * @param tableId the table whose pages should be deleted
+     * @return if deletion was successful
+     */
+    public boolean deleteTable(int tableId) {
+        try {
+            pageBuffer.deleteTable(tableId);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error deleting pages of table " + tableId);
+            e.printStackTrace();
+            return false;
+        }
+    }
 
     /**
      * @param tableId the table id
@@ -106,6 +126,33 @@ public class StorageManager {
         }
     }
 
+    /**
+     * @param tableId the id the index pages are stored under
+     * @param pageNum the page number
+     * @param data the new contents of the page
+     * @return if the write was successful
+     */
+    public boolean writeIndexPage(int tableId, int pageNum, byte[] data) {
+        try {
+            pageBuffer.writeIndexPage(tableId, pageNum, data);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error writing index page with id " + pageNum);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @param indexId the id the index pages are stored under
+     * @param opener creates the index if it is not open yet
+     * @return the open index
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Index> T getIndex(int indexId, IntFunction<T> opener) {
+        return (T) indexes.computeIfAbsent(indexId, opener::apply);
+    }
+
     /**
      * Delete the index for a table
      *
@@ -113,6 +160,7 @@ public class StorageManager {
      * @return if deletion was successful
      */
     public boolean deleteIndex(int tableId) {
+        indexes.remove(tableId);
         try {
             pageBuffer.deleteIndex(tableId);
         } catch (IOException e) {
@@ -0,0 +1,316 @@
+package table;
+
+import page.RecordEntry;
+import page.RecordEntryType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the rows of a CSV file as entries of a table.
+ * <p>
+ * The input is parsed a byte at a time from a buffer, without decoding lines into strings first. Fields are
+ * separated by commas and rows by line breaks, and a field in double quotes may hold commas, line breaks, and
+ * doubled quotes. An empty field which is not quoted is null. Numbers and booleans are converted straight from
+ * their bytes, and only string columns make strings. A first row which names the columns of the table is skipped.
+ * <p>
+ * Reading fails with an {@link IllegalArgumentException} naming the line when a row does not fit the schema,
+ * and with an {@link UncheckedIOException} when the input cannot be read.
+ */
+public class CsvReader implements Iterator<RecordEntry>, Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final TableSchema schema;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    // the fields of the current row, which are slices of one array
+    private byte[] row = new byte[256];
+    private int rowLength = 0;
+    private int[] starts;
+    private int[] ends;
+    private boolean[] quoted;
+    private int fieldCount = 0;
+
+    private int line = 1;
+    private int rowLine = 1;
+    private boolean firstRow = true;
+    private RecordEntry next = null;
+
+    /**
+     * @param in the CSV input, which is closed with the reader
+     * @param schema the schema of the table the rows are for
+     */
+    public CsvReader(InputStream in, TableSchema schema) {
+        this.in = in;
+        this.schema = schema;
+        this.starts = new int[schema.types.size() + 1];
+        this.ends = new int[schema.types.size() + 1];
+        this.quoted = new boolean[schema.types.size() + 1];
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = readRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public RecordEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RecordEntry record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return the next row which is not blank or a header, or null at the end of the input
+     */
+    private RecordEntry readRecord() throws IOException {
+        while (readRow()) {
+            if (fieldCount == 1 && ends[0] == starts[0] && !quoted[0]) {
+                // blank line
+                continue;
+            }
+            if (firstRow) {
+                firstRow = false;
+                if (isHeader()) {
+                    continue;
+                }
+            }
+            return toRecord();
+        }
+        return null;
+    }
+
+    /**
+     * Split the next row into fields
+     *
+     * @return if there was a row, which is false at the end of the input
+     */
+    private boolean readRow() throws IOException {
+        rowLength = 0;
+        fieldCount = 0;
+        rowLine = line;
+        int c = read();
+        if (c < 0) {
+            return false;
+        }
+        while (true) {
+            if (fieldCount == starts.length) {
+                starts = Arrays.copyOf(starts, fieldCount * 2);
+                ends = Arrays.copyOf(ends, fieldCount * 2);
+                quoted = Arrays.copyOf(quoted, fieldCount * 2);
+            }
+            starts[fieldCount] = rowLength;
+            quoted[fieldCount] = c == '"';
+            if (c == '"') {
+                while (true) {
+                    c = read();
+                    if (c < 0) {
+                        throw error("unterminated quoted field");
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            break;
+                        }
+                    } else if (c == '\n') {
+                        line++;
+                    }
+                    append(c);
+                }
+                if (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                    throw error("unexpected character after quoted field");
+                }
+            } else {
+                while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                    append(c);
+                    c = read();
+                }
+            }
+            ends[fieldCount++] = rowLength;
+
+            if (c == ',') {
+                c = read();
+                continue;
+            }
+            if (c == '\r') {
+                c = read();
+                if (c != '\n' && c >= 0) {
+                    // a lone carriage return ends the row too
+                    position--;
+                }
+                line++;
+            } else if (c == '\n') {
+                line++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return if the current row is the name of each column in order
+     */
+    private boolean isHeader() {
+        if (fieldCount != schema.names.size()) {
+            return false;
+        }
+        for (int i = 0; i < fieldCount; i++) {
+            if (!text(i).trim().equalsIgnoreCase(schema.names.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the current row converted to the types of the schema
+     */
+    private RecordEntry toRecord() {
+        if (fieldCount != schema.types.size()) {
+            throw error("incorrect number of values, got: " + fieldCount + ", need: " + schema.types.size());
+        }
+        List<Object> values = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            if (starts[i] == ends[i] && !quoted[i]) {
+                values.add(null);
+                continue;
+            }
+            RecordEntryType type = schema.types.get(i);
+            values.add(switch (type) {
+                case INT -> parseInt(i);
+                case DOUBLE -> parseDouble(i);
+                case BOOL -> parseBoolean(i);
+                case CHAR_FIXED, CHAR_VAR -> {
+                    String value = text(i);
+                    if (value.length() >= schema.sizes.get(i) / Character.BYTES) {
+                        // the same limit as insert, comparing string lengths instead of the raw byte amounts
+                        throw error("value '" + value + "' is too large for column '" + schema.names.get(i) + "'");
+                    }
+                    yield value;
+                }
+            });
+        }
+        return new RecordEntry(values);
+    }
+
+    private int parseInt(int field) {
+        int start = skipSpaces(starts[field], ends[field]);
+        int end = trimSpaces(start, ends[field]);
+        boolean negative = start < end && row[start] == '-';
+        if (start < end && (row[start] == '-' || row[start] == '+')) {
+            start++;
+        }
+        if (start == end) {
+            throw badValue(field);
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = row[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw badValue(field);
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw badValue(field);
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw badValue(field);
+        }
+        return (int) value;
+    }
+
+    private double parseDouble(int field) {
+        try {
+            return Double.parseDouble(text(field).trim());
+        } catch (NumberFormatException e) {
+            throw badValue(field);
+        }
+    }
+
+    private boolean parseBoolean(int field) {
+        String value = text(field).trim();
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw badValue(field);
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && row[start] == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimSpaces(int start, int end) {
+        while (end > start && row[end - 1] == ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private String text(int field) {
+        return new String(row, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+    }
+
+    private IllegalArgumentException badValue(int field) {
+        return error("could not parse value '" + text(field) + "' as " + schema.types.get(field).displayStringSimple()
+                + " for column '" + schema.names.get(field) + "'");
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("line " + rowLine + ": " + message);
+    }
+
+    private void append(int c) {
+        if (rowLength == row.length) {
+            row = Arrays.copyOf(row, row.length * 2);
+        }
+        row[rowLength++] = (byte) c;
+    }
+
+    /**
+     * @return the next byte of the input, or -1 at the end
+     */
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
+    }
+}
@@ -0,0 +1,174 @@
+package table;
+
+import page.RecordCodec;
+import page.RecordEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts entries by primary key using a bounded amount of memory.
+ * <p>
+ * Entries are collected into a run until the run reaches its size in encoded bytes, and then the run is sorted
+ * and written to a temporary file. When every entry fits in one run nothing is written, and the run is sorted in
+ * memory. Otherwise the runs are merged by reading each file in order, which holds one entry per run in memory.
+ * Entries with the same key keep the order they were added in. The files are deleted when the sort is closed.
+ */
+public class ExternalSort implements Closeable {
+    private final RecordCodec codec;
+    private final Path tempDir;
+    private final long runBytes;
+
+    private final List<RecordEntry> run = new ArrayList<>();
+    private long bytes = 0;
+    private final List<Path> runFiles = new ArrayList<>();
+    private final List<DataInputStream> readers = new ArrayList<>();
+
+    /**
+     * @param codec the codec for the entries, which also compares their primary keys
+     * @param tempDir the directory the runs are written to
+     * @param runBytes the size of each run in encoded bytes
+     */
+    public ExternalSort(RecordCodec codec, Path tempDir, long runBytes) {
+        this.codec = codec;
+        this.tempDir = tempDir;
+        this.runBytes = runBytes;
+    }
+
+    /**
+     * @param record the entry to sort
+     */
+    public void add(RecordEntry record) throws IOException {
+        run.add(record);
+        bytes += codec.encode(record).capacity();
+        if (bytes >= runBytes) {
+            spill();
+        }
+    }
+
+    /**
+     * @return every added entry in ascending primary key order, which is read lazily
+     */
+    public Iterator<RecordEntry> sorted() throws IOException {
+        if (runFiles.isEmpty()) {
+            run.sort(codec::compareRecords);
+            return run.iterator();
+        }
+        if (!run.isEmpty()) {
+            spill();
+        }
+
+        // the head of each run, ordered by key and then by run, since earlier runs hold entries which were added first
+        PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> {
+            int cmp = codec.compareRecords(a.record, b.record);
+            return cmp != 0 ? cmp : Integer.compare(a.run, b.run);
+        });
+        for (int run = 0; run < runFiles.size(); run++) {
+            DataInputStream reader = new DataInputStream(new BufferedInputStream(Files.newInputStream(runFiles.get(run))));
+            readers.add(reader);
+            RecordEntry record = read(reader);
+            if (record != null) {
+                heads.add(new Head(record, reader, run));
+            }
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public RecordEntry next() {
+                Head head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    RecordEntry following = read(head.reader);
+                    if (following != null) {
+                        heads.add(new Head(following, head.reader, head.run));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return head.record;
+            }
+        };
+    }
+
+    /**
+     * Close the runs and delete their files
+     */
+    @Override
+    public void close() throws IOException {
+        for (DataInputStream reader : readers) {
+            reader.close();
+        }
+        for (Path file : runFiles) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Sort the current run and write it to a new file as the length of each encoded entry followed by the entry
+     */
+    private void spill() throws IOException {
+        run.sort(codec::compareRecords);
+        Path file = Files.createTempFile(tempDir, "run", ".tmp");
+        runFiles.add(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            for (RecordEntry record : run) {
+                ByteBuffer encoded = codec.encode(record);
+                out.writeInt(encoded.capacity());
+                out.write(encoded.array(), 0, encoded.capacity());
+            }
+        }
+        run.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @param reader a run
+     * @return the next entry of the run, or null at its end
+     */
+    private RecordEntry read(DataInputStream reader) throws IOException {
+        int length;
+        try {
+            length = reader.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] encoded = new byte[length];
+        reader.readFully(encoded);
+        return codec.decode(ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * The next entry of a run
+     */
+    private static final class Head {
+        private final RecordEntry record;
+        private final DataInputStream reader;
+        private final int run;
+
+        private Head(RecordEntry record, DataInputStream reader, int run) {
+            this.record = record;
+            this.reader = reader;
+            this.run = run;
+        }
+    }
+}
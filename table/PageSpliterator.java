@@ -0,0 +1,109 @@
+package table;
+
+import page.Page;
+import page.RecordCodec;
+import page.RecordEntry;
+import storage.StorageManager;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits the entries of a table by ranges of its pages, so a scan can read and decode the pages on several threads.
+ * <p>
+ * Each spliterator covers a range of positions in the table's page list, and splitting hands off the first half of
+ * the range. A page is decoded when its first entry is needed, on the thread which holds its range. Entries are
+ * encountered in page order, which is primary key order unless the table is a heap, so ordered operations on a
+ * parallel stream still see them in that order.
+ */
+class PageSpliterator implements Spliterator<RecordEntry> {
+    private final StorageManager storageManager;
+    private final int tableId;
+    private final RecordCodec codec;
+    private final List<Integer> pageNums;
+    private int position;
+    private final int end;
+
+    // the entries of the page before position which have not been consumed yet
+    private List<RecordEntry> entries = List.of();
+    private int entryIndex = 0;
+
+    /**
+     * @param storageManager the storage manager holding the pages
+     * @param tableId the table id
+     * @param codec the codec for the table
+     * @param pageNums the pages of the table in order, which must not change during the scan
+     * @param position the position of the first page to read
+     * @param end the position after the last page to read
+     */
+    PageSpliterator(StorageManager storageManager, int tableId, RecordCodec codec, List<Integer> pageNums, int position, int end) {
+        this.storageManager = storageManager;
+        this.tableId = tableId;
+        this.codec = codec;
+        this.pageNums = pageNums;
+        this.position = position;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super RecordEntry> action) {
+        while (entryIndex >= entries.size()) {
+            if (position >= end) {
+                return false;
+            }
+            readPage();
+        }
+        action.accept(entries.get(entryIndex++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super RecordEntry> action) {
+        while (true) {
+            while (entryIndex < entries.size()) {
+                action.accept(entries.get(entryIndex++));
+            }
+            if (position >= end) {
+                return;
+            }
+            readPage();
+        }
+    }
+
+    @Override
+    public Spliterator<RecordEntry> trySplit() {
+        // a page which is partly consumed comes before every remaining page, so it cannot stay behind
+        if (entryIndex < entries.size() || end - position < 2) {
+            return null;
+        }
+        int middle = (position + end) >>> 1;
+        Spliterator<RecordEntry> prefix = new PageSpliterator(storageManager, tableId, codec, pageNums, position, middle);
+        position = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        // pages which have been read so far stand in for the size of the rest
+        return (long) (end - position) * Math.max(1, entries.size()) + entries.size() - entryIndex;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Decode the entries of the page at position, and move past it
+     */
+    private void readPage() {
+        int pageNum = pageNums.get(position++);
+        Page page = storageManager.getTablePage(tableId, pageNum);
+        if (page == null) {
+            throw new IllegalStateException("Unable to read page " + pageNum + " of table " + tableId);
+        }
+        entries = page.read(codec);
+        entryIndex = 0;
+    }
+}
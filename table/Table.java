@@ -1,14 +1,33 @@
 package table;
 
 import catalog.Catalog;
+import catalog.PageFence;
+import catalog.SecondaryIndex;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import operator.BatchPredicate;
+import operator.BatchRows;
+import operator.Filter;
+import operator.RowIterator;
+import page.ColumnBatch;
 import page.Page;
 import page.RecordCodec;
 import page.RecordEntry;
@@ -17,10 +36,36 @@ import storage.PageBuffer;
 import storage.StorageManager;
 import tree.BPPointer;
 import tree.BPTree;
+import tree.HashIndex;
+import tree.Inclusivity;
+import tree.Index;
+import tree.IndexKey;
+import tree.KeyRange;
 
 // Author: Spencer Warren
 
 public class Table {
+    /**
+     * Size in encoded bytes of the sorted runs a load holds in memory
+     */
+    private static final long LOAD_RUN_BYTES = 1 << 24;
+    /**
+     * Amount of records a load inserts at a time into a table which has entries
+     */
+    private static final int LOAD_BATCH_SIZE = 1 << 12;
+    /**
+     * Fraction of a page which must be free for a heap table to offer the page for reuse, as its denominator
+     */
+    private static final int HEAP_REUSE_FRACTION = 8;
+    /**
+     * Amount of pages from which a scan reads and decodes pages on several threads, since splitting a smaller scan
+     * costs more than it saves
+     */
+    private static final int PARALLEL_SCAN_PAGES = 64;
+    /**
+     * Amount of pages a parallel scan tests at a time, which bounds how many matching entries it holds in memory
+     */
+    private static final int PARALLEL_SCAN_BATCH_PAGES = 512;
 
     private final StorageManager storageManager;
     private final Catalog catalog;
@@ -57,145 +102,1173 @@ public class Table {
     }
 
     /**
-     * @param predicate the predicate to test
-     * @param operation the operation to apply to each matching entry
+     * @return the amount of pages the table has
+     */
+    public int getPageCount() {
+        List<Integer> pages = catalog.getPages(tableId);
+        return pages == null ? 0 : pages.size();
+    }
+
+    /**
+     * @return if the table's pages hold entries in insertion order rather than primary key order
+     */
+    public boolean isHeap() {
+        return catalog.isHeap(tableId);
+    }
+
+    /**
+     * Apply the operation to every entry matching the predicate, testing the entries of a large table on several
+     * threads like {@link #rows(Map, Predicate)}
+     *
+     * @param predicate the predicate to test
+     * @param operation the operation to apply to each matching entry
+     */
+    public void findMatching(Predicate<RecordEntry> predicate, Consumer<RecordEntry> operation) {
+        scan(predicate).forEachRemaining(operation);
+    }
+
+    /**
+     * @return every row of the table in page order, which is primary key order unless the table is a heap
+     */
+    public RowIterator rows() {
+        return rows(Map.of(), entry -> true, BatchPredicate.all());
+    }
+
+    /**
+     * Like {@link #rows(Map, Predicate, BatchPredicate)}, but tests every row on its own
+     *
+     * @param ranges the range of values for each constrained column index
+     * @param predicate the predicate
+     * @return the matching rows
+     */
+    public RowIterator rows(Map<Integer, KeyRange> ranges, Predicate<RecordEntry> predicate) {
+        return rows(ranges, predicate, null);
+    }
+
+    /**
+     * Reads the rows matching the predicate as they are asked for, using an index to find them when the ranges allow
+     * it. Rows found through the primary index come in key order, and rows found through a secondary index come in
+     * the order of its column.
+     * <p>
+     * Without an index the pages are read into column batches tested by the batch predicate when there is one, and
+     * otherwise each row is tested by the predicate. The pages of a large table are tested on several threads, a
+     * batch of pages at a time, and the matches of a batch are returned once the whole batch is tested. The caller
+     * never runs while other threads read pages, so it may write pages, which another thread reading a page could
+     * otherwise evict while they are being written.
+     *
+     * @param ranges the range of values for each constrained column index
+     * @param predicate the predicate
+     * @param batchPredicate the predicate as a test of column batches, or null if it cannot be tested that way
+     * @return the matching rows
+     */
+    public RowIterator rows(Map<Integer, KeyRange> ranges, Predicate<RecordEntry> predicate, BatchPredicate batchPredicate) {
+        Iterator<BPPointer> pointers = findPointers(ranges);
+        if (pointers == null) {
+            int pageOrder = isHeap() ? -1 : schema.primaryKeyIndex;
+            if (batchPredicate != null) {
+                return new BatchRows(schema, batches(batchPredicate), pageOrder);
+            }
+            return RowIterator.of(schema, scan(predicate), pageOrder);
+        }
+        KeyRange primaryRange = ranges.getOrDefault(schema.primaryKeyIndex, KeyRange.all());
+        boolean keyOrder = !primaryRange.isAll() && (isTreeIndexed() || primaryRange.isSingleValue());
+        return new Filter(RowIterator.of(schema, readPointers(pointers), keyOrder ? schema.primaryKeyIndex : -1), predicate);
+    }
+
+    /**
+     * @param predicate the predicate
+     * @return the entries matching the predicate in page order, tested on several threads when the table is large
+     */
+    private Iterator<RecordEntry> scan(Predicate<RecordEntry> predicate) {
+        List<Integer> pageNums = catalog.getPages(tableId);
+        if (pageNums == null) {
+            return Collections.emptyIterator();
+        }
+        // the scan keeps its own copy, since the caller may add pages to other tables
+        List<Integer> pages = List.copyOf(pageNums);
+        if (pages.size() < PARALLEL_SCAN_PAGES || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            return stream(pages, 0, pages.size(), false).filter(predicate).iterator();
+        }
+        return new Iterator<>() {
+            private int start = 0;
+            private Iterator<RecordEntry> matches = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!matches.hasNext() && start < pages.size()) {
+                    int end = Math.min(start + PARALLEL_SCAN_BATCH_PAGES, pages.size());
+                    try {
+                        matches = stream(pages, start, end, true).filter(predicate).toList().iterator();
+                    } catch (RuntimeException e) {
+                        throw unwrapped(e);
+                    }
+                    start = end;
+                }
+                return matches.hasNext();
+            }
+
+            @Override
+            public RecordEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return matches.next();
+            }
+        };
+    }
+
+    /**
+     * Reads the pages into column batches of about {@link ColumnBatch#BATCH_ROWS} rows, and narrows the selection
+     * of each batch to the rows matching the predicate, skipping batches with no matching rows. The batches of a
+     * large table are read and tested on several threads like {@link #rows(Map, Predicate, BatchPredicate)}.
+     *
+     * @param predicate the predicate
+     * @return the batches in page order
+     */
+    public Iterator<ColumnBatch> batches(BatchPredicate predicate) {
+        List<Integer> pageNums = catalog.getPages(tableId);
+        if (pageNums == null || pageNums.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        List<Integer> pages = List.copyOf(pageNums);
+        RecordCodec codec = catalog.getCodec(tableId);
+        boolean parallel = pages.size() >= PARALLEL_SCAN_PAGES && ForkJoinPool.getCommonPoolParallelism() >= 2;
+        return new Iterator<>() {
+            // every batch holds the same amount of pages, which is sized by the rows of the first page
+            private int batchPages = 0;
+            private int start = 0;
+            private Iterator<ColumnBatch> matches = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                if (batchPages == 0) {
+                    Page first = getPage(pages.get(0));
+                    if (first == null) {
+                        throw new IllegalStateException("Unable to read page " + pages.get(0) + " of table " + name);
+                    }
+                    batchPages = Math.max(1, ColumnBatch.BATCH_ROWS / Math.max(1, Page.count(first.buf.getInt(0))));
+                }
+                while (!matches.hasNext() && start < pages.size()) {
+                    int end = Math.min(start + (parallel ? PARALLEL_SCAN_BATCH_PAGES : batchPages), pages.size());
+                    IntStream batchStarts = IntStream.iterate(start, i -> i < end, i -> i + batchPages);
+                    try {
+                        matches = (parallel ? batchStarts.parallel() : batchStarts)
+                                .mapToObj(i -> readBatch(codec, pages, i, Math.min(i + batchPages, end), predicate))
+                                .filter(batch -> batch.selected > 0)
+                                .toList().iterator();
+                    } catch (RuntimeException e) {
+                        throw unwrapped(e);
+                    }
+                    start = end;
+                }
+                return matches.hasNext();
+            }
+
+            @Override
+            public ColumnBatch next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return matches.next();
+            }
+        };
+    }
+
+    /**
+     * @param codec the codec for the table
+     * @param pages the pages of the table
+     * @param start the position of the first page to read
+     * @param end the position after the last page to read
+     * @param predicate the predicate the selected rows match
+     * @return the rows of the pages, of which those matching the predicate are selected
+     */
+    private ColumnBatch readBatch(RecordCodec codec, List<Integer> pages, int start, int end, BatchPredicate predicate) {
+        ColumnBatch batch = new ColumnBatch(codec.schema, ColumnBatch.BATCH_ROWS);
+        for (int i = start; i < end; i++) {
+            Page page = storageManager.getTablePage(tableId, pages.get(i));
+            if (page == null) {
+                throw new IllegalStateException("Unable to read page " + pages.get(i) + " of table " + name);
+            }
+            page.readColumns(codec, batch);
+        }
+        batch.selectAll();
+        predicate.filter(batch);
+        return batch;
+    }
+
+    /**
+     * @param e an exception thrown by a parallel stream
+     * @return the exception thrown on the other thread, which the stream wraps in a new one of the same type
+     */
+    private static RuntimeException unwrapped(RuntimeException e) {
+        if (e.getCause() instanceof RuntimeException cause && cause.getClass() == e.getClass()) {
+            return cause;
+        }
+        return e;
+    }
+
+    /**
+     * A parallel stream must not write pages while it runs, since another thread reading a page could evict a page
+     * while it is being written.
+     *
+     * @param pages the pages of the table
+     * @param start the position of the first page to read
+     * @param end the position after the last page to read
+     * @param parallel if the pages should be read and decoded on several threads
+     * @return the entries of the pages in order
+     */
+    private Stream<RecordEntry> stream(List<Integer> pages, int start, int end, boolean parallel) {
+        return StreamSupport.stream(new PageSpliterator(storageManager, tableId, catalog.getCodec(tableId), pages, start, end), parallel);
+    }
+
+    /**
+     * @param pointers the pointers to entries of the table
+     * @return the entry at each pointer, which is read as it is asked for
+     */
+    private Iterator<RecordEntry> readPointers(Iterator<BPPointer> pointers) {
+        RecordCodec codec = catalog.getCodec(tableId);
+        return new Iterator<>() {
+            // consecutive pointers usually share a page, so only decode a page when the scan moves onto it
+            private int pageNum = -1;
+            private List<RecordEntry> entries = List.of();
+            private int[] positions = new int[0];
+
+            @Override
+            public boolean hasNext() {
+                return pointers.hasNext();
+            }
+
+            @Override
+            public RecordEntry next() {
+                BPPointer pointer = pointers.next();
+                if (pointer.pageNum != pageNum) {
+                    Page page = getPage(pointer.pageNum);
+                    if (page == null) {
+                        throw new IllegalStateException("Unable to read page " + pointer.pageNum + " of table " + name);
+                    }
+                    pageNum = pointer.pageNum;
+                    List<Integer> slots = new ArrayList<>();
+                    entries = page.read(codec, slots);
+                    positions = slotPositions(slots);
+                }
+                return entries.get(positions[pointer.entryNum]);
+            }
+        };
+    }
+
+    /**
+     * Choose how to find the entries which can be within the column ranges. The primary key index is preferred
+     * since its pointers come in page order, then a secondary index on a column compared for equality, then any
+     * other secondary index on a constrained column. A hash index on the primary key only applies to equality.
+     *
+     * @param ranges the range of values for each constrained column index
+     * @return the pointers to every entry which can be within the ranges, or null if no index applies
+     */
+    private Iterator<BPPointer> findPointers(Map<Integer, KeyRange> ranges) {
+        if (!isIndexed()) {
+            return null;
+        }
+        KeyRange primaryRange = ranges.getOrDefault(schema.primaryKeyIndex, KeyRange.all());
+        if (primaryRange.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        if (isTreeIndexed() && !primaryRange.isAll()) {
+            return primaryTree().scan(primaryRange.low, primaryRange.high, primaryRange.inclusivity());
+        }
+        if (primaryRange.isSingleValue()) {
+            BPPointer pointer = primaryIndex().get(primaryRange.low);
+            return pointer == null ? Collections.emptyIterator() : List.of(pointer).iterator();
+        }
+
+        SecondaryIndex best = null;
+        KeyRange bestRange = null;
+        for (SecondaryIndex index : catalog.getSecondaryIndexes(tableId)) {
+            KeyRange range = ranges.get(schema.getColumnIndex(index.columnName));
+            if (range == null || !catalog.hasIndex(index.indexId)) {
+                continue;
+            }
+            if (range.isEmpty()) {
+                return Collections.emptyIterator();
+            }
+            if (best == null || (range.isSingleValue() && !bestRange.isSingleValue())) {
+                best = index;
+                bestRange = range;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        // bound keys sort before or after every row with the bound value, so the bounds are never equal to a key
+        Object low = bestRange.low == null ? null
+                : bestRange.lowInclusive ? IndexKey.before(bestRange.low) : IndexKey.after(bestRange.low);
+        Object high = bestRange.high == null ? null
+                : bestRange.highInclusive ? IndexKey.after(bestRange.high) : IndexKey.before(bestRange.high);
+        Iterator<Object> keys = secondaryTree(best).scanValues(low, high, Inclusivity.BOTH);
+        Index primary = primaryIndex();
+        String indexName = best.name;
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public BPPointer next() {
+                // the secondary index holds the primary key of each row, which leads to its current location
+                BPPointer pointer = primary.get(((IndexKey) keys.next()).locator);
+                if (pointer == null) {
+                    throw new IllegalStateException("Index " + indexName + " refers to a missing row");
+                }
+                return pointer;
+            }
+        };
+    }
+
+    /**
+     * Deletes all entries matching the predicate, using an index to find them when the ranges allow it.
+     * Each page is compacted in place and pages left empty are freed.
+     *
+     * @param ranges the range of values for each constrained column index
+     * @param predicate the predicate
+     * @return if successful
+     */
+    public boolean deleteMatching(Map<Integer, KeyRange> ranges, Predicate<RecordEntry> predicate) {
+        RecordCodec codec = catalog.getCodec(tableId);
+        Index index = isIndexed() ? primaryIndex() : null;
+
+        // find everything first, since deleting from the index would invalidate the scan
+        Map<Integer, List<Integer>> matchesByPage = findPositions(ranges, predicate);
+        if (matchesByPage == null) {
+            return false;
+        }
+
+        for (var pageMatches : matchesByPage.entrySet()) {
+            int pageNum = pageMatches.getKey();
+            Set<Integer> removedIndices = new HashSet<>(pageMatches.getValue());
+            Page page = getPage(pageNum);
+            if (page == null) {
+                return false;
+            }
+
+            // survivors keep their slots, so their pointers stay valid
+            List<Integer> slots = new ArrayList<>();
+            List<RecordEntry> entries = page.read(codec, slots);
+            List<RecordEntry> survivors = new ArrayList<>(entries.size() - removedIndices.size());
+            List<Integer> survivorSlots = new ArrayList<>(survivors.size());
+            for (int i = 0; i < entries.size(); i++) {
+                if (!removedIndices.contains(i)) {
+                    survivors.add(entries.get(i));
+                    survivorSlots.add(slots.get(i));
+                }
+            }
+
+            // the removed keys leave the index first, since moving survivors to new pages finds them by page
+            if (index != null) {
+                for (int removed : removedIndices) {
+                    index.delete(entries.get(removed).data.get(schema.primaryKeyIndex));
+                }
+            }
+            if (!rewritePage(codec, pageNum, survivors, survivorSlots, index)) {
+                return false;
+            }
+            for (int removed : removedIndices) {
+                removeFromSecondaryIndexes(entries.get(removed));
+                removeFromUniqueSets(entries.get(removed));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes all entries matching the predicate
+     *
+     * @param predicate the predicate
+     * @return if successful
+     */
+    public boolean deleteMatching(Predicate<RecordEntry> predicate) {
+        return deleteMatching(Map.of(), predicate);
+    }
+
+    /**
+     * Updates all entries matching the predicate, using an index to find them when the ranges allow it.
+     * Entries are rewritten in place when their primary key is unchanged, and entries which grow past the end of
+     * their page move to new pages right after it. Entries whose primary key changes are deleted and inserted again.
+     * Nothing is written unless every updated entry keeps the constraints of the table.
+     *
+     * @param ranges the range of values for each constrained column index
+     * @param predicate the predicate to determine what should be updated
+     * @param updater   the function applying the update
+     * @return if successful
+     */
+    public boolean updateMatching(Map<Integer, KeyRange> ranges, Predicate<RecordEntry> predicate, Consumer<RecordEntry> updater) {
+        RecordCodec codec = catalog.getCodec(tableId);
+        Map<Integer, List<Integer>> matchesByPage = findPositions(ranges, predicate);
+        if (matchesByPage == null) {
+            return false;
+        }
+
+        // update copies of the entries, keeping the originals to check against
+        Map<Integer, Map<Integer, RecordEntry>> updatesByPage = new LinkedHashMap<>();
+        List<RecordEntry> oldEntries = new ArrayList<>();
+        List<RecordEntry> newEntries = new ArrayList<>();
+        Set<Integer> changedColumns = new HashSet<>();
+        for (var pageMatches : matchesByPage.entrySet()) {
+            Page page = getPage(pageMatches.getKey());
+            if (page == null) {
+                return false;
+            }
+            List<RecordEntry> entries = page.read(codec);
+            Map<Integer, RecordEntry> updates = new LinkedHashMap<>();
+            for (int position : pageMatches.getValue()) {
+                RecordEntry entry = entries.get(position);
+                RecordEntry updated = new RecordEntry(new ArrayList<>(entry.data));
+                updater.accept(updated);
+                for (int i = 0; i < schema.types.size(); i++) {
+                    if (!Objects.equals(entry.data.get(i), updated.data.get(i))) {
+                        changedColumns.add(i);
+                    }
+                }
+                if (codec.encode(updated).capacity() + Page.SLOT_BYTES >= pageBuffer.pageSize) {
+                    // pages are too small
+                    return false;
+                }
+                updates.put(position, updated);
+                oldEntries.add(entry);
+                newEntries.add(updated);
+            }
+            updatesByPage.put(pageMatches.getKey(), updates);
+        }
+        if (changedColumns.isEmpty()) {
+            return true;
+        }
+        if (!checkUpdateConstraints(oldEntries, newEntries, changedColumns)) {
+            return false;
+        }
+
+        Index index = isIndexed() ? primaryIndex() : null;
+        List<RecordEntry> reinserted = new ArrayList<>();
+        for (var pageUpdates : updatesByPage.entrySet()) {
+            int pageNum = pageUpdates.getKey();
+            Map<Integer, RecordEntry> updates = pageUpdates.getValue();
+            Page page = getPage(pageNum);
+            if (page == null) {
+                return false;
+            }
+
+            List<Integer> slots = new ArrayList<>();
+            List<RecordEntry> entries = page.read(codec, slots);
+            List<RecordEntry> kept = new ArrayList<>(entries.size());
+            List<Integer> keptSlots = new ArrayList<>(entries.size());
+            List<RecordEntry> rekeyed = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i++) {
+                RecordEntry updated = updates.get(i);
+                if (updated == null) {
+                    kept.add(entries.get(i));
+                    keptSlots.add(slots.get(i));
+                } else if (Objects.equals(entries.get(i).data.get(schema.primaryKeyIndex), updated.data.get(schema.primaryKeyIndex))) {
+                    kept.add(updated);
+                    keptSlots.add(slots.get(i));
+                } else {
+                    // a new primary key belongs somewhere else in the table
+                    rekeyed.add(entries.get(i));
+                    reinserted.add(updated);
+                }
+            }
+
+            // the old keys leave the index first, since moving kept entries to new pages finds them by page
+            if (index != null) {
+                for (RecordEntry entry : rekeyed) {
+                    index.delete(entry.data.get(schema.primaryKeyIndex));
+                }
+            }
+            if (!rewritePage(codec, pageNum, kept, keptSlots, index)) {
+                return false;
+            }
+            for (RecordEntry entry : rekeyed) {
+                removeFromSecondaryIndexes(entry);
+            }
+            for (var update : updates.entrySet()) {
+                RecordEntry entry = entries.get(update.getKey());
+                if (!rekeyed.contains(entry)) {
+                    updateSecondaryIndexes(entry, update.getValue());
+                }
+            }
+        }
+
+        // every old value leaves the unique sets before any new value joins, since updates can swap values
+        for (int i : changedColumns) {
+            HashIndex set = schema.uniques.get(i) ? uniqueSet(i, false) : null;
+            if (set == null) {
+                continue;
+            }
+            for (RecordEntry entry : oldEntries) {
+                if (entry.data.get(i) != null) {
+                    set.delete(entry.data.get(i));
+                }
+            }
+            for (RecordEntry entry : newEntries) {
+                // entries with a new primary key join when they are inserted again
+                if (entry.data.get(i) != null && !reinserted.contains(entry)) {
+                    set.insert(entry.data.get(i), BPPointer.nullPtr());
+                }
+            }
+        }
+        for (RecordEntry entry : reinserted) {
+            if (!insert(entry, false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param predicate the predicate to determine what should be updated
+     * @param updater   the function applying the update
+     * @return if successful
+     */
+    public boolean updateMatching(Predicate<RecordEntry> predicate, Consumer<RecordEntry> updater) {
+        return updateMatching(Map.of(), predicate, updater);
+    }
+
+    /**
+     * Find the entries matching the predicate, using an index when the ranges allow it
+     *
+     * @param ranges the range of values for each constrained column index
+     * @param predicate the predicate
+     * @return the positions of the matching entries on each page, or null if an error occurred
+     */
+    private Map<Integer, List<Integer>> findPositions(Map<Integer, KeyRange> ranges, Predicate<RecordEntry> predicate) {
+        RecordCodec codec = catalog.getCodec(tableId);
+        Map<Integer, List<Integer>> matchesByPage = new LinkedHashMap<>();
+        Iterator<BPPointer> pointers = findPointers(ranges);
+        if (pointers == null) {
+            pointers = tablePointers();
+        }
+        int currentPageNum = -1;
+        List<RecordEntry> currentEntries = List.of();
+        int[] positions = new int[0];
+        while (pointers.hasNext()) {
+            BPPointer pointer = pointers.next();
+            if (pointer.pageNum != currentPageNum) {
+                Page page = getPage(pointer.pageNum);
+                if (page == null) {
+                    return null;
+                }
+                currentPageNum = pointer.pageNum;
+                List<Integer> slots = new ArrayList<>();
+                currentEntries = page.read(codec, slots);
+                positions = slotPositions(slots);
+            }
+            int position = positions[pointer.entryNum];
+            if (predicate.test(currentEntries.get(position))) {
+                matchesByPage.computeIfAbsent(currentPageNum, k -> new ArrayList<>()).add(position);
+            }
+        }
+        return matchesByPage;
+    }
+
+    /**
+     * Rewrite a page with new entries in key order, which keep their slots. Entries which no longer fit move to
+     * new pages right after it, and a page left with no entries is deleted. A heap table offers the space left on
+     * the pages for reuse.
+     *
+     * @param codec the codec for the table
+     * @param pageNum the page
+     * @param entries the entries the page holds now
+     * @param slots the slot of each entry
+     * @param index the primary key index, or null if the table is not indexed
+     * @return if successful
+     */
+    private boolean rewritePage(RecordCodec codec, int pageNum, List<RecordEntry> entries, List<Integer> slots, Index index) {
+        return rewritePage(codec, pageNum, entries, slots, index, null);
+    }
+
+    /**
+     * Rewrite a page with new entries in key order, spread over it and new pages right after it
+     *
+     * @param codec the codec for the table
+     * @param pageNum the page
+     * @param entries the entries the page holds now
+     * @param slots the slot of each entry
+     * @param index the primary key index, or null if the table is not indexed
+     * @param starts the position of the first entry of each page, as chosen by {@link #pageStarts}, or null to
+     *               fill each page before starting the next one
+     * @return if successful
+     */
+    private boolean rewritePage(RecordCodec codec, int pageNum, List<RecordEntry> entries, List<Integer> slots, Index index,
+                                List<Integer> starts) {
+        if (entries.isEmpty()) {
+            catalog.removePage(tableId, pageNum);
+            return deletePage(pageNum);
+        }
+        Page page = getPage(pageNum);
+        if (page == null) {
+            return false;
+        }
+
+        page.buf.rewind();
+        page.buf.put(new byte[pageBuffer.pageSize]);
+        page.buf.rewind();
+        int end = pageEnd(starts, 0, entries.size());
+        int written = page.write(codec, entries.subList(0, end), slots.subList(0, end), 0);
+        page.buf.rewind();
+        int sortingIndex = catalog.getPages(tableId).indexOf(pageNum);
+        setFence(sortingIndex, entries.getFirst(), entries.get(written - 1));
+        setFreeSpace(codec, page);
+        while (written < entries.size()) {
+            Page newPage = allocateNewPage(++sortingIndex);
+            if (newPage == null) {
+                return false;
+            }
+            end = pageEnd(starts, written, entries.size());
+            int count = newPage.write(codec, entries.subList(written, end), slots.subList(written, end), 0);
+            newPage.buf.rewind();
+            if (count == 0) {
+                throw new IllegalStateException("Entry does not fit in an empty page");
+            }
+            setFence(sortingIndex, entries.get(written), entries.get(written + count - 1));
+            setFreeSpace(codec, newPage);
+            if (index != null && isHeap()) {
+                // the keys of a heap page are not contiguous in the index, so each pointer is replaced alone
+                for (int i = written; i < written + count; i++) {
+                    Object primaryKey = entries.get(i).data.get(schema.primaryKeyIndex);
+                    index.delete(primaryKey);
+                    index.insert(primaryKey, BPPointer.table(newPage.num, slots.get(i)));
+                }
+            } else if (index != null) {
+                List<Object> moved = new ArrayList<>(count);
+                for (int i = written; i < written + count; i++) {
+                    moved.add(entries.get(i).data.get(schema.primaryKeyIndex));
+                }
+                index.move(moved, pageNum, newPage.num);
+            }
+            written += count;
+        }
+        return true;
+    }
+
+    /**
+     * @param starts the position of the first entry of each page, or null if each page is filled
+     * @param from the position of the first entry of a page
+     * @param size the amount of entries
+     * @return the position after the last entry the page takes
+     */
+    private static int pageEnd(List<Integer> starts, int from, int size) {
+        if (starts != null) {
+            for (int start : starts) {
+                if (start > from) {
+                    return start;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Rewrite a page written in an earlier version of the schema in the current version, before an entry is added
+     * to it in place. Entries which no longer fit move to new pages right after it.
+     *
+     * @param codec the codec for the table
+     * @param page the page
+     * @param index the primary key index, or null if the table is not indexed
+     * @return if successful
+     */
+    private boolean upgradePage(RecordCodec codec, Page page, Index index) {
+        List<Integer> slots = new ArrayList<>();
+        List<RecordEntry> entries = page.read(codec, slots);
+        return rewritePage(codec, page.num, entries, slots, index);
+    }
+
+    /**
+     * Checks the constraints of updated entries against each other and every entry which is not updated.
+     * A new value of a unique column is taken when another updated entry ends up with it, or when the table has it
+     * and no updated entry is giving it up.
+     *
+     * @param oldEntries the entries before the update
+     * @param newEntries the entries after the update, in the same order
+     * @param changedColumns the columns which any update changed
+     * @return if the constraints still hold after the update
+     */
+    private boolean checkUpdateConstraints(List<RecordEntry> oldEntries, List<RecordEntry> newEntries, Set<Integer> changedColumns) {
+        for (int i : changedColumns) {
+            if (!schema.nullables.get(i)) {
+                for (RecordEntry updated : newEntries) {
+                    if (updated.data.get(i) == null) {
+                        System.err.println("Error: Null value found in nonnull column '" + schema.names.get(i));
+                        return false;
+                    }
+                }
+            }
+            if (!schema.uniques.get(i)) {
+                continue;
+            }
+
+            Set<Object> oldValues = new HashSet<>();
+            for (RecordEntry entry : oldEntries) {
+                oldValues.add(entry.data.get(i));
+            }
+            Set<Object> newValues = new HashSet<>();
+            for (RecordEntry updated : newEntries) {
+                Object value = updated.data.get(i);
+                if (value == null) {
+                    // there can be multiple nulls in a unique column
+                    continue;
+                }
+                if (!newValues.add(value) || (!oldValues.contains(value) && containsUnique(i, value))) {
+                    System.err.println("Error: Duplicate value found in unique column '" + schema.names.get(i) + "': " + value);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param record the entry to add
+     * @param checkConstraints if constraints should be checked
+     * @return if successful
+     */
+    public boolean insert(RecordEntry record, boolean checkConstraints) {
+        if (checkConstraints && !checkConstraints(record)) {
+            return false;
+        }
+
+        Index index = isIndexed() ? primaryIndex() : null;
+        if (!place(record, index)) {
+            return false;
+        }
+        if (index != null) {
+            addToSecondaryIndexes(record);
+        }
+        addToUniqueSets(record);
+        return true;
+    }
+
+    /**
+     * Insert many records, stopping at the first which cannot be inserted. Every record is checked before any is
+     * inserted. The records are then sorted by primary key and merged into the pages they belong on, so each page
+     * is read and rewritten once however many records it receives, spreading them over it and as many new pages
+     * after it as the records need. A heap table appends them instead. The keys of the records are added to the primary and
+     * secondary indexes in one batch per index once every record is placed.
+     *
+     * @param records the entries to add
+     * @param checkConstraints if constraints should be checked
+     * @return the index of the first record which was not inserted, or the amount of records if all were inserted
+     */
+    public int insertBatch(List<RecordEntry> records, boolean checkConstraints) {
+        RecordCodec codec = catalog.getCodec(tableId);
+        Index index = isIndexed() ? primaryIndex() : null;
+
+        // keep the records before the first one which breaks a constraint
+        List<Set<Object>> seen = new ArrayList<>(schema.types.size());
+        for (int i = 0; i < schema.types.size(); i++) {
+            seen.add(new HashSet<>());
+        }
+        int accepted = 0;
+        while (accepted < records.size()) {
+            RecordEntry record = records.get(accepted);
+            if (checkConstraints ? !checkConstraints(record)
+                    : index != null && index.get(record.data.get(schema.primaryKeyIndex)) != null) {
+                break;
+            }
+            if (!checkBatchConstraints(record, seen, checkConstraints)) {
+                break;
+            }
+            if (codec.encode(record).capacity() + Page.SLOT_BYTES >= pageBuffer.pageSize) {
+                // pages are too small
+                break;
+            }
+            accepted++;
+        }
+        if (accepted == 0) {
+            return 0;
+        }
+
+        List<Integer> order = new ArrayList<>(accepted);
+        for (int i = 0; i < accepted; i++) {
+            order.add(i);
+        }
+        order.sort((a, b) -> codec.compareRecords(records.get(a), records.get(b)));
+        List<RecordEntry> sorted = new ArrayList<>(accepted);
+        for (int i : order) {
+            sorted.add(records.get(i));
+        }
+
+        // the keys wait until every record is placed, following the records as pages split
+        PendingIndex pending = index == null ? null : new PendingIndex(index);
+        int placed = 0;
+        int failed = accepted;
+        if (isHeap()) {
+            // a heap table takes each record wherever there is room, and the keys still reach the index in order
+            while (placed < accepted && placeInHeap(codec, sorted.get(placed), codec.encode(sorted.get(placed)), pending)) {
+                placed++;
+            }
+            if (placed < accepted) {
+                failed = order.get(placed);
+            }
+        } else {
+            List<Integer> pageNums = catalog.getPages(tableId);
+            if (pageNums == null) {
+                if (allocateNewPage(-1) == null) {
+                    return 0;
+                }
+                pageNums = catalog.getPages(tableId);
+            }
+            // find the page of every record before any page changes, where each goes before its successor
+            int[] targets = new int[accepted];
+            for (int i = 0; i < accepted; i++) {
+                RecordEntry record = sorted.get(i);
+                BPPointer successor = successor(codec, pageNums, record);
+                targets[i] = successor == null ? pageNums.getLast() : successor.pageNum;
+            }
+
+            while (placed < accepted) {
+                int end = placed;
+                while (end < accepted && targets[end] == targets[placed]) {
+                    end++;
+                }
+                if (!mergeIntoPage(codec, targets[placed], sorted.subList(placed, end), pending)) {
+                    failed = order.get(placed);
+                    break;
+                }
+                placed = end;
+            }
+        }
+        List<RecordEntry> inserted = sorted.subList(0, placed);
+        if (pending != null) {
+            pending.flush();
+            for (SecondaryIndex secondaryIndex : catalog.getSecondaryIndexes(tableId)) {
+                if (catalog.indexMode && catalog.hasIndex(secondaryIndex.indexId)) {
+                    int columnIndex = schema.getColumnIndex(secondaryIndex.columnName);
+                    List<Map.Entry<Object, BPPointer>> keys = new ArrayList<>(inserted.size());
+                    for (RecordEntry record : inserted) {
+                        keys.add(Map.entry(secondaryKey(record, columnIndex), BPPointer.nullPtr()));
+                    }
+                    secondaryTree(secondaryIndex).insertBatch(keys);
+                }
+            }
+        }
+        for (RecordEntry record : inserted) {
+            addToUniqueSets(record);
+        }
+        return failed;
+    }
+
+    /**
+     * Merge records into a page in key order and rewrite it, moving what does not fit to new pages after it as
+     * chosen by {@link #pageStarts}. The page's entries keep their slots, and the new records take the lowest
+     * slots which are free.
+     *
+     * @param codec the codec for the table
+     * @param pageNum the page
+     * @param records the records which go on the page, in ascending key order
+     * @param index the primary key index, which receives the pointers of the new records, or null if the table is
+     *              not indexed
+     * @return if successful
+     */
+    private boolean mergeIntoPage(RecordCodec codec, int pageNum, List<RecordEntry> records, Index index) {
+        Page page = getPage(pageNum);
+        if (page == null) {
+            return false;
+        }
+        List<Integer> slots = new ArrayList<>();
+        List<RecordEntry> entries = page.read(codec, slots);
+        Set<Integer> usedSlots = new HashSet<>(slots);
+
+        List<RecordEntry> merged = new ArrayList<>(entries.size() + records.size());
+        List<Integer> mergedSlots = new ArrayList<>(entries.size() + records.size());
+        int nextSlot = 0;
+        int i = 0;
+        int firstAdded = -1;
+        for (RecordEntry record : records) {
+            while (i < entries.size() && codec.compareRecords(entries.get(i), record) < 0) {
+                merged.add(entries.get(i));
+                mergedSlots.add(slots.get(i));
+                i++;
+            }
+            while (usedSlots.contains(nextSlot)) {
+                nextSlot++;
+            }
+            if (firstAdded < 0) {
+                firstAdded = merged.size();
+            }
+            merged.add(record);
+            mergedSlots.add(nextSlot);
+            if (index != null) {
+                index.insert(record.data.get(schema.primaryKeyIndex), BPPointer.table(pageNum, nextSlot));
+            }
+            nextSlot++;
+        }
+        int lastAdded = i + records.size() - 1;
+        for (; i < entries.size(); i++) {
+            merged.add(entries.get(i));
+            mergedSlots.add(slots.get(i));
+        }
+        return rewritePage(codec, pageNum, merged, mergedSlots, index,
+                pageStarts(codec, merged, firstAdded, lastAdded, records.size()));
+    }
+
+    /**
+     * Load records in bulk, where a record which cannot be loaded fails the whole load and nothing is loaded. Every
+     * record is sorted by primary key before the table changes, in runs which are written to temporary files when
+     * there are too many to hold in memory, so input which fails to read or has a null in a non-null column loads
+     * nothing. A table with no entries then has its pages written directly, each packed full in key order, and its
+     * indexes bulk loaded from those pages, and a record which breaks a unique constraint removes every page again.
+     * The values of its unique columns are checked in memory, and the persistent sets of them are built again the
+     * next time they are needed. A table which already has entries has every record checked against it and the
+     * other records first, and then takes them through {@link #insertBatch} a batch at a time.
+     *
+     * @param records the records to load, in any order
+     * @return the amount of records loaded, or -1 if an error occurred
+     * @throws IOException if the temporary files could not be written or read
      */
-    public void findMatching(Predicate<RecordEntry> predicate, Consumer<RecordEntry> operation) {
+    public long load(Iterator<RecordEntry> records) throws IOException {
         RecordCodec codec = catalog.getCodec(tableId);
-        List<Integer> pages = catalog.getPages(tableId);
-        if (pages == null) {
-            return;
-        }
-
-        for (int pageNum : pages) {
-            Page page = getPage(pageNum);
-            if (page == null) {
-                return;
-            }
-
-            page.buf.rewind();
-            List<RecordEntry> entries = page.read(codec);
-            page.buf.rewind();
-            for (RecordEntry entry : entries) {
-                if (predicate.test(entry)) {
-                    operation.accept(entry);
+        Path tempDir = pageBuffer.getPagesDir().toAbsolutePath().getParent();
+        try (ExternalSort sort = new ExternalSort(codec, tempDir, LOAD_RUN_BYTES)) {
+            while (records.hasNext()) {
+                RecordEntry record = records.next();
+                for (int i = 0; i < schema.types.size(); i++) {
+                    if (!schema.nullables.get(i) && record.data.get(i) == null) {
+                        System.err.println("Error: Null value found in nonnull column '" + schema.names.get(i));
+                        return -1;
+                    }
                 }
+                sort.add(record);
+            }
+            if (catalog.getPages(tableId) == null) {
+                return loadPages(codec, sort.sorted());
             }
+            // the sorted records are read twice, so the table only changes once every record is known to fit in it
+            if (!checkLoad(codec, sort.sorted())) {
+                return -1;
+            }
+            return loadBatches(sort.sorted());
         }
     }
 
     /**
-     * Deletes all entries matching the predicate
+     * Write sorted records to the pages of an empty table, filling each page before starting the next one
      *
-     * @param predicate the predicate
-     * @return if successful
+     * @param codec the codec for the table
+     * @param sorted the records in ascending key order
+     * @return the amount of records loaded, or -1 if an error occurred
      */
-    public boolean deleteMatching(Predicate<RecordEntry> predicate) {
-        RecordCodec codec = catalog.getCodec(tableId);
-        List<Integer> pages = catalog.getPages(tableId);
-        if (pages == null) {
-            return true;
+    private long loadPages(RecordCodec codec, Iterator<RecordEntry> sorted) {
+        // the table starts empty, so each unique value only needs to be checked against the records before it.
+        // they are held in memory rather than the persistent sets, which are built again from the pages when needed
+        dropUniqueSets();
+        List<Set<Object>> sets = new ArrayList<>(schema.types.size());
+        for (int i = 0; i < schema.types.size(); i++) {
+            sets.add(schema.uniques.get(i) && i != schema.primaryKeyIndex ? new HashSet<>() : null);
         }
 
-        int newTableId = catalog.createTable(name + "_tmp_delete", codec);
-        Table table = new Table(storageManager, newTableId);
-
-        for (int pageNum : pages) {
-            Page page = getPage(pageNum);
-            if (page == null) {
-                table.drop();
-                return false;
+        // a page is only fetched once its entries are known, so nothing evicts it while it is written
+        List<ByteBuffer> pageEntries = new ArrayList<>();
+        int pageBytes = Integer.BYTES;
+        RecordEntry pageFirst = null;
+        RecordEntry previous = null;
+        long count = 0;
+        while (sorted.hasNext()) {
+            RecordEntry record = sorted.next();
+            if (previous != null && codec.compareRecords(previous, record) == 0) {
+                System.err.println("Error: Duplicate value found in unique column '" + schema.names.get(schema.primaryKeyIndex)
+                        + "': " + record.data.get(schema.primaryKeyIndex));
+                return undoLoad();
             }
-            page.buf.rewind();
-
-            List<RecordEntry> entries = page.read(codec);
-            for (RecordEntry entry : entries) {
-                if (predicate.test(entry)) {
-                    continue;
+            for (int i = 0; i < sets.size(); i++) {
+                Object value = record.data.get(i);
+                if (sets.get(i) != null && value != null && !sets.get(i).add(value)) {
+                    System.err.println("Error: Duplicate value found in unique column '" + schema.names.get(i) + "': " + value);
+                    return undoLoad();
                 }
-                boolean success = table.insert(entry, true);
-                if (!success) {
-                    catalog.deleteTable(newTableId);
-                    return false;
+            }
+            ByteBuffer encoded = codec.encode(record);
+            if (encoded.capacity() + Page.SLOT_BYTES >= pageBuffer.pageSize) {
+                System.err.println("Error: Record is too large for a page: " + record.data);
+                return undoLoad();
+            }
+            if (pageBytes + Page.SLOT_BYTES + encoded.capacity() >= pageBuffer.pageSize) {
+                if (!writeLoadedPage(pageEntries, pageFirst, previous)) {
+                    return undoLoad();
                 }
+                pageEntries.clear();
+                pageBytes = Integer.BYTES;
             }
-            page.buf.rewind();
+            if (pageEntries.isEmpty()) {
+                pageFirst = record;
+            }
+            pageEntries.add(encoded);
+            pageBytes += Page.SLOT_BYTES + encoded.capacity();
+            previous = record;
+            count++;
+        }
+        if (!pageEntries.isEmpty() && !writeLoadedPage(pageEntries, pageFirst, previous)) {
+            return undoLoad();
         }
 
-        catalog.deleteTable(this.tableId);
-        catalog.renameTable(newTableId, name);
-        for (int pageNum : pages) {
-            if (!deletePage(pageNum)) {
-                return false;
+        if (isIndexed()) {
+            buildIndex();
+            for (SecondaryIndex secondaryIndex : catalog.getSecondaryIndexes(tableId)) {
+                if (catalog.hasIndex(secondaryIndex.indexId)) {
+                    buildSecondaryIndex(secondaryIndex);
+                }
             }
         }
-        return true;
+        return count;
     }
 
     /**
-     * @param predicate the predicate to determine what should be updated
-     * @param updater   the function applying the update
+     * @param entries the encoded entries of a new page at the end of the table, in key order
+     * @param first the first entry
+     * @param last the last entry
      * @return if successful
      */
-    public boolean updateMatching(Predicate<RecordEntry> predicate, Consumer<RecordEntry> updater) {
-        RecordCodec codec = catalog.getCodec(tableId);
-        List<Integer> pages = catalog.getPages(tableId);
-        if (pages == null) {
-            return true;
+    private boolean writeLoadedPage(List<ByteBuffer> entries, RecordEntry first, RecordEntry last) {
+        Page page = allocateNewPage(-1);
+        if (page == null) {
+            return false;
+        }
+        setFence(catalog.getPages(tableId).size() - 1, first, last);
+        page.buf.rewind();
+        page.buf.putInt(Page.header(entries.size(), catalog.getCodec(tableId).version));
+        for (int slot = 0; slot < entries.size(); slot++) {
+            ByteBuffer encoded = entries.get(slot);
+            encoded.rewind();
+            page.buf.putShort((short) slot);
+            page.buf.put(encoded);
         }
+        page.buf.rewind();
+        return true;
+    }
 
-        int newTableId = catalog.createTable(name + "_tmp_update", codec);
-        Table table = new Table(storageManager, newTableId);
+    /**
+     * Remove the pages written by a load into an empty table
+     *
+     * @return -1, for the load which failed
+     */
+    private long undoLoad() {
+        List<Integer> pageNums = catalog.getPages(tableId);
+        if (pageNums != null) {
+            for (int pageNum : pageNums) {
+                deletePage(pageNum);
+            }
+            catalog.removePages(tableId);
+        }
+        return -1;
+    }
 
-        for (int pageNum : pages) {
-            Page page = getPage(pageNum);
-            if (page == null) {
-                table.drop();
+    /**
+     * Checks the constraints of the records of a load into a table which has entries, against the table and each
+     * other, before any is inserted
+     *
+     * @param codec the codec for the table
+     * @param sorted the records in ascending key order
+     * @return if every record can be inserted
+     */
+    private boolean checkLoad(RecordCodec codec, Iterator<RecordEntry> sorted) {
+        List<Set<Object>> sets = new ArrayList<>(schema.types.size());
+        for (int i = 0; i < schema.types.size(); i++) {
+            sets.add(schema.uniques.get(i) && i != schema.primaryKeyIndex ? new HashSet<>() : null);
+        }
+        RecordEntry previous = null;
+        while (sorted.hasNext()) {
+            RecordEntry record = sorted.next();
+            if (previous != null && codec.compareRecords(previous, record) == 0) {
+                System.err.println("Error: Duplicate value found in unique column '" + schema.names.get(schema.primaryKeyIndex)
+                        + "': " + record.data.get(schema.primaryKeyIndex));
                 return false;
             }
-            page.buf.rewind();
-
-            List<RecordEntry> entries = page.read(codec);
-            for (RecordEntry entry : entries) {
-                if (predicate.test(entry)) {
-                    updater.accept(entry);
-                }
-                boolean success = table.insert(entry, true);
-                if (!success) {
-                    catalog.deleteTable(newTableId);
+            if (!checkConstraints(record)) {
+                return false;
+            }
+            for (int i = 0; i < sets.size(); i++) {
+                Object value = record.data.get(i);
+                if (sets.get(i) != null && value != null && !sets.get(i).add(value)) {
+                    System.err.println("Error: Duplicate value found in unique column '" + schema.names.get(i) + "': " + value);
                     return false;
                 }
             }
-            page.buf.rewind();
+            if (codec.encode(record).capacity() + Page.SLOT_BYTES >= pageBuffer.pageSize) {
+                System.err.println("Error: Record is too large for a page: " + record.data);
+                return false;
+            }
+            previous = record;
+        }
+        return true;
+    }
+
+    /**
+     * Insert sorted records into a table which has entries, a batch at a time, once {@link #checkLoad} has checked
+     * them
+     *
+     * @param sorted the records in ascending key order
+     * @return the amount of records loaded, or -1 if a record could not be inserted
+     */
+    private long loadBatches(Iterator<RecordEntry> sorted) {
+        List<RecordEntry> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+        long count = 0;
+        while (sorted.hasNext()) {
+            batch.add(sorted.next());
+            if (batch.size() == LOAD_BATCH_SIZE || !sorted.hasNext()) {
+                int inserted = insertBatch(batch, false);
+                if (inserted < batch.size()) {
+                    // only a table which could not be written stops a checked load, and what was written is kept
+                    System.err.println("Error: Load stopped at record " + batch.get(inserted).data + ", keeping the "
+                            + (count + inserted) + " records loaded before it");
+                    return -1;
+                }
+                count += inserted;
+                batch.clear();
+            }
         }
+        return count;
+    }
 
-        catalog.deleteTable(this.tableId);
-        catalog.renameTable(newTableId, name);
-        for (int pageNum : pages) {
-            if (!deletePage(pageNum)) {
+    /**
+     * Checks the unique constraints against earlier records of a batch, which are not in the table yet
+     *
+     * @param record the record to insert
+     * @param seen the values of each column in the earlier records, which the record's values are added to
+     * @param checkConstraints if every unique column is checked, rather than only the primary key
+     * @return if the unique constraints still hold with the record
+     */
+    private boolean checkBatchConstraints(RecordEntry record, List<Set<Object>> seen, boolean checkConstraints) {
+        for (int i = 0; i < schema.types.size(); i++) {
+            if (i != schema.primaryKeyIndex && !(checkConstraints && schema.uniques.get(i))) {
+                continue;
+            }
+            Object value = record.data.get(i);
+            if (value == null && schema.nullables.get(i)) {
+                // there can be multiple nulls in a unique column
+                continue;
+            }
+            if (!seen.get(i).add(value)) {
+                System.err.println("Error: Duplicate value found in unique column '" + schema.names.get(i) + "': " + value);
                 return false;
             }
         }
-
         return true;
     }
 
     /**
+     * Write a record into the table's pages and add its primary key to the index
+     *
      * @param record the entry to add
-     * @param checkConstraints if constraints should be checked
+     * @param index the primary key index, or null if the table is not indexed
      * @return if successful
      */
-    public boolean insert(RecordEntry record, boolean checkConstraints) {
-        if (checkConstraints && !checkConstraints(record)) {
-            return false;
-        }
-
+    private boolean place(RecordEntry record, Index index) {
         RecordCodec codec = catalog.getCodec(tableId);
         ByteBuffer encoded = codec.encode(record);
-        if (encoded.capacity() >= pageBuffer.pageSize) {
+        if (encoded.capacity() + Page.SLOT_BYTES >= pageBuffer.pageSize) {
             // pages are too small
             return false;
         }
+        if (isHeap()) {
+            return placeInHeap(codec, record, encoded, index);
+        }
 
         List<Integer> pageNums = catalog.getPages(tableId);
         if (pageNums == null) {
@@ -211,95 +1284,178 @@ public class Table {
             if (written != 1) {
                 throw new IllegalStateException("Could not write record to empty page");
             }
-            if (catalog.indexMode) {
+            setFence(0, record, record);
+            if (index != null) {
                 Object primaryKey = record.data.get(codec.schema.primaryKeyIndex);
-                BPTree tree = new BPTree(tableId, codec.schema.types.get(codec.schema.primaryKeyIndex));
-                return tree.insert(primaryKey, BPPointer.table(page.num, 0));
+                return index.insert(primaryKey, BPPointer.table(page.num, 0));
             }
             return true;
         }
 
 
-        if (catalog.indexMode) {
+        if (index != null) {
             Object primaryKey = record.data.get(codec.schema.primaryKeyIndex);
-            BPTree tree = new BPTree(tableId, codec.schema.types.get(codec.schema.primaryKeyIndex));
-            BPPointer pointer = tree.search(primaryKey);
-            if (pointer == null) {
+            // the hash finds a duplicate key without reading the table, but cannot find the next larger key
+            if (!isTreeIndexed() && index.get(primaryKey) != null) {
                 return false;
             }
+            BPPointer pointer = successor(codec, pageNums, record);
             // insert
-            return insertIndexed(tree, pointer, codec, pageNums, record, encoded);
+            return insertIndexed(index, pointer, codec, pageNums, record, encoded);
         }
 
         return insertIteratePages(codec, pageNums, record, encoded);
     }
 
+    /**
+     * Write a record into a heap table, on the last page if it has room, then on a page which deletes left with
+     * room, and otherwise on a new last page. The primary key is unique by the index rather than by the order of
+     * the pages.
+     *
+     * @param codec the codec for the table
+     * @param record the entry to add
+     * @param encoded the encoded form of the entry
+     * @param index the primary key index, or null if the table is not indexed
+     * @return if successful
+     */
+    private boolean placeInHeap(RecordCodec codec, RecordEntry record, ByteBuffer encoded, Index index) {
+        Object primaryKey = record.data.get(schema.primaryKeyIndex);
+        if (index != null && index.get(primaryKey) != null) {
+            return false;
+        }
+
+        List<Integer> pageNums = catalog.getPages(tableId);
+        BPPointer pointer = null;
+        if (pageNums != null) {
+            pointer = appendToPage(codec, pageNums.getLast(), encoded, index);
+            if (pointer == null) {
+                int pageNum = catalog.findFreePage(tableId, Page.SLOT_BYTES + encoded.capacity());
+                if (pageNum >= 0) {
+                    pointer = appendToPage(codec, pageNum, encoded, index);
+                }
+            }
+        }
+        if (pointer == null) {
+            Page page = allocateNewPage(-1);
+            if (page == null) {
+                return false;
+            }
+            pointer = appendToPage(codec, page.num, encoded, index);
+            if (pointer == null) {
+                throw new IllegalStateException("Entry does not fit in an empty page");
+            }
+        }
+        return index == null || index.insert(primaryKey, pointer);
+    }
+
+    /**
+     * Append an entry after the last entry of a heap table's page, giving it the lowest free slot. A page written
+     * in an earlier version of the schema is upgraded first.
+     *
+     * @param codec the codec for the table
+     * @param pageNum the page
+     * @param encoded the encoded entry
+     * @param index the primary key index, or null if the table is not indexed
+     * @return the pointer to the appended entry, or null if the page has no room for it
+     */
+    private BPPointer appendToPage(RecordCodec codec, int pageNum, ByteBuffer encoded, Index index) {
+        Page page = getPage(pageNum);
+        if (page == null) {
+            throw new IllegalStateException("Unable to read page " + pageNum + " of table " + name);
+        }
+        if (!page.isWrittenIn(codec)) {
+            if (!upgradePage(codec, page, index)) {
+                throw new IllegalStateException("Unable to upgrade page " + pageNum + " of table " + name);
+            }
+            page = getPage(pageNum);
+            if (page == null) {
+                throw new IllegalStateException("Unable to read page " + pageNum + " of table " + name);
+            }
+        }
+        List<Integer> slots = new ArrayList<>();
+        page.buf.rewind();
+        int count = Page.count(page.buf.getInt());
+        for (int i = 0; i < count; i++) {
+            slots.add(Short.toUnsignedInt(page.buf.getShort()));
+            codec.decode(page.buf);
+        }
+        if (page.buf.position() + Page.SLOT_BYTES + encoded.capacity() >= page.buf.capacity()) {
+            page.buf.rewind();
+            return null;
+        }
+
+        int slot = Page.freeSlot(slots);
+        encoded.rewind();
+        page.buf.putShort((short) slot);
+        page.buf.put(encoded);
+        page.buf.rewind();
+        page.buf.putInt(Page.header(count + 1, codec.version));
+        page.buf.rewind();
+        setFreeSpace(codec, page);
+        return BPPointer.table(pageNum, slot);
+    }
+
     /**
      * Insert into the table using an index
      *
-     * @param tree the BPTree for the index
+     * @param index the primary key index
+     * @param pointer the pointer to the entry with the next larger primary key, or null if there is none
      * @param codec the codec for the table
      * @param pageNums the page numbers for the table
      * @param toInsert the record to insert
      * @param encoded the encoded form of the record to insert
      * @return if insertion was successful
      */
-    private boolean insertIndexed(BPTree tree, BPPointer pointer, RecordCodec codec, List<Integer> pageNums, RecordEntry toInsert,
+    private boolean insertIndexed(Index index, BPPointer pointer, RecordCodec codec, List<Integer> pageNums, RecordEntry toInsert,
                                   ByteBuffer encoded) {
-        int insertionPageNum = pointer.pageNum;
+        // the entry goes before the next larger entry, or at the end of the last page
+        int insertionPageNum = pointer == null ? pageNums.getLast() : pointer.pageNum;
         int insertionPageSortingIndex = pageNums.indexOf(insertionPageNum);
-        int insertionIndex = pointer.entryNum;
 
+        Page mainPage = getPage(insertionPageNum);
+        if (mainPage == null) {
+            return false;
+        }
+        if (!mainPage.isWrittenIn(codec)) {
+            // upgrading the page can move entries to new pages, so the place is found again
+            return upgradePage(codec, mainPage, index) && place(toInsert, index);
+        }
+        List<Integer> slots = new ArrayList<>();
+        var mainPageRecords = mainPage.read(codec, slots);
+        int insertionIndex = pointer == null ? mainPageRecords.size() : slots.indexOf(pointer.entryNum);
         if (insertionIndex < 0) {
-            throw new IllegalStateException("Leaf node had -1 entry num");
+            throw new IllegalStateException("Index points to a missing slot: " + pointer);
+        }
+        if (insertionIndex < mainPageRecords.size() && codec.compareRecords(toInsert, mainPageRecords.get(insertionIndex)) == 0) {
+            // the primary key is already present
+            return false;
         }
 
-        Page mainPage = getPage(insertionPageNum);
+        Object primaryKey = toInsert.data.get(codec.schema.primaryKeyIndex);
+        int slot = Page.freeSlot(slots);
         int currentPageBytes = mainPage.getSize(codec);
-        int insertedPageBytes = currentPageBytes + encoded.capacity();
+        int insertedPageBytes = currentPageBytes + Page.SLOT_BYTES + encoded.capacity();
         if (insertedPageBytes < mainPage.buf.capacity()) {
-            mainPage.buf.rewind();
-            var currentContent = mainPage.read(codec);
-            mainPage.buf.rewind();
-
-            RecordEntry start = currentContent.get(insertionIndex);
-            Object startPrimaryKey = start.data.get(codec.schema.primaryKeyIndex);
-            tree.update(startPrimaryKey,
-                    (ptr) -> ptr.pageNum == mainPage.num,
-                    (ptr) -> BPPointer.table(mainPage.num, ptr.entryNum + 1));
-
-            // there is room to insert directly
-            insertIntoPageDirect(codec, mainPage.buf, encoded, insertionIndex);
-
-            Object primaryKey = toInsert.data.get(codec.schema.primaryKeyIndex);
-            return tree.insert(primaryKey, BPPointer.table(mainPage.num, insertionIndex));
+            // there is room to insert directly, and no other entry changes slot
+            insertIntoPageDirect(codec, mainPage.buf, encoded, insertionIndex, slot);
+            setFence(insertionPageSortingIndex, insertionIndex == 0 ? toInsert : mainPageRecords.getFirst(),
+                    insertionIndex == mainPageRecords.size() ? toInsert : mainPageRecords.getLast());
+            return index.insert(primaryKey, BPPointer.table(mainPage.num, slot));
         }
 
         // there is not enough room in the page, requiring a page split
-
-        // determine the split point
-        mainPage.buf.rewind();
-        var mainPageRecords = mainPage.read(codec);
-        mainPage.buf.rewind();
-
         mainPageRecords.add(insertionIndex, toInsert);
+        slots.add(insertionIndex, slot);
 
-        // split the pages
-        int splitIndex = ceilDiv(mainPageRecords.size(), 2);
-        List<RecordEntry> leftSplit = new ArrayList<>(splitIndex);
-        List<RecordEntry> rightSplit = new ArrayList<>(mainPageRecords.size() - splitIndex);
-        for (int i = 0; i < mainPageRecords.size(); i++) {
-            RecordEntry record = mainPageRecords.get(i);
-            if (i < splitIndex) {
-                leftSplit.add(record);
-            } else {
-                rightSplit.add(record);
-            }
-        }
+        // split the pages, where every entry keeps its slot
+        int splitIndex = pageStarts(codec, mainPageRecords, insertionIndex, insertionIndex, 1).get(1);
+        List<RecordEntry> leftSplit = new ArrayList<>(mainPageRecords.subList(0, splitIndex));
+        List<RecordEntry> rightSplit = new ArrayList<>(mainPageRecords.subList(splitIndex, mainPageRecords.size()));
 
         // left page is the main page
+        mainPage.buf.rewind();
         mainPage.buf.put(new byte[pageBuffer.pageSize]); // wipe the current page
-        int written = mainPage.write(codec, leftSplit, 0);
+        int written = mainPage.write(codec, leftSplit, slots.subList(0, splitIndex), 0);
         mainPage.buf.rewind();
         if (written != leftSplit.size()) {
             throw new IllegalStateException("Left page did not write the expected amount of entries");
@@ -310,89 +1466,280 @@ public class Table {
         if (newPage == null) {
             return false;
         }
-        written = newPage.write(codec, rightSplit, 0);
+        written = newPage.write(codec, rightSplit, slots.subList(splitIndex, slots.size()), 0);
         newPage.buf.rewind();
         if (written != rightSplit.size()) {
             throw new IllegalStateException("Right page did not write the expected amount of entries");
         }
-
-        int location = leftSplit.indexOf(toInsert);
-        if (location < 0) {
-            location = rightSplit.indexOf(toInsert);
+        setFence(insertionPageSortingIndex, leftSplit.getFirst(), leftSplit.getLast());
+        setFence(insertionPageSortingIndex + 1, rightSplit.getFirst(), rightSplit.getLast());
+
+        // only the existing entries which moved to the new page need their pointers changed
+        int mainPageNum = mainPage.num;
+        int newPageNum = newPage.num;
+        List<Object> moved = new ArrayList<>(rightSplit.size());
+        for (int i = splitIndex; i < mainPageRecords.size(); i++) {
+            if (i != insertionIndex) {
+                moved.add(mainPageRecords.get(i).data.get(codec.schema.primaryKeyIndex));
+            }
         }
+        index.move(moved, mainPageNum, newPageNum);
 
-        RecordEntry start = leftSplit.get(0);
-        Object startPrimaryKey = start.data.get(codec.schema.primaryKeyIndex);
-        tree.update(startPrimaryKey,
-                (ptr) -> ptr.pageNum == mainPage.num,
-                (ptr) -> BPPointer.table(mainPage.num, ptr.entryNum + 1));
-        start = rightSplit.get(0);
-        startPrimaryKey = start.data.get(codec.schema.primaryKeyIndex);
-        tree.update(startPrimaryKey,
-                (ptr) -> ptr.pageNum == newPage.num,
-                (ptr) -> BPPointer.table(newPage.num, ptr.entryNum + 1));
-
-        Object primaryKey = toInsert.data.get(codec.schema.primaryKeyIndex);
-        return tree.insert(primaryKey, BPPointer.table(mainPage.num, location));
+        return index.insert(primaryKey, BPPointer.table(insertionIndex < splitIndex ? mainPageNum : newPageNum, slot));
     }
 
     /**
-     * Insert into the table by iterating the pages to find the insertion page and index
+     * Find where an entry goes, checking the tail page first since keys mostly arrive in increasing order
+     *
      * @param codec the codec for the table
      * @param pageNums the page numbers for the table
      * @param toInsert the record to insert
-     * @param encoded the encoded form of the record to insert
-     * @return if insertion was successful
+     * @return the pointer to the entry with the next larger primary key, or null if there is none
      */
-    private boolean insertIteratePages(RecordCodec codec, List<Integer> pageNums, RecordEntry toInsert,
-                                       ByteBuffer encoded) {
-        int insertionPageNum = -1;
-        int insertionPageSortingIndex = -1;
-        int insertionIndex = -1;
+    private BPPointer successor(RecordCodec codec, List<Integer> pageNums, RecordEntry toInsert) {
+        if (pastTail(codec, pageNums.size(), toInsert)) {
+            return null;
+        }
+        if (isTreeIndexed()) {
+            return primaryTree().search(toInsert.data.get(schema.primaryKeyIndex));
+        }
+        return findSuccessor(codec, pageNums, toInsert);
+    }
 
-        outer:
-        for (int pageNumIndex = 0; pageNumIndex < pageNums.size(); pageNumIndex++) {
-            int pageNum = pageNums.get(pageNumIndex);
-            Page page = getPage(pageNum);
-            if (page == null) {
-                return false;
+    /**
+     * Check if an entry goes after every entry of the table, using the highest key of the last page, which is
+     * kept with the page's fence
+     *
+     * @param codec the codec for the table
+     * @param pageCount the amount of pages the table has
+     * @param record the record to place
+     * @return if the record's key is larger than the highest key of the last page
+     */
+    private boolean pastTail(RecordCodec codec, int pageCount, RecordEntry record) {
+        if (schema.primaryKeyIndex < 0 || pageCount == 0) {
+            return false;
+        }
+        PageFence tail = fence(pageCount - 1);
+        return tail != null && codec.compareKeys(tail.high, record.data.get(schema.primaryKeyIndex)) < 0;
+    }
+
+    /**
+     * Choose how entries are spread over a page and the new pages after it, once entries are added to it. Entries
+     * added after every entry of the page are most likely a run of increasing keys, so each page is filled before
+     * the next one and the last page takes what is left for the following entries to fill. Entries added before
+     * every entry are most likely a run of decreasing keys, so the pages are filled from the end instead, and the
+     * page itself keeps what is left. Entries added within the last or first tenth of the page leave that tenth on
+     * pages of its own, and any others are spread evenly over as few pages as hold them.
+     *
+     * @param codec the codec for the table
+     * @param entries the entries, in key order, including the added ones
+     * @param firstAdded the position of the first added entry
+     * @param lastAdded the position of the last added entry
+     * @param added the amount of added entries
+     * @return the position of the first entry of each page, starting with the page itself
+     */
+    private List<Integer> pageStarts(RecordCodec codec, List<RecordEntry> entries, int firstAdded, int lastAdded, int added) {
+        int size = entries.size();
+        int[] bytes = new int[size];
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            bytes[i] = Page.SLOT_BYTES + codec.encode(entries.get(i)).capacity();
+            total += bytes[i];
+        }
+        List<Integer> starts = new ArrayList<>();
+        if (fitsPage(total)) {
+            starts.add(0);
+            return starts;
+        }
+        int tail = Math.max(1, size / 10);
+        if (firstAdded == size - added) {
+            fillForward(bytes, 0, size, starts);
+        } else if (lastAdded == added - 1) {
+            fillBackward(bytes, 0, size, starts);
+        } else if (firstAdded >= size - tail) {
+            starts.add(0);
+            fillForward(bytes, size - tail, size, starts);
+        } else if (lastAdded < tail) {
+            fillBackward(bytes, 0, tail, starts);
+            starts.add(tail);
+        } else {
+            fillForward(bytes, 0, size, starts);
+            spreadEvenly(bytes, total, starts);
+        }
+        return starts;
+    }
+
+    /**
+     * @param bytes the bytes each entry takes on a page, with its slot
+     * @return if entries taking that many bytes fit on a page
+     */
+    private boolean fitsPage(int bytes) {
+        return Integer.BYTES + bytes < pageBuffer.pageSize;
+    }
+
+    /**
+     * Add the starts of pages filled one after another with the entries in [from, to)
+     */
+    private void fillForward(int[] bytes, int from, int to, List<Integer> starts) {
+        starts.add(from);
+        int pageBytes = 0;
+        for (int i = from; i < to; i++) {
+            if (!fitsPage(pageBytes + bytes[i])) {
+                starts.add(i);
+                pageBytes = 0;
             }
+            pageBytes += bytes[i];
+        }
+    }
 
-            page.buf.rewind();
-            var records = page.read(codec);
-            page.buf.rewind();
+    /**
+     * Add the starts of pages filled from the end with the entries in [from, to), so the first page holds what
+     * is left
+     */
+    private void fillBackward(int[] bytes, int from, int to, List<Integer> starts) {
+        List<Integer> reversed = new ArrayList<>();
+        int pageBytes = 0;
+        for (int i = to - 1; i >= from; i--) {
+            if (!fitsPage(pageBytes + bytes[i])) {
+                reversed.add(i + 1);
+                pageBytes = 0;
+            }
+            pageBytes += bytes[i];
+        }
+        starts.add(from);
+        starts.addAll(reversed.reversed());
+    }
 
-            for (int i = 0; i < records.size(); i++) {
-                RecordEntry record = records.get(i);
-                int cmp = codec.compareRecords(toInsert, record);
-                if (cmp < 0) {
-                    // first record where the record to insert is smaller
-                    insertionPageNum = pageNum;
-                    insertionPageSortingIndex = pageNumIndex;
-                    insertionIndex = i;
-                    break outer;
-                }
+    /**
+     * Move the starts of pages filled one after another so each holds about the same bytes, unless an entry would
+     * then not fit
+     *
+     * @param bytes the bytes each entry takes on a page, with its slot
+     * @param total the bytes of every entry
+     * @param starts the starts of the filled pages, which are replaced
+     */
+    private void spreadEvenly(int[] bytes, int total, List<Integer> starts) {
+        int pages = starts.size();
+        List<Integer> even = new ArrayList<>(pages);
+        even.add(0);
+        long before = 0;
+        for (int i = 0; i < bytes.length && even.size() < pages; i++) {
+            if (i > even.getLast() && before * pages >= (long) total * even.size()) {
+                even.add(i);
+            }
+            before += bytes[i];
+        }
+        for (int page = 0; page < even.size(); page++) {
+            int end = page + 1 < even.size() ? even.get(page + 1) : bytes.length;
+            int pageBytes = 0;
+            for (int i = even.get(page); i < end; i++) {
+                pageBytes += bytes[i];
+            }
+            if (!fitsPage(pageBytes)) {
+                return;
             }
         }
+        starts.clear();
+        starts.addAll(even);
+    }
 
-        if (insertionIndex < 0) {
-            // never found a page to insert into, meaning this record is the biggest
-            // make a new page at the end and insert it into there
-            Page page = allocateNewPage(-1);
-            if (page == null) {
-                return false;
+    /**
+     * Find where an entry goes without a B+ tree, by binary searching the fences of the pages, so only the page
+     * holding the successor is read
+     *
+     * @param codec the codec for the table
+     * @param pageNums the page numbers for the table
+     * @param toInsert the record to insert
+     * @return the pointer to the entry with the next larger primary key, or null if there is none
+     */
+    private BPPointer findSuccessor(RecordCodec codec, List<Integer> pageNums, RecordEntry toInsert) {
+        int sortingIndex = searchFences(codec, pageNums.size(), toInsert, true);
+        if (sortingIndex == pageNums.size()) {
+            return null;
+        }
+        List<Integer> slots = new ArrayList<>();
+        List<RecordEntry> records = getPage(pageNums.get(sortingIndex)).read(codec, slots);
+        for (int j = 0; j < records.size(); j++) {
+            if (codec.compareRecords(toInsert, records.get(j)) <= 0) {
+                return BPPointer.table(pageNums.get(sortingIndex), slots.get(j));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Binary search the fences of the pages, which only reads the pages whose fences are not known yet
+     *
+     * @param codec the codec for the table
+     * @param pageCount the amount of pages the table has
+     * @param record the record to place
+     * @param inclusive if a page whose highest key equals the record's key is found
+     * @return the position of the first page whose highest key is larger than the record's key, or equal when
+     *         inclusive, which is the amount of pages if there is none
+     */
+    private int searchFences(RecordCodec codec, int pageCount, RecordEntry record, boolean inclusive) {
+        if (schema.primaryKeyIndex < 0) {
+            // without a key every entry is placed first
+            return 0;
+        }
+        Object key = record.data.get(schema.primaryKeyIndex);
+        int low = 0;
+        int high = pageCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            PageFence fence = fence(mid);
+            // a page with no entries yet can take any key
+            int cmp = fence == null ? 1 : codec.compareKeys(fence.high, key);
+            if (cmp > 0 || (inclusive && cmp == 0)) {
+                high = mid;
+            } else {
+                low = mid + 1;
             }
-            page.buf.putInt(1); // size
-            page.buf.put(encoded); // record
-            return true;
+        }
+        return low;
+    }
+
+    /**
+     * Insert into the table by iterating the pages to find the insertion page and index
+     * @param codec the codec for the table
+     * @param pageNums the page numbers for the table
+     * @param toInsert the record to insert
+     * @param encoded the encoded form of the record to insert
+     * @return if insertion was successful
+     */
+    private boolean insertIteratePages(RecordCodec codec, List<Integer> pageNums, RecordEntry toInsert,
+                                       ByteBuffer encoded) {
+        // the entry goes before the first larger entry, which is on the first page with a larger highest key,
+        // or at the end of the last page when there is none
+        int insertionPageSortingIndex = pastTail(codec, pageNums.size(), toInsert) ? pageNums.size()
+                : searchFences(codec, pageNums.size(), toInsert, false);
+        if (insertionPageSortingIndex == pageNums.size()) {
+            insertionPageSortingIndex = pageNums.size() - 1;
         }
 
+        int insertionPageNum = pageNums.get(insertionPageSortingIndex);
         Page mainPage = getPage(insertionPageNum);
+        if (mainPage == null) {
+            return false;
+        }
+        if (!mainPage.isWrittenIn(codec)) {
+            // upgrading the page can move entries to new pages, so the place is found again
+            return upgradePage(codec, mainPage, null) && place(toInsert, null);
+        }
+        List<Integer> slots = new ArrayList<>();
+        var records = mainPage.read(codec, slots);
+        int insertionIndex = 0;
+        while (insertionIndex < records.size() && codec.compareRecords(toInsert, records.get(insertionIndex)) >= 0) {
+            insertionIndex++;
+        }
+
         int currentPageBytes = mainPage.getSize(codec);
-        int insertedPageBytes = currentPageBytes + encoded.capacity();
+        int insertedPageBytes = currentPageBytes + Page.SLOT_BYTES + encoded.capacity();
         if (insertedPageBytes < mainPage.buf.capacity()) {
             // there is room to insert directly
-            insertIntoPageDirect(codec, mainPage.buf, encoded, insertionIndex);
+            insertIntoPageDirect(codec, mainPage.buf, encoded, insertionIndex, Page.freeSlot(slots));
+            setFence(insertionPageSortingIndex, insertionIndex == 0 ? toInsert : records.getFirst(),
+                    insertionIndex == records.size() ? toInsert : records.getLast());
             return true;
         }
 
@@ -406,7 +1753,7 @@ public class Table {
         mainPageRecords.add(insertionIndex, toInsert);
 
         // split the pages
-        int splitIndex = ceilDiv(mainPageRecords.size(), 2);
+        int splitIndex = pageStarts(codec, mainPageRecords, insertionIndex, insertionIndex, 1).get(1);
         List<RecordEntry> leftSplit = new ArrayList<>(splitIndex);
         List<RecordEntry> rightSplit = new ArrayList<>(mainPageRecords.size() - splitIndex);
         for (int i = 0; i < mainPageRecords.size(); i++) {
@@ -436,46 +1783,72 @@ public class Table {
         if (written != rightSplit.size()) {
             throw new IllegalStateException("Right page did not write the expected amount of entries");
         }
+        setFence(insertionPageSortingIndex, leftSplit.getFirst(), leftSplit.getLast());
+        setFence(insertionPageSortingIndex + 1, rightSplit.getFirst(), rightSplit.getLast());
 
         return true;
     }
 
     /**
-     * Insert into a page directly
+     * Insert into a page directly, which must be written in the current version of the schema
      *
      * @param codec the codec for the page
      * @param buf the buffer for the page
      * @param toInsert the entry to insert
      * @param index the index in which to insert the entry
+     * @param slot the unused slot to give the entry
      */
-    private void insertIntoPageDirect(RecordCodec codec, ByteBuffer buf, ByteBuffer toInsert, int index) {
+    private void insertIntoPageDirect(RecordCodec codec, ByteBuffer buf, ByteBuffer toInsert, int index, int slot) {
         buf.rewind();
-        int recordCount = buf.getInt();
+        int recordCount = Page.count(buf.getInt());
 
         // advance the buffer up to the insertion point
         for (int i = 0; i < index; i++) {
+            buf.position(buf.position() + Page.SLOT_BYTES);
             codec.decode(buf);
         }
         int insertionBytePosition = buf.position();
 
         // copy everything after the insertion position to a temporary buffer
-        byte[] temp = new byte[buf.capacity() - (insertionBytePosition + toInsert.capacity())];
+        byte[] temp = new byte[buf.capacity() - (insertionBytePosition + Page.SLOT_BYTES + toInsert.capacity())];
         buf.get(temp);
 
         // move back to the new location to insert
         buf.position(insertionBytePosition);
         // insert the new entry, overwriting old data
+        buf.putShort((short) slot);
         buf.put(toInsert);
         // insert the rest after the new entry, overwriting old data
         buf.put(temp);
         buf.rewind();
 
         // update the record count
-        buf.putInt(recordCount + 1);
+        buf.putInt(Page.header(recordCount + 1, codec.version));
         buf.rewind();
     }
 
     /**
+     * @param slots the slot of each entry on a page, in order
+     * @return the position of each slot's entry on the page, indexed by slot
+     */
+    private static int[] slotPositions(List<Integer> slots) {
+        int max = -1;
+        for (int slot : slots) {
+            max = Math.max(max, slot);
+        }
+        int[] positions = new int[max + 1];
+        Arrays.fill(positions, -1);
+        for (int i = 0; i < slots.size(); i++) {
+            positions[slots.get(i)] = i;
+        }
+        return positions;
+    }
+
+    /**
+     * Add a column to the table. Only the schema changes: the pages keep the version of the schema they were
+     * written in, and their entries take the default value of the new column when they are read, until the pages
+     * are next rewritten.
+     *
      * @param name the name of the column
      * @param type the type of the value in the column
      * @param size the size of the value in the column, or -1 for auto sizing
@@ -483,8 +1856,7 @@ public class Table {
      * @return if successful
      */
     public boolean alterAdd(String name, RecordEntryType type, int size, Object defaultValue) {
-        String oldName = catalog.getTableName(tableId);
-        if (oldName == null) {
+        if (catalog.getTableName(tableId) == null) {
             // table does not exist
             return false;
         }
@@ -497,66 +1869,30 @@ public class Table {
         TableSchema schema = oldCodec.schema.copy();
         schema.names.add(name);
         schema.types.add(type);
-        schema.sizes.add(size == -1 ? type.size() : size);
+        // the sizes of strings are in bytes, like the sizes computed when a table is created
+        schema.sizes.add(size == -1 ? type.size() : size * type.size());
         schema.defaultValues.add(defaultValue);
         schema.uniques.add(false);
         schema.nullables.add(true);
-        RecordCodec codec = new RecordCodec(schema);
-
-        List<Integer> pages = catalog.getPages(tableId);
-        if (pages == null) {
-            return true;
-        }
-
-        int id = catalog.createTable(oldName + "_alter_add_tmp", codec);
-        for (int pageNum : pages) {
-            Page page = getPage(pageNum);
-            if (page == null) {
-                return false;
-            }
-
-            page.buf.rewind();
-            List<RecordEntry> list = page.read(oldCodec);
-            for (RecordEntry entry : list) {
-                entry.data.add(defaultValue);
-            }
-
-            Page newPage = storageManager.allocateNewTablePage(id, -1);
-            if (newPage == null) {
-                return false;
-            }
-
-            newPage.buf.rewind();
-            int written = newPage.write(codec, list, 0);
-            while (written < list.size()) {
-                newPage = storageManager.allocateNewTablePage(id, -1);
-                if (newPage == null) {
-                    return false;
-                }
-                written += newPage.write(codec, list, written);
-                newPage.buf.rewind();
-            }
-            newPage.buf.rewind();
-        }
 
-        catalog.deleteTable(this.tableId);
-        catalog.renameTable(id, oldName);
-        for (int pageNum : pages) {
-            if (!deletePage(pageNum)) {
-                return false;
-            }
+        int[] sources = new int[schema.types.size()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = i < oldCodec.schema.types.size() ? i : -1;
         }
-
+        // copy again so column lookups see the new column
+        catalog.setCodec(tableId, oldCodec.alter(schema.copy(), sources));
         return true;
     }
 
     /**
+     * Drop a column from the table. Only the schema changes: the pages keep the version of the schema they were
+     * written in, and the column is skipped when their entries are read, until the pages are next rewritten.
+     *
      * @param index the index of the column
      * @return if successful
      */
     public boolean alterDrop(int index) {
-        String oldName = catalog.getTableName(tableId);
-        if (oldName == null) {
+        if (catalog.getTableName(tableId) == null) {
             // table does not exist
             return false;
         }
@@ -565,283 +1901,457 @@ public class Table {
         if (index >= oldCodec.schema.types.size()) {
             return false;
         }
+        if (index == oldCodec.schema.primaryKeyIndex) {
+            System.err.println("Error: Cannot drop the primary key column '" + oldCodec.schema.names.get(index) + "'");
+            return false;
+        }
 
-        TableSchema schema = oldCodec.schema.copy();
-        schema.names.remove(index);
-        schema.types.remove(index);
-        schema.sizes.remove(index);
-        schema.uniques.remove(index);
-        schema.nullables.remove(index);
-        schema.defaultValues.remove(index);
-        RecordCodec codec = new RecordCodec(schema);
-
-        int id = catalog.createTable(oldName + "_alter_add_tmp", codec);
-        List<Integer> pages = catalog.getPages(tableId);
-        for (int pageNum : pages) {
-            Page page = getPage(pageNum);
-            if (page == null) {
-                return false;
+        TableSchema old = oldCodec.schema.copy();
+        old.names.remove(index);
+        old.types.remove(index);
+        old.sizes.remove(index);
+        old.uniques.remove(index);
+        old.nullables.remove(index);
+        old.defaultValues.remove(index);
+        // the primary key shifts down when a column before it is dropped
+        int primaryKeyIndex = oldCodec.schema.primaryKeyIndex > index ? oldCodec.schema.primaryKeyIndex - 1 : oldCodec.schema.primaryKeyIndex;
+        TableSchema schema = new TableSchema(old.names, old.types, old.sizes, old.defaultValues, old.uniques, old.nullables, primaryKeyIndex, false);
+
+        // an index on the dropped column has nothing left to index
+        for (SecondaryIndex secondaryIndex : catalog.getSecondaryIndexes(tableId)) {
+            if (oldCodec.schema.getColumnIndex(secondaryIndex.columnName) == index) {
+                storageManager.deleteIndex(secondaryIndex.indexId);
+                catalog.removeSecondaryIndex(secondaryIndex.name);
             }
+        }
+        if (oldCodec.schema.uniques.get(index)) {
+            // the other unique columns build their sets again when they need them
+            dropUniqueSets();
+        }
 
-            page.buf.rewind();
-            List<RecordEntry> list = page.read(oldCodec);
-            for (RecordEntry entry : list) {
-                entry.data.remove(index);
-            }
+        int[] sources = new int[schema.types.size()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = i < index ? i : i + 1;
+        }
+        catalog.setCodec(tableId, oldCodec.alter(schema, sources));
+        return true;
+    }
 
-            Page newPage = storageManager.allocateNewTablePage(id, -1);
-            if (newPage == null) {
-                return false;
-            }
+    /**
+     * Drop the table, deleting its pages and indexes as whole files
+     * @return if successful
+     */
+    public boolean drop() {
+        dropUniqueSets();
+        for (SecondaryIndex index : catalog.getSecondaryIndexes(tableId)) {
+            storageManager.deleteIndex(index.indexId);
+        }
+        if (catalog.hasIndex(tableId)) {
+            storageManager.deleteIndex(tableId);
+        }
+        boolean deleted = storageManager.deleteTable(tableId);
+        catalog.deleteTable(tableId);
+        return deleted;
+    }
 
-            newPage.buf.rewind();
-            int written = newPage.write(codec, list, 0);
-            while (written < list.size()) {
-                newPage = storageManager.allocateNewTablePage(id, -1);
-                if (newPage == null) {
-                    return false;
+    /**
+     * Delete every entry of the table, keeping its schema and index definitions. The pages are deleted as a whole
+     * file and the indexes are rebuilt empty, instead of removing each entry.
+     * @return if successful
+     */
+    public boolean truncate() {
+        dropUniqueSets();
+        if (!storageManager.deleteTable(tableId)) {
+            return false;
+        }
+        catalog.removePages(tableId);
+        if (isIndexed()) {
+            buildIndex();
+            for (SecondaryIndex index : catalog.getSecondaryIndexes(tableId)) {
+                if (catalog.hasIndex(index.indexId)) {
+                    buildSecondaryIndex(index);
                 }
-                written += newPage.write(codec, list, written);
-                newPage.buf.rewind();
             }
-            newPage.buf.rewind();
+        }
+        return true;
+    }
+
+    /**
+     * Convert the table from the layout of a catalog with no format version, where entries had no slot numbers.
+     * The entries are loaded into new pages as by {@link #load}, since the old pages are not always in key order,
+     * and the old pages are deleted afterwards. The table's indexes are discarded, since their nodes changed layout
+     * too, and are built again when indexing is on.
+     *
+     * @return if successful
+     * @throws IOException if the temporary files of the load could not be written or read
+     */
+    public boolean upgradeFormat() throws IOException {
+        dropUniqueSets();
+        storageManager.deleteIndex(tableId);
+        catalog.removeIndex(tableId);
+        for (SecondaryIndex index : catalog.getSecondaryIndexes(tableId)) {
+            storageManager.deleteIndex(index.indexId);
+            catalog.removeIndex(index.indexId);
         }
 
-        catalog.deleteTable(tableId);
-        catalog.renameTable(id, oldName);
-        for (int pageNum : pages) {
-            if (!deletePage(pageNum)) {
-                return false;
+        List<Integer> pageNums = catalog.getPages(tableId);
+        if (pageNums == null) {
+            return true;
+        }
+        // the load sorts every entry before it writes a page, and new pages never reuse the old page numbers
+        List<Integer> oldPageNums = new ArrayList<>(pageNums);
+        catalog.removePages(tableId);
+        RecordCodec codec = catalog.getCodec(tableId);
+        Iterator<RecordEntry> entries = oldPageNums.stream().flatMap(pageNum -> {
+            Page page = getPage(pageNum);
+            if (page == null) {
+                throw new IllegalStateException("Unable to read page " + pageNum + " of table " + name);
             }
+            return page.readUnslotted(codec).stream();
+        }).iterator();
+        long loaded = load(entries);
+        for (int pageNum : oldPageNums) {
+            deletePage(pageNum);
         }
+        return loaded >= 0;
+    }
 
+    /**
+     * Rebuild the primary key index from the table's pages, which are already in key order unless the table is a
+     * heap, with a bulk load
+     *
+     * @return if successful
+     */
+    public boolean buildIndex() {
+        if (!catalog.indexMode || schema.primaryKeyIndex < 0) {
+            return false;
+        }
+        Iterator<Map.Entry<Object, BPPointer>> entries = indexEntries();
+        if (isHeap()) {
+            // the pages of a heap table are not in key order
+            RecordCodec codec = catalog.getCodec(tableId);
+            List<Map.Entry<Object, BPPointer>> sorted = new ArrayList<>();
+            entries.forEachRemaining(sorted::add);
+            sorted.sort((a, b) -> codec.compareKeys(a.getKey(), b.getKey()));
+            entries = sorted.iterator();
+        }
+        primaryIndex().bulkLoad(entries, BPTree.DEFAULT_FILL_FACTOR);
         return true;
     }
 
     /**
-     * Drop the table
+     * Rebuild a secondary index from the table's entries, sorting their keys and bulk loading them
+     *
+     * @param index the secondary index of this table
      * @return if successful
      */
-    public boolean drop() {
-        List<Integer> pages = catalog.getPages(tableId);
-        if (pages == null) {
-            catalog.deleteTable(tableId);
+    public boolean buildSecondaryIndex(SecondaryIndex index) {
+        if (!isIndexed()) {
             return false;
         }
-        for (int pageNum : pages) {
-            try {
-                pageBuffer.deleteTablePage(tableId, pageNum);
-            } catch (IOException e) {
-                System.err.println("Error deleting page from table " + tableId + ": " + pageNum);
-                e.printStackTrace();
-            }
-        }
-        if (catalog.indexMode) {
-            BPTree tree = new BPTree(tableId, schema.types.get(schema.primaryKeyIndex));
-            tree.drop();
+        int columnIndex = schema.getColumnIndex(index.columnName);
+        if (columnIndex < 0) {
+            return false;
         }
-        catalog.deleteTable(tableId);
+        List<Map.Entry<Object, BPPointer>> keys = new ArrayList<>();
+        findMatching(entry -> true, entry -> keys.add(Map.entry(secondaryKey(entry, columnIndex), BPPointer.nullPtr())));
+        keys.sort((a, b) -> ((IndexKey) a.getKey()).compareTo((IndexKey) b.getKey()));
+        secondaryTree(index).bulkLoad(keys.iterator(), BPTree.DEFAULT_FILL_FACTOR);
         return true;
     }
 
     /**
-     * Merge N tables together
-     * @param list the list to merge, will be <strong>mutated</strong>
-     * @return the merged table, which must be deleted after use
+     * Add an entry's keys to the secondary indexes of the table
+     *
+     * @param entry the entry
      */
-    public static Table mergeN(ArrayList<Table> list) {
-        if (list.isEmpty()) {
-            throw new IllegalArgumentException("cannot merge empty list of tables");
+    private void addToSecondaryIndexes(RecordEntry entry) {
+        for (SecondaryIndex index : catalog.getSecondaryIndexes(tableId)) {
+            if (catalog.indexMode && catalog.hasIndex(index.indexId)) {
+                secondaryTree(index).insert(secondaryKey(entry, schema.getColumnIndex(index.columnName)), BPPointer.nullPtr());
+            }
         }
+    }
 
-        if (list.size() == 1) {
-            return list.get(0);
-        }
-        Table a = list.remove(0);
-        Table b = list.remove(0);
-        Table merged = merge(a, b, -1);
-        if (a.getName().startsWith("Merged[")) {
-            a.drop();
+    /**
+     * Remove an entry's keys from the secondary indexes of the table
+     *
+     * @param entry the entry
+     */
+    private void removeFromSecondaryIndexes(RecordEntry entry) {
+        for (SecondaryIndex index : catalog.getSecondaryIndexes(tableId)) {
+            if (catalog.indexMode && catalog.hasIndex(index.indexId)) {
+                secondaryTree(index).delete(secondaryKey(entry, schema.getColumnIndex(index.columnName)));
+            }
         }
-        if (b.getName().startsWith("Merged[")) {
-            b.drop();
+    }
+
+    /**
+     * Replace the keys of an updated entry in the secondary indexes on columns the update changed
+     *
+     * @param entry the entry before the update
+     * @param updated the entry after the update, with the same primary key
+     */
+    private void updateSecondaryIndexes(RecordEntry entry, RecordEntry updated) {
+        for (SecondaryIndex index : catalog.getSecondaryIndexes(tableId)) {
+            int columnIndex = schema.getColumnIndex(index.columnName);
+            if (catalog.indexMode && catalog.hasIndex(index.indexId)
+                    && !Objects.equals(entry.data.get(columnIndex), updated.data.get(columnIndex))) {
+                BPTree tree = secondaryTree(index);
+                tree.delete(secondaryKey(entry, columnIndex));
+                tree.insert(secondaryKey(updated, columnIndex), BPPointer.nullPtr());
+            }
         }
-        list.add(0, merged);
-        return mergeN(list);
+    }
+
+    private IndexKey secondaryKey(RecordEntry entry, int columnIndex) {
+        return IndexKey.of(entry.data.get(columnIndex), entry.data.get(schema.primaryKeyIndex));
     }
 
     /**
-     * Merge two tables
-     * @param a the first table
-     * @param b the second table
-     * @param primaryKeyIndex the index of the primary key within the result of the merged type lists, < 0 for "none"
-     * @return the table
+     * @return the primary key index, which is either a B+ tree or a hash index
      */
-    public static Table merge(Table a, Table b, int primaryKeyIndex) {
-        TableSchema schema = TableSchema.merge(a.schema, b.schema, primaryKeyIndex);
+    private Index primaryIndex() {
+        if (catalog.isHashIndexed(tableId)) {
+            return storageManager.getIndex(tableId, id -> new HashIndex(storageManager, id, schema.types.get(schema.primaryKeyIndex)));
+        }
+        return primaryTree();
+    }
 
-        int id = a.catalog.createTable("Merged[" + a.getName() + "," + b.getName() + "]", new RecordCodec(schema));
-        Table table = new Table(a.storageManager, id);
+    private BPTree primaryTree() {
+        return storageManager.getIndex(tableId, id -> new BPTree(storageManager, id, schema.types.get(schema.primaryKeyIndex)));
+    }
 
-        // populate with all combinations of a and b
-        RecordCodec aCodec = a.catalog.getCodec(a.tableId);
-        List<Integer> aPages = new ArrayList<>(a.catalog.getPages(a.tableId));
-        RecordCodec bCodec = b.catalog.getCodec(b.tableId);
-        List<Integer> bPages = new ArrayList<>(b.catalog.getPages(b.tableId));
+    private BPTree secondaryTree(SecondaryIndex index) {
+        return storageManager.getIndex(index.indexId,
+                id -> BPTree.secondary(storageManager, id, schema, schema.getColumnIndex(index.columnName)));
+    }
 
-        for (int aPageNum : aPages) {
-            Page aPage = a.getPage(aPageNum);
-            if (aPage == null) {
-                return table;
+    /**
+     * @return the (primary key, pointer) pair for every entry, in page order, reading one page at a time
+     */
+    private Iterator<Map.Entry<Object, BPPointer>> indexEntries() {
+        RecordCodec codec = catalog.getCodec(tableId);
+        List<Integer> pageNums = catalog.getPages(tableId) == null ? List.of() : catalog.getPages(tableId);
+        return new Iterator<>() {
+            private int pageIndex = 0;
+            private int pageNum = -1;
+            private List<RecordEntry> records = List.of();
+            private List<Integer> slots = List.of();
+            private int recordIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (recordIndex >= records.size() && pageIndex < pageNums.size()) {
+                    pageNum = pageNums.get(pageIndex++);
+                    Page page = getPage(pageNum);
+                    if (page == null) {
+                        throw new IllegalStateException("Unable to read page " + pageNum + " of table " + name);
+                    }
+                    slots = new ArrayList<>();
+                    records = page.read(codec, slots);
+                    recordIndex = 0;
+                }
+                return recordIndex < records.size();
             }
 
-            aPage.buf.rewind();
-            List<RecordEntry> aEntries = aPage.read(aCodec);
-            aPage.buf.rewind();
-            for (int bPageNum : bPages) {
-                Page bPage = b.getPage(bPageNum);
-                if (bPage == null) {
-                    return table;
+            @Override
+            public Map.Entry<Object, BPPointer> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                Object primaryKey = records.get(recordIndex).data.get(schema.primaryKeyIndex);
+                return Map.entry(primaryKey, BPPointer.table(pageNum, slots.get(recordIndex++)));
+            }
+        };
+    }
 
-                bPage.buf.rewind();
-                List<RecordEntry> bEntries = bPage.read(bCodec);
-                bPage.buf.rewind();
-                for (var aEntry : aEntries) {
-                    for (var bEntry : bEntries) {
-                        List<Object> entryData = new ArrayList<>(aEntry.data);
-                        entryData.addAll(bEntry.data);
-                        table.insert(new RecordEntry(entryData), false);
-                    }
-                }
+    /**
+     * @return the pointer to every entry, in page order
+     */
+    private Iterator<BPPointer> tablePointers() {
+        Iterator<Map.Entry<Object, BPPointer>> entries = indexEntries();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
             }
-        }
 
-        return table;
+            @Override
+            public BPPointer next() {
+                return entries.next().getValue();
+            }
+        };
+    }
+
+    /**
+     * @return if the table has a primary key index to maintain
+     */
+    private boolean isIndexed() {
+        return catalog.indexMode && catalog.hasIndex(tableId);
+    }
+
+    /**
+     * @return if the table has a primary key index which can scan ranges in key order
+     */
+    private boolean isTreeIndexed() {
+        return isIndexed() && !catalog.isHashIndexed(tableId);
     }
 
     /**
-     * Create a new table with only the selected columns
+     * Checks the NOT NULL and unique constraints for insertion into a table. Each unique column is checked against
+     * a persistent hash set of its values, which is built from the table the first time it is needed, except that
+     * the primary key is checked against its index when the table has one.
      *
-     * @param columnIndices the indices of the columns
-     * @return the new table
+     * @param record the record to insert
+     * @return if the constraints are still valid if the record were inserted
      */
-    public Table toSelected(int[] columnIndices) {
-        RecordCodec codec = catalog.getCodec(tableId);
-        List<Integer> pageNums = catalog.getPages(tableId);
-        if (pageNums == null) {
+    private boolean checkConstraints(RecordEntry record) {
+        for (int i = 0; i < schema.types.size(); i++) {
+            if (!schema.nullables.get(i) && record.data.get(i) == null) {
+                System.err.println("Error: Null value found in nonnull column '" + schema.names.get(i));
+                return false;
+            }
+        }
+        for (int i = 0; i < schema.types.size(); i++) {
+            Object value = record.data.get(i);
+            if (!schema.uniques.get(i) || value == null) {
+                // there can be multiple nulls in a unique column
+                continue;
+            }
+            if (containsUnique(i, value)) {
+                System.err.println("Error: Duplicate value found in unique column '" + schema.names.get(i) + "': " + value);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param columnIndex a unique column
+     * @param value a value which is not null
+     * @return if an entry of the table has the value in the column
+     */
+    private boolean containsUnique(int columnIndex, Object value) {
+        if (columnIndex == schema.primaryKeyIndex && isIndexed()) {
+            return primaryIndex().get(value) != null;
+        }
+        return uniqueSet(columnIndex, true).get(value) != null;
+    }
+
+    /**
+     * @param columnIndex a unique column
+     * @param build if the set should be built from the table's entries when it does not exist yet
+     * @return the set of values in the column, or null if it does not exist and was not built
+     */
+    private HashIndex uniqueSet(int columnIndex, boolean build) {
+        String columnName = schema.names.get(columnIndex);
+        Integer id = catalog.getUniqueIndex(tableId, columnName);
+        if (id == null && !build) {
             return null;
         }
-        List<Integer> indices = new ArrayList<>(columnIndices.length);
-        for (int i : columnIndices) {
-            indices.add(i);
+        boolean created = id == null;
+        if (created) {
+            id = catalog.createUniqueIndex(tableId, columnName);
         }
-        Table result = new Table(storageManager, catalog.createTable("Selected[" + getName() + "]", new RecordCodec(TableSchema.filter(schema, indices))));
-        for (int pageNum : pageNums) {
-            Page page = getPage(pageNum);
-            if (page == null) {
-                result.drop();
-                return null;
-            }
-            List<RecordEntry> list = page.read(codec);
-            for (var entry : list) {
-                List<Object> filtered = new ArrayList<>(entry.data.size());
-                for (int i = 0; i < entry.data.size(); i++) {
-                    for (int index : columnIndices) {
-                        if (i == index) {
-                            filtered.add(entry.data.get(i));
-                            break;
-                        }
-                    }
+        HashIndex set = storageManager.getIndex(id, i -> new HashIndex(storageManager, i, schema.types.get(columnIndex)));
+        if (created) {
+            findMatching(entry -> entry.data.get(columnIndex) != null,
+                    entry -> set.insert(entry.data.get(columnIndex), BPPointer.nullPtr()));
+        }
+        return set;
+    }
+
+    /**
+     * Add an entry's values to the sets of its unique columns which have been built
+     *
+     * @param entry the entry
+     */
+    private void addToUniqueSets(RecordEntry entry) {
+        for (int i = 0; i < schema.types.size(); i++) {
+            if (schema.uniques.get(i) && entry.data.get(i) != null) {
+                HashIndex set = uniqueSet(i, false);
+                if (set != null) {
+                    set.insert(entry.data.get(i), BPPointer.nullPtr());
                 }
-                result.insert(new RecordEntry(filtered), false);
             }
         }
-        return result;
     }
+
     /**
-     * Create a new table with only the filtered rows
+     * Remove an entry's values from the sets of its unique columns which have been built
      *
-     * @param predicate the predicate for which columns should be kept
-     * @return the new table
+     * @param entry the entry
      */
-    public Table toFiltered(Predicate<RecordEntry> predicate) {
-        RecordCodec codec = catalog.getCodec(tableId);
-        List<Integer> pageNums = catalog.getPages(tableId);
-        if (pageNums == null) {
-            return null;
-        }
-        Table result = new Table(storageManager, catalog.createTable("Filtered[" + getName() + "]", codec));
-        for (int pageNum : pageNums) {
-            Page page = getPage(pageNum);
-            if (page == null) {
-                result.drop();
-                return null;
-            }
-            List<RecordEntry> list = page.read(codec);
-            for (var entry : list) {
-                boolean passes;
-                try {
-                    passes = predicate.test(entry);
-                } catch (IllegalArgumentException e) {
-                    System.err.println("Error: " + e.getMessage());
-                    result.drop();
-                    return null;
-                }
-                if (passes) {
-                    result.insert(entry, false);
+    private void removeFromUniqueSets(RecordEntry entry) {
+        for (int i = 0; i < schema.types.size(); i++) {
+            if (schema.uniques.get(i) && entry.data.get(i) != null) {
+                HashIndex set = uniqueSet(i, false);
+                if (set != null) {
+                    set.delete(entry.data.get(i));
                 }
             }
         }
-        return result;
     }
 
     /**
-     * Checks unique constraints for insertion into a table
-     *
-     * @param record the record to insert
-     * @return if the unique constraint is still valid if the record were inserted
+     * Delete the sets of values of the table's unique columns
      */
-    private boolean checkConstraints(RecordEntry record) {
-        // TODO this is really inefficient
-        List<Integer> pageNums = catalog.getPages(tableId);
-        if (pageNums == null) {
-            return true;
+    private void dropUniqueSets() {
+        for (int id : catalog.getUniqueIndexes(tableId)) {
+            storageManager.deleteIndex(id);
         }
-        RecordCodec codec = catalog.getCodec(tableId);
-        for (int pageNum : pageNums) {
-            Page page = getPage(pageNum);
+        catalog.removeUniqueIndexes(tableId);
+    }
+
+    /**
+     * @param sortingIndex the position of a page in the table's pages
+     * @return the lowest and highest primary key on the page, reading the page if they are not known yet, or null
+     *         if the page has no entries
+     */
+    private PageFence fence(int sortingIndex) {
+        PageFence fence = catalog.getFence(tableId, sortingIndex);
+        if (fence == null) {
+            Page page = getPage(catalog.getPages(tableId).get(sortingIndex));
             if (page == null) {
-                return false;
+                throw new IllegalStateException("Unable to read page " + catalog.getPages(tableId).get(sortingIndex) + " of table " + name);
             }
-
-            page.buf.rewind();
-            List<RecordEntry> list = page.read(codec);
-            for (int i = 0; i < codec.schema.types.size(); i++) {
-                for (RecordEntry entry : list) {
-                    Object a = record.data.get(i);
-                    if (!schema.nullables.get(i)) {
-                        if (a == null) {
-                            System.err.println("Error: Null value found in nonnull column '" + schema.names.get(i));
-                            return false;
-                        }
-                    }
-                    if (codec.schema.uniques.get(i)) {
-                        Object b = entry.data.get(i);
-                        if (codec.schema.nullables.get(i) && (a == null || b == null)) {
-                            // there can be multiple nulls in a unique column
-                            continue;
-                        }
-                        if (Objects.equals(a, b)) {
-                            System.err.println("Error: Duplicate value found in unique column '" + codec.schema.names.get(i) + "': " + a);
-                            return false;
-                        }
-                    }
-                }
+            List<RecordEntry> records = page.read(catalog.getCodec(tableId));
+            if (!records.isEmpty()) {
+                setFence(sortingIndex, records.getFirst(), records.getLast());
+                fence = catalog.getFence(tableId, sortingIndex);
             }
         }
+        return fence;
+    }
 
-        return true;
+    /**
+     * Record the lowest and highest primary key on a page after writing it
+     *
+     * @param sortingIndex the position of the page in the table's pages
+     * @param first the first entry on the page
+     * @param last the last entry on the page
+     */
+    private void setFence(int sortingIndex, RecordEntry first, RecordEntry last) {
+        if (schema.primaryKeyIndex < 0 || isHeap()) {
+            // the pages of a heap table are not in key order, so their keys overlap
+            return;
+        }
+        catalog.setFence(tableId, sortingIndex, new PageFence(first.data.get(schema.primaryKeyIndex), last.data.get(schema.primaryKeyIndex)));
+    }
+
+    /**
+     * Offer the space left on a page of a heap table for reuse once enough of it is free
+     *
+     * @param codec the codec for the table
+     * @param page the page after it was written
+     */
+    private void setFreeSpace(RecordCodec codec, Page page) {
+        if (!isHeap()) {
+            return;
+        }
+        int free = page.buf.capacity() - page.getSize(codec);
+        catalog.setFreeSpace(tableId, page.num, free >= pageBuffer.pageSize / HEAP_REUSE_FRACTION ? free : 0);
     }
 
     /**
@@ -868,7 +2378,73 @@ public class Table {
         return storageManager.deleteTablePage(tableId, pageNum);
     }
 
-    private int ceilDiv(int x, int y){
-        return (int) Math.ceil((double)x / (double) y);
+    /**
+     * Primary key index for {@link #insertBatch} which holds back the keys of placed records, so they are added to
+     * the index together once every record is placed. A key can be deleted and inserted again when a page is
+     * rewritten, whether it is held back or already in the index.
+     */
+    private static final class PendingIndex implements Index {
+        private final Index index;
+        private final Map<Object, BPPointer> pending = new LinkedHashMap<>();
+
+        private PendingIndex(Index index) {
+            this.index = index;
+        }
+
+        @Override
+        public BPPointer get(Object value) {
+            BPPointer pointer = pending.get(value);
+            return pointer != null ? pointer : index.get(value);
+        }
+
+        @Override
+        public boolean insert(Object value, BPPointer pointer) {
+            return pending.putIfAbsent(value, pointer) == null;
+        }
+
+        @Override
+        public boolean delete(Object value) {
+            // a key moved by a rewritten page is deleted then inserted again, so its new pointer is held back too
+            return pending.remove(value) != null || index.delete(value);
+        }
+
+        @Override
+        public void move(List<Object> values, int fromPageNum, int toPageNum) {
+            // held back keys are moved here, and the rest are still contiguous in key order in the index
+            List<Object> inIndex = new ArrayList<>(values.size());
+            for (Object value : values) {
+                BPPointer pointer = pending.get(value);
+                if (pointer == null) {
+                    inIndex.add(value);
+                } else if (pointer.pageNum == fromPageNum) {
+                    pending.put(value, BPPointer.table(toPageNum, pointer.entryNum));
+                }
+            }
+            index.move(inIndex, fromPageNum, toPageNum);
+        }
+
+        @Override
+        public void bulkLoad(Iterator<Map.Entry<Object, BPPointer>> entries, double fillFactor) {
+            throw new UnsupportedOperationException("A batch cannot be bulk loaded");
+        }
+
+        @Override
+        public boolean drop() {
+            throw new UnsupportedOperationException("A batch cannot be dropped");
+        }
+
+        /**
+         * Add the held back keys to the index, in one batch for a B+ tree
+         */
+        private void flush() {
+            if (index instanceof BPTree tree) {
+                tree.insertBatch(new ArrayList<>(pending.entrySet()));
+            } else {
+                for (Map.Entry<Object, BPPointer> entry : pending.entrySet()) {
+                    index.insert(entry.getKey(), entry.getValue());
+                }
+            }
+            pending.clear();
+        }
     }
 }
@@ -223,6 +223,30 @@ public class TableSchema {
         return index;
     }
 
+    /**
+     * Find a column of rows whose columns may be named by their table, as in t1.a. A name without a table matches
+     * the column of that name of any table.
+     *
+     * @param columnName the name of the column, with or without its table
+     * @return the index of the column, otherwise -1
+     * @throws IllegalArgumentException if a name without a table matches columns of more than one table
+     */
+    public int findColumn(String columnName) {
+        if (columns.containsKey(columnName) || columnName.indexOf('.') >= 0) {
+            return getColumnIndex(columnName);
+        }
+        int index = -1;
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).endsWith("." + columnName)) {
+                if (index >= 0) {
+                    throw new IllegalArgumentException("Ambiguous column name: " + columnName);
+                }
+                index = i;
+            }
+        }
+        return index;
+    }
+
     /**
      * Merge two table schemas
      * @param a the first table schema
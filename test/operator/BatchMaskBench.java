@@ -0,0 +1,107 @@
+package operator;
+
+import catalog.Catalog;
+import clauses.WhereClause;
+import clauses.WhereEvaluator;
+import page.ColumnBatch;
+import page.RecordCodec;
+import page.RecordEntry;
+import page.RecordEntryType;
+import storage.PageBuffer;
+import storage.StorageManager;
+import table.Table;
+import table.TableSchema;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of numeric WHERE comparisons over column batches. The rows of a table of random int and double columns
+ * are decoded into batches once, and then "v < 500 and d >= 50.0", or the same with "or", is tested on every row
+ * several times over: by the evaluator a row at a time, by the selection vector kernels, and by the bitmask
+ * kernels of {@link BatchMask} which the WHERE clause builds. The three must select the same rows, and the time
+ * each takes is printed for a few rounds, of which the first ones warm up the JIT.
+ * <p>
+ * To run: java operator.BatchMaskBench [rows] [passes] [and|or]
+ */
+public class BatchMaskBench {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String operator = args.length > 2 ? args[2] : "and";
+
+        Path db = Files.createTempDirectory("bench");
+        Catalog catalog = new Catalog(4096);
+        StorageManager storageManager = new StorageManager(catalog, new PageBuffer(db, catalog.getPageSize(), 100000));
+        TableSchema schema = new TableSchema(new ArrayList<>(List.of("id", "v", "d")),
+                new ArrayList<>(List.of(RecordEntryType.INT, RecordEntryType.INT, RecordEntryType.DOUBLE)),
+                new ArrayList<>(List.of(-1, -1, -1)), new ArrayList<>(Arrays.asList(null, null, null)),
+                new ArrayList<>(List.of(true, false, false)), new ArrayList<>(List.of(false, false, false)), 0, true);
+        int tableId = catalog.createTable("t", new RecordCodec(schema));
+        Table table = new Table(storageManager, tableId);
+        Random random = new Random(1);
+        List<RecordEntry> entries = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            entries.add(new RecordEntry(new ArrayList<>(List.of(i, random.nextInt(1000), random.nextInt(1000) / 4.0))));
+        }
+        table.insertBatch(entries, true);
+        List<ColumnBatch> batches = new ArrayList<>();
+        table.batches(BatchPredicate.all()).forEachRemaining(batches::add);
+
+        WhereEvaluator evaluator = WhereClause.parseWhere("v < 500 " + operator + " d >= 50.0", Map.of("t", schema));
+        BatchPredicate less = BatchPredicate.compare(1, "<", 500);
+        BatchPredicate greater = BatchPredicate.compare(2, ">=", 50.0);
+        BatchPredicate selection = operator.equals("and") ? BatchPredicate.and(less, greater) : BatchPredicate.or(less, greater);
+        BatchPredicate masks = evaluator.toBatchPredicate(schema);
+
+        for (int round = 0; round < 4; round++) {
+            long start = System.nanoTime();
+            long byEvaluator = 0;
+            for (int pass = 0; pass < passes; pass++) {
+                for (RecordEntry entry : entries) {
+                    if (evaluator.evaluate(entry, schema)) {
+                        byEvaluator++;
+                    }
+                }
+            }
+            long evaluated = System.nanoTime();
+            long bySelection = filter(batches, selection, passes);
+            long selected = System.nanoTime();
+            long byMasks = filter(batches, masks, passes);
+            long masked = System.nanoTime();
+            if (byEvaluator != bySelection || byEvaluator != byMasks) {
+                throw new IllegalStateException("Evaluator selected " + byEvaluator + " rows, selection vectors "
+                        + bySelection + " and masks " + byMasks);
+            }
+            System.out.printf("%d rows x %d passes, %s: evaluator %d ms, selection %d ms, masks %d ms%n", rows, passes,
+                    operator, (evaluated - start) / 1000000, (selected - evaluated) / 1000000, (masked - selected) / 1000000);
+        }
+
+        try (Stream<Path> files = Files.walk(db)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * @return the amount of rows the predicate selects over every pass of the batches
+     */
+    private static long filter(List<ColumnBatch> batches, BatchPredicate predicate, int passes) {
+        long count = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            for (ColumnBatch batch : batches) {
+                batch.selectAll();
+                predicate.filter(batch);
+                count += batch.selected;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,115 @@
+package operator;
+
+import page.RecordEntry;
+import page.RecordEntryType;
+import table.TableSchema;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Check of a hash join whose build side does not fit in its memory budget, so both sides are split into partition
+ * files and joined a partition at a time. Random rows, with null keys and keys shared by many rows, are joined on
+ * one and on two columns with each side as the build side, under budgets from one row to every row. The joined
+ * rows are compared against pairing every row with every other, and every partition file is checked to be made
+ * when the budget is exceeded and deleted once the join is closed.
+ * <p>
+ * To run: java operator.HashJoinSpillCheck [left rows] [right rows] [seeds]
+ */
+public class HashJoinSpillCheck {
+
+    public static void main(String[] args) throws Exception {
+        int leftRows = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rightRows = args.length > 1 ? Integer.parseInt(args[1]) : 1500;
+        int seeds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Path tempDir = Files.createTempDirectory("join");
+        for (int seed = 0; seed < seeds; seed++) {
+            Random random = new Random(seed);
+            List<RecordEntry> left = rows(random, leftRows, leftRows / 4);
+            List<RecordEntry> right = rows(random, rightRows, leftRows / 4);
+            for (int[] keys : new int[][]{{0}, {0, 1}}) {
+                for (boolean buildLeft : new boolean[]{true, false}) {
+                    for (long memoryBytes : new long[]{1, 4096, Long.MAX_VALUE}) {
+                        check(left, right, keys, buildLeft, memoryBytes, tempDir,
+                                "seed " + seed + ", keys " + Arrays.toString(keys) + ", build left " + buildLeft
+                                        + ", budget " + memoryBytes);
+                    }
+                }
+            }
+        }
+        Files.delete(tempDir);
+        System.out.println("Hash join spill check passed for " + seeds + " seeds.");
+    }
+
+    /**
+     * @return rows of an int key, a second int key of few values, and a string, where about a tenth of the keys are
+     *         null and a few keys are shared by many rows
+     */
+    private static List<RecordEntry> rows(Random random, int count, int keys) {
+        List<RecordEntry> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Integer key = random.nextInt(10) == 0 ? null : random.nextInt(5) == 0 ? random.nextInt(3) : random.nextInt(keys);
+            Integer second = random.nextInt(20) == 0 ? null : random.nextInt(3);
+            rows.add(new RecordEntry(new ArrayList<>(Arrays.asList(key, second, "row" + i + "x".repeat(random.nextInt(20))))));
+        }
+        return rows;
+    }
+
+    private static void check(List<RecordEntry> left, List<RecordEntry> right, int[] keys, boolean buildLeft,
+                              long memoryBytes, Path tempDir, String when) throws Exception {
+        List<String> expected = new ArrayList<>();
+        for (RecordEntry l : left) {
+            for (RecordEntry r : right) {
+                boolean match = true;
+                for (int key : keys) {
+                    match &= l.data.get(key) != null && l.data.get(key).equals(r.data.get(key));
+                }
+                if (match) {
+                    List<Object> values = new ArrayList<>(l.data);
+                    values.addAll(r.data);
+                    expected.add(values.toString());
+                }
+            }
+        }
+
+        List<String> found = new ArrayList<>();
+        HashJoin join = new HashJoin(RowIterator.of(schema(), left.iterator(), -1), RowIterator.of(schema(), right.iterator(), -1),
+                keys, keys, buildLeft, tempDir, memoryBytes);
+        boolean spilled;
+        try (join) {
+            join.hasNext();
+            spilled = files(tempDir) > 0;
+            join.forEachRemaining(row -> found.add(row.data.toString()));
+        }
+        if (spilled != (memoryBytes < 1 << 20)) {
+            throw new IllegalStateException(when + ": the join " + (spilled ? "spilled" : "did not spill"));
+        }
+        if (files(tempDir) != 0) {
+            throw new IllegalStateException(when + ": partition files are left after closing the join");
+        }
+        Collections.sort(expected);
+        Collections.sort(found);
+        if (!found.equals(expected)) {
+            throw new IllegalStateException(when + ": joined " + found.size() + " rows, expected " + expected.size());
+        }
+    }
+
+    private static TableSchema schema() {
+        return new TableSchema(new ArrayList<>(List.of("k", "j", "s")),
+                new ArrayList<>(List.of(RecordEntryType.INT, RecordEntryType.INT, RecordEntryType.CHAR_VAR)),
+                new ArrayList<>(List.of(4, 4, 40)), new ArrayList<>(Arrays.asList(null, null, null)),
+                new ArrayList<>(List.of(false, false, false)), new ArrayList<>(List.of(true, true, true)), -1, false);
+    }
+
+    private static long files(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
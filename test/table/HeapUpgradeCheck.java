@@ -0,0 +1,120 @@
+package table;
+
+import catalog.Catalog;
+import page.RecordCodec;
+import page.RecordEntry;
+import page.RecordEntryType;
+import storage.PageBuffer;
+import storage.StorageManager;
+import tree.BPPointer;
+import tree.BPTree;
+import tree.Index;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Regression check for inserts into an indexed heap table whose pages were written before columns were added.
+ * Adding a column leaves the pages in the earlier version of the schema, so the page an insert is appended to is
+ * upgraded first, and entries which no longer fit move to new pages while the inserted keys are still held back
+ * from the index. The table is filled with every amount of rows up to a few pages, so the upgraded page is full in
+ * some of them, and every key is then looked up through the index.
+ * <p>
+ * To run: java table.HeapUpgradeCheck [page size] [most rows]
+ */
+public class HeapUpgradeCheck {
+
+    public static void main(String[] args) throws Exception {
+        int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int mostRows = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        for (int rows = 1; rows <= mostRows; rows++) {
+            check(pageSize, rows, 1);
+            check(pageSize, rows, 5);
+        }
+        System.out.println("Heap upgrade check passed for up to " + mostRows + " rows.");
+    }
+
+    /**
+     * Insert rows one at a time, add two columns, then insert a batch of rows
+     */
+    private static void check(int pageSize, int rows, int batchSize) throws Exception {
+        Path db = Files.createTempDirectory("heap");
+        Catalog catalog = new Catalog(pageSize);
+        catalog.indexMode = true;
+        StorageManager storageManager = new StorageManager(catalog, new PageBuffer(db, pageSize, 8));
+        TableSchema schema = new TableSchema(new ArrayList<>(List.of("id", "name", "score")),
+                new ArrayList<>(List.of(RecordEntryType.INT, RecordEntryType.CHAR_VAR, RecordEntryType.INT)),
+                new ArrayList<>(List.of(-1, 12, -1)), new ArrayList<>(Arrays.asList(null, null, null)),
+                new ArrayList<>(List.of(true, false, false)), new ArrayList<>(List.of(false, true, true)), 0, true);
+        int tableId = catalog.createTable("t", new RecordCodec(schema));
+        catalog.setHeap(tableId);
+        new Table(storageManager, tableId).buildIndex();
+
+        TreeMap<Integer, List<Object>> expected = new TreeMap<>();
+        for (int i = 1; i <= rows; i++) {
+            List<Object> row = new ArrayList<>(List.of(i, "abcdefghi" + i % 10, i));
+            insert(storageManager, tableId, List.of(row), expected);
+        }
+        Table table = new Table(storageManager, tableId);
+        if (!table.alterAdd("x", RecordEntryType.INT, -1, 4) || !table.alterAdd("y", RecordEntryType.INT, -1, 5)) {
+            throw new IllegalStateException(rows + " rows: columns could not be added");
+        }
+        for (List<Object> row : expected.values()) {
+            row.addAll(List.of(4, 5));
+        }
+        List<List<Object>> batch = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new ArrayList<>(List.of(1000 + i, "z", 1, 1, 1)));
+        }
+        insert(storageManager, tableId, batch, expected);
+        verify(storageManager, catalog, tableId, expected, rows + " rows, batch of " + batchSize);
+
+        try (Stream<Path> files = Files.walk(db)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void insert(StorageManager storageManager, int tableId, List<List<Object>> rows,
+                               TreeMap<Integer, List<Object>> expected) {
+        List<RecordEntry> records = new ArrayList<>(rows.size());
+        for (List<Object> row : rows) {
+            records.add(new RecordEntry(new ArrayList<>(row)));
+        }
+        if (new Table(storageManager, tableId).insertBatch(records, true) != records.size()) {
+            throw new IllegalStateException("Insert of " + rows + " failed");
+        }
+        for (List<Object> row : rows) {
+            expected.put((Integer) row.getFirst(), row);
+        }
+    }
+
+    private static void verify(StorageManager storageManager, Catalog catalog, int tableId,
+                               TreeMap<Integer, List<Object>> expected, String when) {
+        RecordCodec codec = catalog.getCodec(tableId);
+        TreeMap<Integer, List<Object>> found = new TreeMap<>();
+        new Table(storageManager, tableId).findMatching(e -> true, e -> found.put((Integer) e.data.getFirst(), e.data));
+        if (!found.equals(expected)) {
+            throw new IllegalStateException(when + ": table holds " + found + ", expected " + expected);
+        }
+        Index index = storageManager.getIndex(tableId, id -> new BPTree(storageManager, id, RecordEntryType.INT));
+        for (Map.Entry<Integer, List<Object>> entry : expected.entrySet()) {
+            BPPointer pointer = index.get(entry.getKey());
+            if (pointer == null) {
+                throw new IllegalStateException(when + ": index is missing " + entry.getKey());
+            }
+            List<Integer> slots = new ArrayList<>();
+            List<RecordEntry> entries = storageManager.getTablePage(tableId, pointer.pageNum).read(codec, slots);
+            int position = slots.indexOf(pointer.entryNum);
+            if (position < 0 || !entries.get(position).data.equals(entry.getValue())) {
+                throw new IllegalStateException(when + ": index points " + entry.getKey() + " at " + pointer);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package table;
+
+import catalog.Catalog;
+import page.RecordCodec;
+import page.RecordEntry;
+import page.RecordEntryType;
+import storage.PageBuffer;
+import storage.StorageManager;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Check that inserts leave the pages of a table nearly full. Rows are inserted one at a time, the way single row
+ * INSERT statements reach the table, in ascending, descending and random key order, and the amount of pages is
+ * compared against the pages a load into an empty table writes, which are packed full. Increasing and decreasing
+ * keys should fill pages to about the same, and random keys should leave pages at least about half full, as every
+ * split of a B+ tree does.
+ * <p>
+ * To run: java table.PageFillCheck [page size] [rows]
+ */
+public class PageFillCheck {
+
+    public static void main(String[] args) throws Exception {
+        int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        for (boolean indexMode : new boolean[]{true, false}) {
+            List<Integer> ascending = new ArrayList<>(rows);
+            for (int i = 0; i < rows; i++) {
+                ascending.add(i);
+            }
+            List<Integer> descending = new ArrayList<>(ascending.reversed());
+            List<Integer> random = new ArrayList<>(ascending);
+            Collections.shuffle(random, new Random(rows));
+
+            int packed = pages(pageSize, indexMode, ascending, true);
+            check(pageSize, indexMode, "ascending", ascending, packed, 1.05);
+            check(pageSize, indexMode, "descending", descending, packed, 1.1);
+            check(pageSize, indexMode, "random", random, packed, 1.6);
+        }
+        System.out.println("Page fill check passed.");
+    }
+
+    private static void check(int pageSize, boolean indexMode, String order, List<Integer> keys, int packed,
+                              double most) throws Exception {
+        int pages = pages(pageSize, indexMode, keys, false);
+        System.out.printf("%s keys, index %s: %d pages, %d packed%n", order, indexMode, pages, packed);
+        if (pages > packed * most) {
+            throw new IllegalStateException(order + " keys take " + pages + " pages, " + packed + " when packed");
+        }
+    }
+
+    /**
+     * @param keys the primary keys of the rows, in the order they are inserted
+     * @param load if the rows are loaded in bulk rather than inserted one at a time
+     * @return the amount of pages of the table
+     */
+    private static int pages(int pageSize, boolean indexMode, List<Integer> keys, boolean load) throws Exception {
+        Path db = Files.createTempDirectory("fill");
+        Catalog catalog = new Catalog(pageSize);
+        catalog.indexMode = indexMode;
+        StorageManager storageManager = new StorageManager(catalog, new PageBuffer(db, pageSize, 16));
+        TableSchema schema = new TableSchema(new ArrayList<>(List.of("id", "name")),
+                new ArrayList<>(List.of(RecordEntryType.INT, RecordEntryType.CHAR_VAR)),
+                new ArrayList<>(List.of(-1, 20)), new ArrayList<>(Arrays.asList(null, null)),
+                new ArrayList<>(List.of(true, false)), new ArrayList<>(List.of(false, true)), 0, true);
+        int tableId = catalog.createTable("t", new RecordCodec(schema));
+        if (indexMode) {
+            new Table(storageManager, tableId).buildIndex();
+        }
+
+        if (load) {
+            List<RecordEntry> records = new ArrayList<>(keys.size());
+            for (int key : keys) {
+                records.add(new RecordEntry(new ArrayList<>(List.of(key, "name" + key))));
+            }
+            new Table(storageManager, tableId).load(records.iterator());
+        } else {
+            for (int key : keys) {
+                RecordEntry record = new RecordEntry(new ArrayList<>(List.of(key, "name" + key)));
+                if (new Table(storageManager, tableId).insertBatch(List.of(record), true) != 1) {
+                    throw new IllegalStateException("Insert of " + key + " failed");
+                }
+            }
+        }
+        Table table = new Table(storageManager, tableId);
+        int[] count = {0};
+        table.findMatching(e -> true, e -> count[0]++);
+        if (count[0] != keys.size()) {
+            throw new IllegalStateException("Table holds " + count[0] + " rows, expected " + keys.size());
+        }
+        int pages = table.getPageCount();
+
+        try (Stream<Path> files = Files.walk(db)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,128 @@
+package tree;
+
+import catalog.Catalog;
+import page.RecordEntryType;
+import storage.PageBuffer;
+import storage.StorageManager;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Stress check for a B+ tree shared by several threads. Each thread runs a random mix of lookups, inserts,
+ * deletes and range scans over its own keys, which are interleaved with every other thread's keys, so it knows
+ * exactly which of its keys are in the tree. Lookups and the results of inserts and deletes are checked as they
+ * happen, scans are checked to be in order, and the whole tree is compared against every thread's keys at the end.
+ * <p>
+ * A small page buffer makes the threads evict each other's pages, and small pages make splits and merges frequent.
+ * <p>
+ * To run: java tree.BPTreeConcurrencyCheck [page size] [threads] [operations per thread] [buffer size] [string]
+ */
+public class BPTreeConcurrencyCheck {
+
+    public static void main(String[] args) throws Exception {
+        int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int operations = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int bufferSize = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        boolean strings = args.length > 4 && args[4].equals("string");
+
+        Path db = Files.createTempDirectory("bptree");
+        Catalog catalog = new Catalog(pageSize);
+        catalog.indexMode = true;
+        StorageManager storageManager = new StorageManager(catalog, new PageBuffer(db, pageSize, bufferSize));
+        RecordEntryType type = strings ? RecordEntryType.CHAR_VAR : RecordEntryType.INT;
+        BPTree tree = storageManager.getIndex(1, id -> new BPTree(storageManager, id, type));
+
+        int keysPerThread = operations / 2;
+        Map<Object, Integer> expected = new ConcurrentHashMap<>();
+        AtomicReference<String> error = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(thread);
+                Map<Object, Integer> mine = new HashMap<>();
+                for (int i = 0; i < operations && error.get() == null; i++) {
+                    int k = random.nextInt(keysPerThread) * threads + thread;
+                    Object key = strings ? String.format("customer_%08d", k) : k;
+                    int operation = random.nextInt(10);
+                    if (operation < 5) {
+                        BPPointer pointer = tree.get(key);
+                        Integer page = mine.get(key);
+                        if (page == null ? pointer != null : pointer == null || pointer.pageNum != page) {
+                            error.set("Lookup of " + key + " found " + pointer + ", expected page " + page);
+                        }
+                    } else if (operation < 8) {
+                        if (tree.insert(key, BPPointer.table(k, 1)) == mine.containsKey(key)) {
+                            error.set("Insert of " + key + " returned " + !mine.containsKey(key));
+                        }
+                        mine.put(key, k);
+                    } else if (operation < 9) {
+                        if (tree.delete(key) != mine.containsKey(key)) {
+                            error.set("Delete of " + key + " returned " + !mine.containsKey(key));
+                        }
+                        mine.remove(key);
+                    } else {
+                        Iterator<Object> values = tree.scanValues(key, null, Inclusivity.BOTH);
+                        Object previous = null;
+                        for (int n = 0; n < 50 && values.hasNext(); n++) {
+                            Object value = values.next();
+                            if (previous != null && BPNode.compare(previous, value) >= 0) {
+                                error.set("Scan from " + key + " returned " + previous + " before " + value);
+                            }
+                            previous = value;
+                        }
+                    }
+                }
+                expected.putAll(mine);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (error.get() != null) {
+            throw new IllegalStateException(error.get());
+        }
+
+        TreeMap<Object, Integer> sorted = new TreeMap<>(BPNode::compare);
+        sorted.putAll(expected);
+        Iterator<Object> values = tree.scanValues(null, null, Inclusivity.BOTH);
+        for (Map.Entry<Object, Integer> entry : sorted.entrySet()) {
+            if (!values.hasNext() || BPNode.compare(entry.getKey(), values.next()) != 0) {
+                throw new IllegalStateException("Tree is missing " + entry.getKey());
+            }
+            BPPointer pointer = tree.get(entry.getKey());
+            if (pointer == null || pointer.pageNum != entry.getValue()) {
+                throw new IllegalStateException("Lookup of " + entry.getKey() + " found " + pointer);
+            }
+        }
+        if (values.hasNext()) {
+            throw new IllegalStateException("Tree has extra value " + values.next());
+        }
+        try (Stream<Path> files = Files.walk(db)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        System.out.printf("Concurrency check passed: %d threads, %d operations, %d keys left, %.0f operations/s%n",
+                threads, threads * operations, sorted.size(), threads * operations / seconds);
+    }
+}
@@ -0,0 +1,92 @@
+package tree;
+
+import catalog.Catalog;
+import page.RecordEntryType;
+import storage.PageBuffer;
+import storage.StorageManager;
+import table.TableSchema;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Regression check for deletes from a secondary index whose keys are large next to the page, where a node can be
+ * left with no values when neither sibling can lend one. Every key is deleted in a random order, and the index is
+ * compared against the expected keys after each delete.
+ * <p>
+ * To run: java tree.BPTreeDeleteCheck [page size] [keys] [seeds]
+ */
+public class BPTreeDeleteCheck {
+
+    public static void main(String[] args) throws Exception {
+        int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : 160;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int seeds = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        for (int seed = 0; seed < seeds; seed++) {
+            check(pageSize, keys, seed);
+        }
+        System.out.println("Delete check passed for " + seeds + " seeds.");
+    }
+
+    /**
+     * Fill an index on a double column of a table keyed by varchar(40), then delete every key
+     */
+    private static void check(int pageSize, int keys, long seed) throws Exception {
+        Path db = Files.createTempDirectory("bptree");
+        Catalog catalog = new Catalog(pageSize);
+        catalog.indexMode = true;
+        StorageManager storageManager = new StorageManager(catalog, new PageBuffer(db, pageSize, 16));
+        TableSchema schema = new TableSchema(new ArrayList<>(List.of("id", "v")),
+                new ArrayList<>(List.of(RecordEntryType.CHAR_VAR, RecordEntryType.DOUBLE)),
+                new ArrayList<>(List.of(40, -1)), new ArrayList<>(Arrays.asList(null, null)),
+                new ArrayList<>(List.of(true, false)), new ArrayList<>(List.of(false, true)), 0, true);
+        BPTree tree = BPTree.secondary(storageManager, 1, schema, 1);
+
+        Random random = new Random(seed);
+        TreeSet<IndexKey> expected = new TreeSet<>();
+        for (int i = 0; i < keys; i++) {
+            // ids of random lengths, and a few repeated values so the locators are compared too
+            String id = String.format("k%04d", i) + "x".repeat(random.nextInt(36));
+            IndexKey key = IndexKey.of((double) random.nextInt(keys / 3), id);
+            if (!tree.insert(key, BPPointer.nullPtr())) {
+                throw new IllegalStateException("Seed " + seed + ": insert of " + key + " failed");
+            }
+            expected.add(key);
+        }
+        verify(tree, expected, seed, "after inserts");
+
+        List<IndexKey> order = new ArrayList<>(expected);
+        Collections.shuffle(order, random);
+        for (IndexKey key : order) {
+            if (!tree.delete(key)) {
+                throw new IllegalStateException("Seed " + seed + ": delete of " + key + " failed");
+            }
+            expected.remove(key);
+            verify(tree, expected, seed, "after deleting " + key);
+        }
+        try (Stream<Path> files = Files.walk(db)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void verify(BPTree tree, TreeSet<IndexKey> expected, long seed, String when) {
+        Iterator<Object> values = tree.scanValues(null, null, Inclusivity.BOTH);
+        for (IndexKey key : expected) {
+            if (!values.hasNext() || !key.equals(values.next())) {
+                throw new IllegalStateException("Seed " + seed + ": index is missing " + key + " " + when);
+            }
+        }
+        if (values.hasNext()) {
+            throw new IllegalStateException("Seed " + seed + ": index has extra value " + values.next() + " " + when);
+        }
+    }
+}
@@ -2,26 +2,42 @@ package tree;
 
 import page.Page;
 import page.RecordEntryType;
+import storage.StorageManager;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class BPNode {
 
+    /**
+     * Flags written before each key of a secondary index: if the column value is null, and if the key is a bound
+     * with no locator, as separators can be
+     */
+    private static final byte NULL_VALUE = 1;
+    private static final byte BEFORE = 2;
+    private static final byte AFTER = 4;
+
     public final int tableId;
     public final int pageNum;
     public final List<Object> values;
     public final List<BPPointer> pointers;
     public final RecordEntryType entryType;
+    /**
+     * The type of the primary key appended to each value of a secondary index, or null for a primary key index
+     */
+    public final RecordEntryType locatorType;
     public boolean isLeaf;
 
-    public BPNode(int tableId, int pageNum, List<Object> values, List<BPPointer> pointers, RecordEntryType entryType, boolean isLeaf) {
+    public BPNode(int tableId, int pageNum, List<Object> values, List<BPPointer> pointers, RecordEntryType entryType,
+                  RecordEntryType locatorType, boolean isLeaf) {
         this.tableId = tableId;
         this.pageNum = pageNum;
         this.values = values;
         this.pointers = pointers;
         this.entryType = entryType;
+        this.locatorType = locatorType;
         this.isLeaf = isLeaf;
     }
 
@@ -38,14 +54,35 @@ public class BPNode {
         return -1;
     }
 
-    public boolean isInternal() {
-        if (pointers.getFirst().isNull()) {
-            if (pointers.size() > 1) {
-                return pointers.get(1).isNode();
+    /**
+     * @param value the value to compare against
+     * @return the index of the first value which is > the provided value
+     */
+    public int findGreater(Object value) {
+        for (int i = 0; i < values.size(); i++) {
+            if (compare(value, values.get(i)) < 0) {
+                return i;
             }
-            return true;
         }
-        return pointers.getFirst().isNode();
+        return -1;
+    }
+
+    /**
+     * @param childPageNum the page number of the child
+     * @return the index of the pointer to the child, otherwise -1
+     */
+    public int findChild(int childPageNum) {
+        for (int i = 0; i < pointers.size(); i++) {
+            BPPointer pointer = pointers.get(i);
+            if (pointer.isNode() && pointer.pageNum == childPageNum) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isInternal() {
+        return !isLeaf;
     }
 
     public void print() {
@@ -56,62 +93,267 @@ public class BPNode {
         System.out.println();
     }
 
-    public void save() {
-        Page page = BPTree.storageManager.getIndexPage(tableId, pageNum);
-        page.buf.rewind();
-        page.buf.clear();
-        page.buf.rewind();
-        page.buf.put((byte) (isLeaf ? 1 : 0));
-        page.buf.putInt(values.size());
-        for (Object value : values) {
-            if (value instanceof Integer i) {
-                page.buf.putInt(i);
-            } else if (value instanceof Double d) {
-                page.buf.putDouble(d);
-            } else if (value instanceof Boolean b) {
-                page.buf.put((byte) (b ? 1 : 0));
-            } else if (value instanceof String s) {
-                byte[] arr = s.getBytes(StandardCharsets.UTF_8);
-                page.buf.putInt(arr.length);
-                page.buf.put(arr);
+    /**
+     * Write the node to its page. The node is encoded before the page is touched, so the page is only ever
+     * partially written while the buffer holds it.
+     *
+     * @param storageManager the storage manager holding the index pages
+     */
+    public void save(StorageManager storageManager) {
+        ByteBuffer buf = ByteBuffer.allocate(storageManager.pageBuffer.getPageSize());
+        buf.put((byte) (isLeaf ? 1 : 0));
+        buf.putInt(values.size());
+        if (compressesStrings()) {
+            // every value shares the prefix, so it is written once followed by the rest of each value
+            byte[] prefix = commonPrefix().getBytes(StandardCharsets.UTF_8);
+            buf.putShort((short) prefix.length);
+            buf.put(prefix);
+            for (Object value : values) {
+                byte[] arr = ((String) value).getBytes(StandardCharsets.UTF_8);
+                buf.putShort((short) (arr.length - prefix.length));
+                buf.put(arr, prefix.length, arr.length - prefix.length);
+            }
+        } else {
+            for (Object value : values) {
+                if (value instanceof IndexKey key) {
+                    // column values can be null in a secondary index, and separators can leave out the locator
+                    int flags = key.value == null ? NULL_VALUE : 0;
+                    if (key.locator == null) {
+                        flags |= key.bound() < 0 ? BEFORE : AFTER;
+                    }
+                    buf.put((byte) flags);
+                    if (key.value != null) {
+                        writeValue(buf, key.value);
+                    }
+                    if (key.locator != null) {
+                        writeValue(buf, key.locator);
+                    }
+                } else {
+                    writeValue(buf, value);
+                }
             }
         }
-        page.buf.putInt(pointers.size());
+        buf.putInt(pointers.size());
         for (BPPointer pointer : pointers) {
-            page.buf.put(pointer.encode());
+            buf.put(pointer.encode());
         }
-        page.buf.rewind();
+        storageManager.writeIndexPage(tableId, pageNum, buf.array());
     }
 
-    public static BPNode get(int tableId, int pageNum, RecordEntryType entryType) {
-        Page page = BPTree.storageManager.getIndexPage(tableId, pageNum);
-        page.buf.rewind();
-        boolean isLeaf = page.buf.get() == 1;
-        int valueSize = page.buf.getInt();
+    /**
+     * Read a node from its page. The page is read through its own view of the buffer, so other threads can read
+     * the same page at the same time. A page being written by another thread can decode to garbage, which is
+     * reported as an {@link IllegalStateException} when the counts are out of range.
+     *
+     * @param storageManager the storage manager holding the index pages
+     * @param tableId the id the index pages are stored under
+     * @param pageNum the page of the node
+     * @param entryType the type of the indexed values
+     * @param locatorType the type of the primary key for a secondary index, or null for a primary key index
+     * @return the node
+     */
+    public static BPNode get(StorageManager storageManager, int tableId, int pageNum, RecordEntryType entryType,
+                             RecordEntryType locatorType) {
+        Page page = storageManager.getIndexPage(tableId, pageNum);
+        ByteBuffer buf = page.buf.duplicate();
+        buf.rewind();
+        boolean isLeaf = buf.get() == 1;
+        int valueSize = buf.getInt();
+        if (valueSize < 0 || valueSize > buf.remaining()) {
+            throw new IllegalStateException("Index page " + pageNum + " has an invalid value count: " + valueSize);
+        }
         List<Object> values = new ArrayList<>(valueSize);
+        boolean compressed = locatorType == null && entryType.isString();
+        byte[] prefix = new byte[0];
+        if (compressed) {
+            prefix = new byte[buf.getShort()];
+            buf.get(prefix);
+        }
         for (int i = 0; i < valueSize; i++) {
-            Object value = switch (entryType) {
-                case INT -> page.buf.getInt();
-                case DOUBLE -> page.buf.getDouble();
-                case BOOL -> page.buf.get() == 1;
-                case CHAR_FIXED, CHAR_VAR -> {
-                    int length = page.buf.getInt();
-                    byte[] bytes = new byte[length];
-                    page.buf.get(bytes);
-                    yield new String(bytes, StandardCharsets.UTF_8);
+            if (compressed) {
+                byte[] arr = new byte[prefix.length + buf.getShort()];
+                System.arraycopy(prefix, 0, arr, 0, prefix.length);
+                buf.get(arr, prefix.length, arr.length - prefix.length);
+                values.add(new String(arr, StandardCharsets.UTF_8));
+            } else if (locatorType == null) {
+                values.add(readValue(buf, entryType));
+            } else {
+                byte flags = buf.get();
+                Object value = (flags & NULL_VALUE) != 0 ? null : readValue(buf, entryType);
+                if ((flags & BEFORE) != 0) {
+                    values.add(IndexKey.before(value));
+                } else if ((flags & AFTER) != 0) {
+                    values.add(IndexKey.after(value));
+                } else {
+                    values.add(IndexKey.of(value, readValue(buf, locatorType)));
                 }
-            };
-            values.add(value);
+            }
+        }
+        int pointerSize = buf.getInt();
+        if (pointerSize < 0 || pointerSize > buf.remaining() / (Integer.BYTES * 2)) {
+            throw new IllegalStateException("Index page " + pageNum + " has an invalid pointer count: " + pointerSize);
         }
-        int pointerSize = page.buf.getInt();
         List<BPPointer> pointers = new ArrayList<>(pointerSize);
         for (int i = 0; i < pointerSize; i++) {
-            pointers.add(BPPointer.decode(page.buf));
+            pointers.add(BPPointer.decode(buf));
+        }
+        return new BPNode(tableId, pageNum, values, pointers, entryType, locatorType, isLeaf);
+    }
+
+    /**
+     * @return the amount of bytes the node takes up when saved
+     */
+    public int encodedSize() {
+        boolean compressed = compressesStrings();
+        int valueBytes = 0;
+        for (Object value : values) {
+            valueBytes += valueBytes(value, compressed);
         }
-        return new BPNode(tableId, pageNum, values, pointers, entryType, isLeaf);
+        Object first = values.isEmpty() ? null : values.getFirst();
+        Object last = values.isEmpty() ? null : values.getLast();
+        return encodedSize(first, last, valueBytes, values.size(), pointers.size(), compressed);
     }
 
-    private static int compare(Object a, Object b) {
+    /**
+     * @param first the smallest value
+     * @param last the largest value
+     * @param valueBytes the sum of {@link #valueBytes} for every value
+     * @param valueCount the amount of values
+     * @param pointerCount the amount of pointers
+     * @param compressed if the values are strings stored after removing their shared prefix
+     * @return the amount of bytes a node with the values takes up when saved
+     */
+    static int encodedSize(Object first, Object last, int valueBytes, int valueCount, int pointerCount, boolean compressed) {
+        int size = 1 + Integer.BYTES + valueBytes + Integer.BYTES + pointerCount * Integer.BYTES * 2;
+        if (compressed) {
+            int prefixBytes = valueCount == 0 ? 0
+                    : commonPrefix((String) first, (String) last).getBytes(StandardCharsets.UTF_8).length;
+            size += Short.BYTES + prefixBytes - valueCount * prefixBytes;
+        }
+        return size;
+    }
+
+    /**
+     * @param value a value of a node
+     * @param compressed if the node's values are strings stored after removing their shared prefix
+     * @return the bytes the value takes up when saved, before removing any shared prefix
+     */
+    static int valueBytes(Object value, boolean compressed) {
+        if (compressed) {
+            return Short.BYTES + ((String) value).getBytes(StandardCharsets.UTF_8).length;
+        }
+        if (value instanceof IndexKey key) {
+            return 1 + (key.value == null ? 0 : valueBytes(key.value, false))
+                    + (key.locator == null ? 0 : valueBytes(key.locator, false));
+        }
+        if (value instanceof Integer) {
+            return Integer.BYTES;
+        } else if (value instanceof Double) {
+            return Double.BYTES;
+        } else if (value instanceof Boolean) {
+            return 1;
+        } else if (value instanceof String s) {
+            return Integer.BYTES + s.getBytes(StandardCharsets.UTF_8).length;
+        }
+        throw new IllegalArgumentException("Unknown value type: " + value);
+    }
+
+    /**
+     * @return if the node's values are strings which are stored after removing their shared prefix
+     */
+    boolean compressesStrings() {
+        return locatorType == null && entryType.isString();
+    }
+
+    /**
+     * @return the prefix shared by every value, which for sorted values is the prefix of the first and last
+     */
+    private String commonPrefix() {
+        if (values.isEmpty()) {
+            return "";
+        }
+        return commonPrefix((String) values.getFirst(), (String) values.getLast());
+    }
+
+    /**
+     * @param a the first string
+     * @param b the second string
+     * @return the longest prefix of both strings, which never ends partway through a surrogate pair
+     */
+    static String commonPrefix(String a, String b) {
+        int length = 0;
+        int max = Math.min(a.length(), b.length());
+        while (length < max && a.charAt(length) == b.charAt(length)) {
+            length++;
+        }
+        if (length > 0 && Character.isHighSurrogate(a.charAt(length - 1))) {
+            length--;
+        }
+        return a.substring(0, length);
+    }
+
+    /**
+     * Find the shortest separator for a split between two values, so internal nodes hold short keys.
+     * Strings are cut to the shortest prefix of the right value which is still greater than the left value.
+     * Keys of a secondary index with different column values are separated by a bound on the column value alone,
+     * and keys with the same column value by the shortest separator of their locators.
+     *
+     * @param left the largest value on the left of the split
+     * @param right the smallest value on the right of the split
+     * @return a value greater than left and less than or equal to right
+     */
+    static Object separator(Object left, Object right) {
+        if (left instanceof IndexKey l && right instanceof IndexKey r && l.locator != null && r.locator != null) {
+            if (r.value == null || (l.value != null && compare(l.value, r.value) == 0)) {
+                return IndexKey.of(r.value, separator(l.locator, r.locator));
+            }
+            return IndexKey.before(l.value == null ? r.value : separator(l.value, r.value));
+        }
+        if (!(left instanceof String l) || !(right instanceof String r)) {
+            return right;
+        }
+        int length = commonPrefix(l, r).length() + 1;
+        if (length < r.length() && Character.isHighSurrogate(r.charAt(length - 1))) {
+            length++;
+        }
+        return length >= r.length() ? r : r.substring(0, length);
+    }
+
+    static void writeValue(ByteBuffer buf, Object value) {
+        if (value instanceof Integer i) {
+            buf.putInt(i);
+        } else if (value instanceof Double d) {
+            buf.putDouble(d);
+        } else if (value instanceof Boolean b) {
+            buf.put((byte) (b ? 1 : 0));
+        } else if (value instanceof String s) {
+            byte[] arr = s.getBytes(StandardCharsets.UTF_8);
+            buf.putInt(arr.length);
+            buf.put(arr);
+        }
+    }
+
+    static Object readValue(ByteBuffer buf, RecordEntryType type) {
+        return switch (type) {
+            case INT -> buf.getInt();
+            case DOUBLE -> buf.getDouble();
+            case BOOL -> buf.get() == 1;
+            case CHAR_FIXED, CHAR_VAR -> {
+                int length = buf.getInt();
+                if (length < 0 || length > buf.remaining()) {
+                    throw new IllegalStateException("Index value has an invalid length: " + length);
+                }
+                byte[] bytes = new byte[length];
+                buf.get(bytes);
+                yield new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    static int compare(Object a, Object b) {
+        if (a instanceof IndexKey key) {
+            return key.compareTo((IndexKey) b);
+        }
         if (a instanceof Integer i) {
             return i.compareTo((Integer) b);
         }
@@ -7,40 +7,138 @@ import table.TableSchema;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
 import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
 
-public class BPTree {
+/**
+ * B+ tree over the primary key of a table, or over another column for a secondary index.
+ * <p>
+ * Internal nodes hold n values and n + 1 node pointers, where child i holds the values in [value i-1, value i).
+ * Leaf nodes hold n values, the n table pointers for them, and one trailing pointer which is either a node pointer
+ * to the next leaf or a null pointer for the last leaf.
+ * <p>
+ * Nodes are sized by their encoded bytes rather than a fixed amount of pointers: a node splits once it no longer
+ * fits in a page and borrows or merges once it takes up less than half of one. String keys of a primary index are
+ * stored with their common prefix once per node, and leaf splits push up the shortest separator that still divides
+ * the two leaves, so more keys fit in each node.
+ * <p>
+ * A tree can be used by several threads at once, as long as they share the instance from
+ * {@link StorageManager#getIndex}. Descents take no latches: each node is read under an optimistic stamp which is
+ * validated after the stamp of the next node is taken, and the descent restarts from the root when a node was
+ * written in the meantime. Inserts and deletes which stay within one leaf descend the same way and then upgrade the
+ * leaf's stamp to a write latch. Splits, merges and borrows happen one at a time, holding write latches on every
+ * node they read from the root down until the change is complete.
+ */
+public class BPTree implements Index {
 
-    public static Catalog catalog;
-    public static StorageManager storageManager;
+    /**
+     * Fill factor used when bulk loading, leaving some room in each node for later inserts
+     */
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
 
+    private final Catalog catalog;
+    private final StorageManager storageManager;
+
+    /**
+     * The id the index pages are stored under, which is the table id for a primary key index
+     */
     private final int tableId;
     private final RecordEntryType entryType;
-    private final int maxPointers;
+    private final RecordEntryType locatorType;
+    private final int pageSize;
+
+    /**
+     * Latch of each node page, whose version tells a reader if the node was written while it was being read
+     */
+    private final Map<Integer, StampedLock> latches = new ConcurrentHashMap<>();
+    /**
+     * Write locked while the root moves, so a descent can tell that it started from an old root
+     */
+    private final StampedLock rootLatch = new StampedLock();
+    /**
+     * Held for every change to the structure of the tree, so only one happens at a time. Splits and merges latch
+     * every node from the root down and the siblings beside it, which cannot deadlock while only one of them runs,
+     * and leaves have no right links to move through, so latches are not coupled per node as in a B-link tree.
+     * Lookups, scans and changes within one leaf never take this lock.
+     */
+    private final ReentrantLock structureLock = new ReentrantLock();
 
-    private BPPointer root = null;
+    public BPTree(StorageManager storageManager, int tableId, RecordEntryType entryType) {
+        this(storageManager, tableId, entryType, null);
+    }
 
-    public BPTree(int tableId, RecordEntryType entryType) {
+    private BPTree(StorageManager storageManager, int tableId, RecordEntryType entryType, RecordEntryType locatorType) {
+        this.catalog = storageManager.catalog;
+        this.storageManager = storageManager;
         this.tableId = tableId;
         this.entryType = entryType;
+        this.locatorType = locatorType;
+        // nodes hold as many values as fit in a page, so the fanout follows the actual size of the values
+        this.pageSize = catalog.getPageSize();
+    }
+
+    /**
+     * Open a secondary index, whose values are {@link IndexKey}s of the column value and the primary key.
+     * Its leaves hold null pointers, since table pointers move as rows are inserted, so rows are found through
+     * the primary key instead.
+     *
+     * @param storageManager the storage manager holding the index pages
+     * @param indexId the id the index pages are stored under
+     * @param schema the schema of the indexed table
+     * @param columnIndex the indexed column
+     * @return the tree
+     */
+    public static BPTree secondary(StorageManager storageManager, int indexId, TableSchema schema, int columnIndex) {
+        return new BPTree(storageManager, indexId, schema.types.get(columnIndex), schema.types.get(schema.primaryKeyIndex));
+    }
 
-        TableSchema schema = catalog.getCodec(tableId).schema;
-        //N-value of B+ Tree - Alex Denny
-        // subtract 9 bytes from the page size to account for extra information written to disk in each node
-        // use +8 instead of +4 for the entry size, since each pointer is encoded as a pair of two 4-byte ints
-        this.maxPointers = (int) Math.floor((double) (catalog.getPageSize() - 9) / (schema.sizes.get(schema.primaryKeyIndex) + 8)) - 1;
+    /**
+     * Check that a node of an index on a column can hold two of the largest keys of the column, which every split
+     * and merge needs. Strings take up to their size in the schema.
+     *
+     * @param pageSize the size of a page
+     * @param schema the schema of the indexed table
+     * @param columnIndex the indexed column, which is the primary key for a primary key index
+     * @return if two keys of the largest size fit in a node
+     */
+    public static boolean fitsPage(int pageSize, TableSchema schema, int columnIndex) {
+        int keyIndex = schema.primaryKeyIndex;
+        boolean compressed = columnIndex == keyIndex && schema.types.get(columnIndex).isString();
+        int valueBytes = maxValueBytes(schema, columnIndex, compressed);
+        if (columnIndex != keyIndex) {
+            // the null flag and the primary key are stored with each value of a secondary index
+            valueBytes += 1 + maxValueBytes(schema, keyIndex, false);
+        }
+        // two values and the three pointers around them, with no shared prefix
+        return BPNode.encodedSize("", "", valueBytes * 2, 2, 3, compressed) <= pageSize;
+    }
+
+    private static int maxValueBytes(TableSchema schema, int columnIndex, boolean compressed) {
+        RecordEntryType type = schema.types.get(columnIndex);
+        if (!type.isString()) {
+            return type.size();
+        }
+        return (compressed ? Short.BYTES : Integer.BYTES) + schema.sizes.get(columnIndex);
     }
 
     public void print() {
-        if (root == null) {
+        int rootPageNum = rootPageNum();
+        BPNode node = rootPageNum < 0 ? null : getNode(rootPageNum);
+        if (node == null || node.pointers.isEmpty()) {
             System.out.println("No Root");
             return;
         } else {
             System.out.println("Root");
         }
-        var node = BPNode.get(tableId, root.pageNum, entryType);
         print(node);
     }
 
@@ -51,350 +149,1270 @@ public class BPTree {
         }
 
         for (BPPointer pointer : node.pointers) {
-            if (pointer.isNull() || pointer.isTable()) {
-                continue;
-            }
-            var childNode = BPNode.get(tableId, pointer.pageNum, entryType);
+            var childNode = getNode(pointer.pageNum);
             print(childNode);
         }
     }
 
+    /**
+     * @param valueToFind the value to search for
+     * @return the pointer to the entry with the smallest value >= valueToFind, or null if every value is smaller
+     */
     public BPPointer search(Object valueToFind) {
-        if (root == null) {
-            root = BPPointer.node(catalog.getIndexHead(tableId));
+        while (true) {
+            LeafRead read = readLeaf(valueToFind);
+            if (read == null) {
+                return null;
+            }
+            int index = read.leaf.findLEq(valueToFind);
+            if (index >= 0) {
+                return read.leaf.pointers.get(index);
+            }
+
+            // everything in this leaf is smaller, so the next leaf starts with the successor
+            if (read.leaf.pointers.getLast().isNull()) {
+                return null;
+            }
+            LeafRead next = readNext(read);
+            if (next != null) {
+                return next.leaf.values.isEmpty() ? null : next.leaf.pointers.getFirst();
+            }
         }
-        BPNode node = getNode(root.pageNum);
-        while (node.isInternal()) {
-            int index = node.findLEq(valueToFind);
-            BPPointer pointer;
+    }
+
+    /**
+     * @param value the value to find
+     * @return the pointer for exactly the value, or null if it is not in the tree
+     */
+    @Override
+    public BPPointer get(Object value) {
+        LeafRead read = readLeaf(value);
+        if (read == null) {
+            return null;
+        }
+        int index = read.leaf.findLEq(value);
+        if (index < 0 || BPNode.compare(value, read.leaf.values.get(index)) != 0) {
+            return null;
+        }
+        return read.leaf.pointers.get(index);
+    }
+
+    @Override
+    public boolean insert(Object valueToInsert, BPPointer ptrToInsert) {
+        if (locatorType == null ? !ptrToInsert.isTable() : !ptrToInsert.isNull()) {
+            throw new IllegalArgumentException("Pointer must be a table pointer, or null for a secondary index");
+        }
+        while (true) {
+            LeafRead read = readLeaf(valueToInsert);
+            if (read == null) {
+                break;
+            }
+            BPNode leaf = read.leaf;
+            int index = leaf.findLEq(valueToInsert);
             if (index < 0) {
-                // the value was not <= anything, so take the last node
-                pointer = node.pointers.getLast();
-            } else {
-                if (node.values.get(index).equals(valueToFind)) {
-                    // are equal, use the index as-is
-                    pointer = node.pointers.get(index);
-                } else {
-                    // must be <, so get the pointer before it
-                    pointer = node.pointers.get(Math.max(0, index - 1));
+                // value was >= everything, insert it at the end (before the trailing pointer)
+                index = leaf.values.size();
+            } else if (BPNode.compare(valueToInsert, leaf.values.get(index)) == 0) {
+                // conflict, unless the leaf changed after it was read
+                if (read.latch.validate(read.stamp)) {
+                    return false;
                 }
+                continue;
+            }
+
+            leaf.values.add(index, valueToInsert);
+            leaf.pointers.add(index, ptrToInsert);
+            if (overflows(leaf)) {
+                break;
+            }
+            if (writeLeaf(read)) {
+                return true;
             }
-            node = getNode(pointer.pageNum);
         }
+        return insertLatched(valueToInsert, ptrToInsert);
+    }
 
-        int index = node.values.indexOf(valueToFind);
-        if (index < 0) {
-            // not found
+    /**
+     * Insert while holding the structure lock, for an insert which creates the root or splits nodes
+     */
+    private boolean insertLatched(Object valueToInsert, BPPointer ptrToInsert) {
+        structureLock.lock();
+        Latches held = new Latches();
+        try {
+            BPNode rootNode = getRootNode(held);
+            if (rootNode == null) {
+                // reuse the head page reserved for the table if there is one
+                int pageNum = catalog.hasIndex(tableId) ? catalog.getIndexHead(tableId) : catalog.requestNewIndexPageNum();
+                held.latch(pageNum);
+                BPNode node = newNode(pageNum, new ArrayList<>(), new ArrayList<>(), true);
+                node.values.add(valueToInsert);
+                node.pointers.add(ptrToInsert);
+                node.pointers.add(BPPointer.nullPtr());
+                save(node);
+                setRoot(pageNum);
+                return true;
+            }
 
-            // hack to get around search keys not actually having all values strictly <= to them on the left
-            // due to how node splitting works
-            BPPointer pointer = node.pointers.getLast();
-            if (pointer.isNull()) {
-                index = node.findLEq(valueToFind);
-                return node.pointers.get(index);
+            ArrayDeque<BPNode> parents = new ArrayDeque<>();
+            BPNode targetNode = findLeaf(rootNode, valueToInsert, parents, held);
+            int index = targetNode.findLEq(valueToInsert);
+            if (index < 0) {
+                index = targetNode.values.size();
+            } else if (BPNode.compare(valueToInsert, targetNode.values.get(index)) == 0) {
+                return false;
             }
-            if (pointer.isNode()) {
-                BPNode nextNode = getNode(pointer.pageNum);
-                index = nextNode.values.indexOf(valueToFind);
-                if (index < 0) {
-                    index = node.findLEq(valueToFind);
-                    if (index < 0) {
-                        return node.pointers.get(node.pointers.size() - 2);
+
+            targetNode.values.add(index, valueToInsert);
+            targetNode.pointers.add(index, ptrToInsert);
+            splitRoutine(parents, targetNode);
+            return true;
+        } finally {
+            held.release();
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * Insert many values at once. The entries are sorted and then applied leaf by leaf: each leaf the values fall
+     * into is descended to once, has all of its new values merged in, and is split into as many leaves as it needs
+     * in one pass, so a leaf is written once however many of the values it receives.
+     *
+     * @param entries the (value, pointer) pairs to insert, in any order
+     * @return the amount of values inserted, where values already present or repeated are skipped
+     */
+    public int insertBatch(List<Map.Entry<Object, BPPointer>> entries) {
+        List<Map.Entry<Object, BPPointer>> sorted = new ArrayList<>(entries);
+        for (Map.Entry<Object, BPPointer> entry : sorted) {
+            if (locatorType == null ? !entry.getValue().isTable() : !entry.getValue().isNull()) {
+                throw new IllegalArgumentException("Pointer must be a table pointer, or null for a secondary index");
+            }
+        }
+        sorted.sort((a, b) -> BPNode.compare(a.getKey(), b.getKey()));
+
+        int inserted = 0;
+        int next = 0;
+        structureLock.lock();
+        try {
+            while (next < sorted.size()) {
+                Latches held = new Latches();
+                try {
+                    ArrayDeque<BPNode> parents = new ArrayDeque<>();
+                    BPNode leaf = getRootNode(held);
+                    if (leaf == null) {
+                        // reuse the head page reserved for the table if there is one
+                        int pageNum = catalog.hasIndex(tableId) ? catalog.getIndexHead(tableId) : catalog.requestNewIndexPageNum();
+                        held.latch(pageNum);
+                        leaf = newNode(pageNum, new ArrayList<>(), new ArrayList<>(), true);
+                        leaf.pointers.add(BPPointer.nullPtr());
+                        setRoot(pageNum);
+                    } else {
+                        leaf = findLeaf(leaf, sorted.get(next).getKey(), parents, held);
                     }
-                    if (node.pointers.get(index).isNode()) {
-                        node = getNode(node.pointers.get(index).pageNum);
-                        return node.pointers.getFirst();
+
+                    // every value below the leaf's upper bound belongs in it
+                    Object high = upperBound(parents, leaf);
+                    int end = next;
+                    while (end < sorted.size() && (high == null || BPNode.compare(sorted.get(end).getKey(), high) < 0)) {
+                        end++;
                     }
-                    return node.pointers.get(index);
-                }
-                node = nextNode;
-            } else {
-                index = node.findLEq(valueToFind);
-                if (index < 0) {
-                    index = node.values.size() - 1;
+                    int added = mergeInto(leaf, sorted.subList(next, end));
+                    next = end;
+                    if (added > 0) {
+                        inserted += added;
+                        splitRoutine(parents, leaf);
+                    }
+                } finally {
+                    held.release();
                 }
             }
+        } finally {
+            structureLock.unlock();
         }
-        BPPointer pointer = node.pointers.get(index);
-        if (pointer.isNull()) {
-            if (index + 1 < node.pointers.size()) {
-                pointer = node.pointers.get(index + 1);
+        return inserted;
+    }
+
+    /**
+     * Merge sorted entries into a leaf, skipping values which are already in it or repeated
+     *
+     * @param leaf the leaf
+     * @param entries the entries, in ascending order
+     * @return the amount of values added
+     */
+    private static int mergeInto(BPNode leaf, List<Map.Entry<Object, BPPointer>> entries) {
+        int count = leaf.values.size();
+        List<Object> values = new ArrayList<>(count + entries.size());
+        List<BPPointer> pointers = new ArrayList<>(count + entries.size() + 1);
+        int i = 0;
+        for (Map.Entry<Object, BPPointer> entry : entries) {
+            while (i < count && BPNode.compare(leaf.values.get(i), entry.getKey()) < 0) {
+                values.add(leaf.values.get(i));
+                pointers.add(leaf.pointers.get(i));
+                i++;
+            }
+            if ((i < count && BPNode.compare(leaf.values.get(i), entry.getKey()) == 0)
+                    || (!values.isEmpty() && BPNode.compare(values.getLast(), entry.getKey()) == 0)) {
+                continue;
+            }
+            values.add(entry.getKey());
+            pointers.add(entry.getValue());
+        }
+        for (; i < count; i++) {
+            values.add(leaf.values.get(i));
+            pointers.add(leaf.pointers.get(i));
+        }
+        // the trailing pointer to the next leaf
+        pointers.add(leaf.pointers.getLast());
+
+        int added = values.size() - count;
+        leaf.values.clear();
+        leaf.values.addAll(values);
+        leaf.pointers.clear();
+        leaf.pointers.addAll(pointers);
+        return added;
+    }
+
+    /**
+     * @param parents the internal nodes on the path to the leaf, with the leaf's direct parent last
+     * @param leaf the leaf
+     * @return the smallest value which belongs to a later leaf, or null for the last leaf
+     */
+    private static Object upperBound(ArrayDeque<BPNode> parents, BPNode leaf) {
+        int childPageNum = leaf.pageNum;
+        Iterator<BPNode> up = parents.descendingIterator();
+        while (up.hasNext()) {
+            BPNode parent = up.next();
+            int childIndex = parent.findChild(childPageNum);
+            if (childIndex < parent.values.size()) {
+                return parent.values.get(childIndex);
+            }
+            childPageNum = parent.pageNum;
+        }
+        return null;
+    }
+
+    /**
+     * Split the node if it has overflowed, and continue up the tree while parents overflow.
+     * A node is split into as many nodes as it takes for each to fit, which is two after a single insert.
+     * The node and its parents must be latched.
+     *
+     * @param parents the parents of the node, with the direct parent last
+     * @param node the node which was modified
+     */
+    private void splitRoutine(ArrayDeque<BPNode> parents, BPNode node) {
+        boolean newRoot = false;
+        while (overflows(node)) {
+            List<Integer> cuts = splitPoints(node);
+            List<Object> separators = new ArrayList<>(cuts.size());
+            List<BPNode> newNodes = new ArrayList<>(cuts.size());
+            // the new nodes cannot be reached until the latched node or its parent is saved
+            for (int i = 0; i < cuts.size(); i++) {
+                int cut = cuts.get(i);
+                int end = i + 1 < cuts.size() ? cuts.get(i + 1) : node.values.size();
+                List<Object> newValues;
+                List<BPPointer> newPointers;
+                if (node.isLeaf) {
+                    separators.add(BPNode.separator(node.values.get(cut - 1), node.values.get(cut)));
+                    newValues = new ArrayList<>(node.values.subList(cut, end));
+                    newPointers = new ArrayList<>(node.pointers.subList(cut, end));
+                } else {
+                    // the value at each cut moves up into the parent
+                    separators.add(node.values.get(cut));
+                    newValues = new ArrayList<>(node.values.subList(cut + 1, end));
+                    newPointers = new ArrayList<>(node.pointers.subList(cut + 1, end + 1));
+                }
+                newNodes.add(newNode(catalog.requestNewIndexPageNum(), newValues, newPointers, node.isLeaf));
+            }
+            if (node.isLeaf) {
+                // each leaf links to the one after it, and the last keeps the trailing pointer
+                newNodes.getLast().pointers.add(node.pointers.getLast());
+                for (int i = 0; i < newNodes.size() - 1; i++) {
+                    newNodes.get(i).pointers.add(BPPointer.node(newNodes.get(i + 1).pageNum));
+                }
+                node.values.subList(cuts.getFirst(), node.values.size()).clear();
+                node.pointers.subList(cuts.getFirst(), node.pointers.size()).clear();
+                node.pointers.add(BPPointer.node(newNodes.getFirst().pageNum));
             } else {
-                pointer = node.pointers.get(node.pointers.size() - 2);
+                node.values.subList(cuts.getFirst(), node.values.size()).clear();
+                node.pointers.subList(cuts.getFirst() + 1, node.pointers.size()).clear();
+            }
+
+            for (BPNode newNode : newNodes) {
+                save(newNode);
+            }
+            save(node);
+
+            List<BPPointer> newPointers = new ArrayList<>(newNodes.size());
+            for (BPNode newNode : newNodes) {
+                newPointers.add(BPPointer.node(newNode.pageNum));
+            }
+            if (parents.isEmpty()) {
+                // the root was split, and the new root is only saved once it fits
+                List<BPPointer> rootPtrs = new ArrayList<>(newNodes.size() + 1);
+                rootPtrs.add(BPPointer.node(node.pageNum));
+                rootPtrs.addAll(newPointers);
+                node = newNode(catalog.requestNewIndexPageNum(), separators, rootPtrs, false);
+                newRoot = true;
+                continue;
             }
+
+            BPNode parentNode = parents.removeLast();
+            int childIndex = parentNode.findChild(node.pageNum);
+            parentNode.values.addAll(childIndex, separators);
+            parentNode.pointers.addAll(childIndex + 1, newPointers);
+            node = parentNode;
         }
-        if (pointer.isNode()) {
-            // found a pointer to the right, get the first value there instead
-            node = getNode(pointer.pageNum);
-            return node.pointers.getFirst();
+        save(node);
+        if (newRoot) {
+            setRoot(node.pageNum);
         }
-        return pointer;
     }
 
-    public boolean insert(Object valueToInsert, BPPointer ptrToInsert) {
-        if (ptrToInsert.isNull() || ptrToInsert.isNode()) {
-            throw new IllegalArgumentException("Pointer cannot be null or node type");
+    /**
+     * Find where to split an overflowing node so every part fits in a page with about the same amount of bytes
+     *
+     * @param node the node to split
+     * @return the index of the first value of each part after the first, or of the value moving up before each part
+     * for an internal node
+     */
+    private List<Integer> splitPoints(BPNode node) {
+        boolean compressed = node.compressesStrings();
+        int total = 0;
+        for (Object value : node.values) {
+            total += BPNode.valueBytes(value, compressed);
         }
-        if (root == null) {
-            int pageNum = catalog.requestNewIndexPageNum();
-            catalog.setIndexHead(tableId, pageNum);
-            root = BPPointer.node(pageNum);
-            BPNode node = new BPNode(tableId, pageNum, new ArrayList<>(), new ArrayList<>(), entryType, true);
-            node.values.add(valueToInsert);
-            node.pointers.add(BPPointer.nullPtr());
-            node.pointers.add(ptrToInsert);
-            node.save();
-            return true;
+        // each part keeps at least one value, and the parts of an internal node also lose one value between them
+        int maxParts = node.isLeaf ? node.values.size() : (node.values.size() + 1) / 2;
+        for (int parts = Math.max(2, ceilDiv(node.encodedSize(), pageSize)); parts <= maxParts; parts++) {
+            List<Integer> cuts = new ArrayList<>(parts - 1);
+            int bytes = 0;
+            int start = 0;
+            for (int i = 0; i < node.values.size() && cuts.size() < parts - 1; i++) {
+                // a cut needs a value before it in this part, and enough values after it for the remaining parts
+                int remaining = parts - 1 - cuts.size();
+                int latest = node.isLeaf ? node.values.size() - remaining : node.values.size() - 2 * remaining;
+                if (i > start && (bytes >= (long) total * (cuts.size() + 1) / parts || i >= latest)) {
+                    cuts.add(i);
+                    start = node.isLeaf ? i : i + 1;
+                    if (!node.isLeaf) {
+                        bytes += BPNode.valueBytes(node.values.get(i), compressed);
+                        continue;
+                    }
+                }
+                bytes += BPNode.valueBytes(node.values.get(i), compressed);
+            }
+            if (cuts.size() == parts - 1 && partsFit(node, cuts)) {
+                return cuts;
+            }
         }
+        throw new IllegalStateException("Node " + node.pageNum + " cannot be split into parts which fit in a page");
+    }
 
-        BPPointer pointer = root;
-        BPNode node = getNode(pointer.pageNum);
-        ArrayDeque<BPPointer> queue = new ArrayDeque<>();
-        while (node.isInternal()) {
-            queue.add(pointer);
-            int index = node.findLEq(valueToInsert);
-            if (index < 0) {
-                // the value was not <= anything, so take the last node
-                pointer = node.pointers.getLast();
-            } else {
-                Object existing = node.values.get(index);
-                if (valueToInsert.equals(existing)) {
-                    // conflict
+    /**
+     * @return if every part of a node split at the cuts fits in a page
+     */
+    private boolean partsFit(BPNode node, List<Integer> cuts) {
+        int start = 0;
+        for (int i = 0; i <= cuts.size(); i++) {
+            int end = i < cuts.size() ? cuts.get(i) : node.values.size();
+            List<BPPointer> pointers = new ArrayList<>(end - start + 1);
+            for (int j = start; j <= end; j++) {
+                pointers.add(BPPointer.nullPtr());
+            }
+            if (overflows(newNode(-1, new ArrayList<>(node.values.subList(start, end)), pointers, node.isLeaf))) {
+                return false;
+            }
+            start = node.isLeaf ? end : end + 1;
+        }
+        return true;
+    }
+
+    private static int ceilDiv(int x, int y) {
+        return (x + y - 1) / y;
+    }
+
+    /**
+     * Remove a value from the tree. Nodes left less than half full borrow from a sibling when it has bytes to
+     * spare, and are otherwise merged into a sibling when they fit together, which can cascade up to the root.
+     *
+     * @param valueToDelete the value to remove
+     * @return if the value was present
+     */
+    @Override
+    public boolean delete(Object valueToDelete) {
+        while (true) {
+            LeafRead read = readLeaf(valueToDelete);
+            if (read == null) {
+                return false;
+            }
+            BPNode leaf = read.leaf;
+            int index = leaf.findLEq(valueToDelete);
+            if (index < 0 || BPNode.compare(valueToDelete, leaf.values.get(index)) != 0) {
+                if (read.latch.validate(read.stamp)) {
                     return false;
                 }
+                continue;
+            }
 
-                pointer = node.pointers.get(index);
+            leaf.values.remove(index);
+            leaf.pointers.remove(index);
+            if (!read.isRoot && underflows(leaf)) {
+                break;
+            }
+            if (writeLeaf(read)) {
+                return true;
             }
-            node = getNode(pointer.pageNum);
         }
-        queue.add(pointer);
+        return deleteLatched(valueToDelete);
+    }
 
-        BPNode targetNode = node;
-        int index = targetNode.findLEq(valueToInsert);
-        if (index < 0) {
-            // value was >= everything, insert it at the end
-            targetNode.values.addLast(valueToInsert);
-            insertPointer(targetNode, ptrToInsert);
-        } else {
-            if (targetNode.values.get(index).equals(valueToInsert)) {
-                // conflict
+    /**
+     * Delete while holding the structure lock, for a delete which borrows or merges nodes
+     */
+    private boolean deleteLatched(Object valueToDelete) {
+        structureLock.lock();
+        Latches held = new Latches();
+        try {
+            BPNode rootNode = getRootNode(held);
+            if (rootNode == null) {
                 return false;
             }
 
-            targetNode.values.add(index, valueToInsert);
-            if (index == 0 && targetNode.pointers.getFirst().isNull()) {
-                // special case where the bottom left of the tree contains a null pointer
-                // when nothing is less than it
-                targetNode.pointers.set(0, ptrToInsert);
+            ArrayDeque<BPNode> parents = new ArrayDeque<>();
+            BPNode leaf = findLeaf(rootNode, valueToDelete, parents, held);
+            int index = leaf.findLEq(valueToDelete);
+            if (index < 0 || BPNode.compare(valueToDelete, leaf.values.get(index)) != 0) {
+                return false;
+            }
+
+            leaf.values.remove(index);
+            leaf.pointers.remove(index);
+            mergeRoutine(parents, leaf, held);
+            return true;
+        } finally {
+            held.release();
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * Fix the node if it has underflowed, and continue up the tree while parents underflow.
+     * The node and its parents must be latched, and siblings are latched as they are read.
+     *
+     * @param parents the parents of the node, with the direct parent last
+     * @param node the node which was modified
+     * @param held the latches of the change
+     */
+    private void mergeRoutine(ArrayDeque<BPNode> parents, BPNode node, Latches held) {
+        while (true) {
+            if (parents.isEmpty()) {
+                if (node.isInternal() && node.values.isEmpty()) {
+                    // the root only has one child left, so the child becomes the root
+                    setRoot(node.pointers.getFirst().pageNum);
+                } else {
+                    save(node);
+                }
+                return;
+            }
+
+            if (!underflows(node)) {
+                save(node);
+                return;
+            }
+
+            BPNode parent = parents.removeLast();
+            int childIndex = parent.findChild(node.pageNum);
+            BPNode left = childIndex > 0 ? held.get(parent.pointers.get(childIndex - 1).pageNum) : null;
+            BPNode right = childIndex + 1 < parent.pointers.size() ? held.get(parent.pointers.get(childIndex + 1).pageNum) : null;
+
+            // a borrowed value can change a separator in the parent, which can make the parent overflow
+            if (left != null && canLend(left, true)) {
+                borrowFromLeft(parent, childIndex, left, node);
+                splitRoutine(parents, parent);
+                return;
+            }
+            if (right != null && canLend(right, false)) {
+                borrowFromRight(parent, childIndex, node, right);
+                splitRoutine(parents, parent);
+                return;
+            }
+
+            // neither sibling can spare a value, so merge into the left node of the pair
+            if (left != null && fitsMerged(parent, childIndex - 1, left, node)) {
+                merge(parent, childIndex - 1, left, node);
+            } else if (right != null && fitsMerged(parent, childIndex, node, right)) {
+                merge(parent, childIndex, node, right);
+            } else if (!node.values.isEmpty()) {
+                // large values can leave a node which neither borrows nor merges, so it stays less than half full
+                save(node);
+                return;
+            } else if (left != null && left.values.size() > 1) {
+                // an empty node cannot stay in the tree, so it takes a value even if the sibling is left underfull
+                borrowFromLeft(parent, childIndex, left, node);
+                splitRoutine(parents, parent);
+                return;
+            } else if (right != null && right.values.size() > 1) {
+                borrowFromRight(parent, childIndex, node, right);
+                splitRoutine(parents, parent);
+                return;
             } else {
-                targetNode.pointers.add(index, ptrToInsert);
+                throw new IllegalStateException("Node " + node.pageNum + " is empty and cannot be merged or borrow a value");
             }
+            node = parent;
         }
-        splitRoutine(queue, pointer, targetNode);
-        targetNode.save();
-        return true;
     }
 
-    private void splitRoutine(ArrayDeque<BPPointer> pointers, BPPointer firstPointer, BPNode firstNode) {
-        BPPointer pointer;
-        BPNode node;
-        if (firstPointer == null) {
-            pointer = pointers.removeLast();
-            node = getNode(pointer.pageNum);
+    /**
+     * Move the last value of the left sibling into the node. The parent is updated but not saved.
+     */
+    private void borrowFromLeft(BPNode parent, int childIndex, BPNode left, BPNode node) {
+        if (node.isLeaf) {
+            int last = left.values.size() - 1;
+            node.values.addFirst(left.values.remove(last));
+            node.pointers.addFirst(left.pointers.remove(last));
+            parent.values.set(childIndex - 1, BPNode.separator(left.values.getLast(), node.values.getFirst()));
         } else {
-            pointer = firstPointer;
-            node = firstNode;
-            pointers.removeLast();
+            // rotate through the parent's separator
+            node.values.addFirst(parent.values.get(childIndex - 1));
+            node.pointers.addFirst(left.pointers.removeLast());
+            parent.values.set(childIndex - 1, left.values.removeLast());
         }
+        save(left);
+        save(node);
+    }
 
-        if (node.pointers.size() <= maxPointers) {
-            return;
+    /**
+     * Move the first value of the right sibling into the node. The parent is updated but not saved.
+     */
+    private void borrowFromRight(BPNode parent, int childIndex, BPNode node, BPNode right) {
+        if (node.isLeaf) {
+            node.values.addLast(right.values.removeFirst());
+            node.pointers.add(node.values.size() - 1, right.pointers.removeFirst());
+            parent.values.set(childIndex, BPNode.separator(node.values.getLast(), right.values.getFirst()));
+        } else {
+            // rotate through the parent's separator
+            node.values.addLast(parent.values.get(childIndex));
+            node.pointers.addLast(right.pointers.removeFirst());
+            parent.values.set(childIndex, right.values.removeFirst());
         }
+        save(right);
+        save(node);
+    }
 
-        int half = node.values.size() / 2;
-        List<Object> newValues = new ArrayList<>(node.values.size() - half);
-        for (int i = half; i < node.values.size(); i++) {
-            newValues.add(node.values.get(i));
-        }
-        for (int i = 0; i < newValues.size(); i++) {
-            node.values.removeLast();
+    /**
+     * @param sibling the sibling which would lend a value
+     * @param last if the sibling would lend its last value, as a left sibling does, rather than its first
+     * @return if the sibling stays at least half full without the value
+     */
+    private boolean canLend(BPNode sibling, boolean last) {
+        if (sibling.values.size() < 2) {
+            return false;
         }
+        Object value = last ? sibling.values.getLast() : sibling.values.getFirst();
+        int lent = BPNode.valueBytes(value, sibling.compressesStrings()) + Integer.BYTES * 2;
+        return sibling.encodedSize() - lent >= pageSize / 2;
+    }
 
-        half = node.pointers.size() / 2;
-        List<BPPointer> newPointers = new ArrayList<>(node.pointers.size() - half);
-        for (int i = half; i < node.pointers.size(); i++) {
-            newPointers.add(node.pointers.get(i));
+    /**
+     * @return if the two nodes fit in one page when merged by {@link #merge}
+     */
+    private boolean fitsMerged(BPNode parent, int leftIndex, BPNode left, BPNode right) {
+        List<Object> values = new ArrayList<>(left.values);
+        List<BPPointer> pointers = new ArrayList<>(left.pointers);
+        if (left.isLeaf) {
+            pointers.removeLast();
+        } else {
+            values.add(parent.values.get(leftIndex));
         }
-        for (int i = 0; i < newPointers.size(); i++) {
-            node.pointers.removeLast();
+        values.addAll(right.values);
+        pointers.addAll(right.pointers);
+        return !overflows(newNode(left.pageNum, values, pointers, left.isLeaf));
+    }
+
+    /**
+     * Merge the right node into the left node and remove the right node from the parent
+     *
+     * @param parent the parent of both nodes
+     * @param leftIndex the index of the left node within the parent
+     * @param left the left node, which is kept
+     * @param right the right node, which is discarded
+     */
+    private void merge(BPNode parent, int leftIndex, BPNode left, BPNode right) {
+        if (left.isLeaf) {
+            // the right node's trailing pointer replaces the link to it
+            left.pointers.removeLast();
+        } else {
+            // the separator comes back down between the two sets of children
+            left.values.addLast(parent.values.get(leftIndex));
         }
+        left.values.addAll(right.values);
+        left.pointers.addAll(right.pointers);
+        save(left);
 
-        int newNodePageNum = catalog.requestNewIndexPageNum();
-        // pointer to the right
-        node.values.add(newValues.getFirst());
-        node.pointers.add(BPPointer.node(newNodePageNum));
-        node.save();
+        parent.values.remove(leftIndex);
+        parent.pointers.remove(leftIndex + 1);
+    }
 
-        BPNode newNode = new BPNode(tableId, newNodePageNum, newValues, newPointers, entryType, node.isLeaf);
-        newNode.save();
 
-        // update parent
-        if (pointers.isEmpty()) {
-            // the root was split
-            int newRootPageNum = catalog.requestNewIndexPageNum();
-            root = BPPointer.node(newRootPageNum);
-            List<Object> rootValues = new ArrayList<>(1);
-            rootValues.add(newNode.values.getFirst());
-            List<BPPointer> rootPtrs = new ArrayList<>(2);
-            rootPtrs.add(pointer);
-            rootPtrs.add(BPPointer.node(newNodePageNum));
-            BPNode newRoot = new BPNode(tableId, newRootPageNum, rootValues, rootPtrs, entryType, false);
-            newRoot.save();
-        } else {
-            BPPointer parent = pointers.getLast();
-            BPNode parentNode = getNode(parent.pageNum);
-            int index = parentNode.findLEq(newNode.values.getFirst());
-            if (index < 0) {
-                parentNode.values.addLast(newNode.values.getFirst());
-                insertPointer(parentNode, BPPointer.node(newNodePageNum));
-            } else {
-                parentNode.values.add(index, newNode.values.getFirst());
-                parentNode.pointers.add(BPPointer.node(newNodePageNum));
+    /**
+     * Apply an operation to the table pointers starting at a value, in order.
+     * A page's entries are contiguous in key order, so this stops at the first pointer which does not match the
+     * predicate once any pointer has matched.
+     *
+     * @param start the value to start at
+     * @param predicate the pointers to update
+     * @param operator the operation producing the updated pointer
+     */
+    public void update(Object start, Predicate<BPPointer> predicate, UnaryOperator<BPPointer> operator) {
+        // the leaf chain cannot change while the structure lock is held, so each leaf only needs its own latch
+        structureLock.lock();
+        Latches held = new Latches();
+        try {
+            BPNode node = getRootNode(held);
+            if (node == null) {
+                throw new IllegalArgumentException("Could not find node containing pointer to start");
             }
-            if (parentNode.pointers.size() <= maxPointers) {
-                parentNode.save();
+            node = findLeaf(node, start, null, held);
+            int startPos = node.findLEq(start);
+            if (startPos < 0) {
+                startPos = node.values.size();
             }
 
-            if (!pointers.isEmpty()) {
-                splitRoutine(pointers, BPPointer.node(parent.pageNum), parentNode);
+            boolean matched = false;
+            while (true) {
+                boolean changed = false;
+                for (int i = startPos; i < node.values.size(); i++) {
+                    BPPointer ptr = node.pointers.get(i);
+                    if (predicate.test(ptr)) {
+                        node.pointers.set(i, operator.apply(ptr));
+                        changed = true;
+                        matched = true;
+                    } else if (matched) {
+                        save(node);
+                        return;
+                    }
+                }
+                if (changed) {
+                    save(node);
+                }
+
+                BPPointer next = node.pointers.getLast();
+                if (next.isNull()) {
+                    return;
+                }
+                node = held.get(next.pageNum);
+                startPos = 0;
             }
+        } finally {
+            held.release();
+            structureLock.unlock();
         }
     }
 
-    private void insertPointer(BPNode parentNode, BPPointer newPointer) {
-        BPPointer lastPointer = parentNode.pointers.getLast();
-        if (parentNode.isLeaf && (lastPointer.isNode() || lastPointer.isNull())) {
-            // insert BEFORE the pointer to the next leaf / null pointer
-            parentNode.pointers.add(parentNode.pointers.size() - 2, newPointer);
-        } else {
-            parentNode.pointers.addLast(newPointer);
+    /**
+     * The moved rows are contiguous in key order, so their pointers are updated by one walk along the leaves.
+     * The walk stops after the moved rows, since the rows after them may still be on the same page.
+     */
+    @Override
+    public void move(List<Object> values, int fromPageNum, int toPageNum) {
+        if (values.isEmpty()) {
+            return;
         }
+        int[] remaining = {values.size()};
+        update(values.getFirst(), ptr -> ptr.pageNum == fromPageNum && remaining[0] > 0, ptr -> {
+            remaining[0]--;
+            return BPPointer.table(toPageNum, ptr.entryNum);
+        });
     }
 
-    public void update(Object start, Predicate<BPPointer> predicate, UnaryOperator<BPPointer> operator) {
-        BPNode node = searchNode(start);
-        if (node == null) {
-            throw new IllegalArgumentException("Could not find node containing pointer to start");
+    /**
+     * Iterate the table pointers for a range of values in ascending order, by walking the leaf chain from the
+     * leaf containing the low bound. Leaves are read lazily as the iterator advances.
+     *
+     * @param low the low bound, or null for no low bound
+     * @param high the high bound, or null for no high bound
+     * @param inclusivity which of the bounds are included
+     * @return the pointers of every entry within the range
+     */
+    public Iterator<BPPointer> scan(Object low, Object high, Inclusivity inclusivity) {
+        return new LeafScan<>(low, high, inclusivity, (node, index) -> node.pointers.get(index));
+    }
+
+    /**
+     * Like {@link #scan}, but iterates the values themselves
+     *
+     * @param low the low bound, or null for no low bound
+     * @param high the high bound, or null for no high bound
+     * @param inclusivity which of the bounds are included
+     * @return every value within the range
+     */
+    public Iterator<Object> scanValues(Object low, Object high, Inclusivity inclusivity) {
+        return new LeafScan<>(low, high, inclusivity, (node, index) -> node.values.get(index));
+    }
+
+    /**
+     * Build the tree bottom-up from entries which are already sorted, replacing any existing index for the table.
+     * Leaves are packed left to right and linked as they are written, then each internal level is built from the
+     * level below it, so every node is written exactly once.
+     *
+     * @param entries the (value, table pointer) pairs in strictly ascending value order
+     * @param fillFactor the fraction of each node to fill, in (0, 1]
+     */
+    @Override
+    public void bulkLoad(Iterator<Map.Entry<Object, BPPointer>> entries, double fillFactor) {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
         }
-        boolean first = true;
-        int startPos = node.values.indexOf(start) + 1;
-        if (node.pointers.get(0).isNull()) {
-            startPos++;
+        // descents wait on the root latch until the new tree is complete
+        structureLock.lock();
+        long stamp = rootLatch.writeLock();
+        try {
+            load(entries, fillFactor);
+        } finally {
+            rootLatch.unlockWrite(stamp);
+            structureLock.unlock();
         }
-        outer:
-        while (true) {
-            for (int i = startPos; i < node.pointers.size(); i++) {
-                if (first) {
-                    first = false;
-                    startPos = 0;
-                }
-                var ptr = node.pointers.get(i);
-                if (ptr.isNull()) {
-                    continue;
+    }
+
+    private void load(Iterator<Map.Entry<Object, BPPointer>> entries, double fillFactor) {
+        drop();
+
+        int capacity = Math.max(pageSize / 2, (int) Math.floor(pageSize * fillFactor));
+        boolean compressed = locatorType == null && entryType.isString();
+
+        // separator and page of each node on the level currently being built
+        List<Object> levelValues = new ArrayList<>();
+        List<Integer> levelPages = new ArrayList<>();
+
+        // the previous leaf is held back so the last two leaves can be balanced
+        BPNode previous = null;
+        Object previousLast = null;
+        BPNode current = newNode(catalog.requestNewIndexPageNum(), new ArrayList<>(), new ArrayList<>(), true);
+        int currentBytes = 0;
+        Object last = null;
+        while (entries.hasNext()) {
+            Map.Entry<Object, BPPointer> entry = entries.next();
+            if (last != null && BPNode.compare(last, entry.getKey()) >= 0) {
+                throw new IllegalArgumentException("Bulk load entries are not in ascending order: " + last + ", " + entry.getKey());
+            }
+            last = entry.getKey();
+
+            int valueBytes = BPNode.valueBytes(entry.getKey(), compressed);
+            if (!current.values.isEmpty()) {
+                // the values and table pointers, plus the trailing pointer
+                int size = BPNode.encodedSize(current.values.getFirst(), entry.getKey(), currentBytes + valueBytes,
+                        current.values.size() + 1, current.values.size() + 2, compressed);
+                if (size > capacity) {
+                    int nextPageNum = catalog.requestNewIndexPageNum();
+                    current.pointers.add(BPPointer.node(nextPageNum));
+                    if (previous != null) {
+                        save(previous);
+                        levelValues.add(levelValues.isEmpty() ? previous.values.getFirst()
+                                : BPNode.separator(previousLast, previous.values.getFirst()));
+                        levelPages.add(previous.pageNum);
+                        previousLast = previous.values.getLast();
+                    }
+                    previous = current;
+                    current = newNode(nextPageNum, new ArrayList<>(), new ArrayList<>(), true);
+                    currentBytes = 0;
                 }
-                if (ptr.isNode()) {
-                    node = getNode(ptr.pageNum);
-                    continue outer;
+            }
+            current.values.add(entry.getKey());
+            current.pointers.add(entry.getValue());
+            currentBytes += valueBytes;
+        }
+        current.pointers.add(BPPointer.nullPtr());
+
+        if (previous != null && underflows(current)) {
+            List<Object> values = new ArrayList<>(previous.values);
+            List<BPPointer> pointers = new ArrayList<>(previous.pointers.subList(0, previous.values.size()));
+            values.addAll(current.values);
+            pointers.addAll(current.pointers);
+            BPNode combined = newNode(previous.pageNum, values, pointers, true);
+            if (!overflows(combined)) {
+                // everything fits in the previous leaf, which becomes the last leaf
+                previous = combined;
+                current = null;
+            } else {
+                // split the values evenly between both leaves by size
+                int half = splitIndex(combined);
+                previous.values.clear();
+                previous.values.addAll(values.subList(0, half));
+                previous.pointers.clear();
+                previous.pointers.addAll(pointers.subList(0, half));
+                previous.pointers.add(BPPointer.node(current.pageNum));
+                current.values.clear();
+                current.values.addAll(values.subList(half, values.size()));
+                current.pointers.clear();
+                current.pointers.addAll(pointers.subList(half, pointers.size()));
+            }
+        }
+        for (BPNode node : new BPNode[]{previous, current}) {
+            if (node != null) {
+                save(node);
+                if (levelValues.isEmpty()) {
+                    levelValues.add(node.values.isEmpty() ? null : node.values.getFirst());
+                } else {
+                    levelValues.add(BPNode.separator(previousLast, node.values.getFirst()));
                 }
-                if (ptr.isTable() && predicate.test(ptr)) {
-                    node.pointers.set(i, operator.apply(ptr));
+                levelPages.add(node.pageNum);
+                previousLast = node.values.isEmpty() ? null : node.values.getLast();
+            }
+        }
+
+        while (levelPages.size() > 1) {
+            List<Integer> groupSizes = groupSizes(levelValues, capacity);
+            List<Object> parentValues = new ArrayList<>(groupSizes.size());
+            List<Integer> parentPages = new ArrayList<>(groupSizes.size());
+            int start = 0;
+            for (int size : groupSizes) {
+                List<Object> values = new ArrayList<>(levelValues.subList(start + 1, start + size));
+                List<BPPointer> pointers = new ArrayList<>(size);
+                for (int i = start; i < start + size; i++) {
+                    pointers.add(BPPointer.node(levelPages.get(i)));
                 }
+                BPNode node = newNode(catalog.requestNewIndexPageNum(), values, pointers, false);
+                save(node);
+                parentValues.add(levelValues.get(start));
+                parentPages.add(node.pageNum);
+                start += size;
             }
-            return;
+            levelValues = parentValues;
+            levelPages = parentPages;
         }
+        catalog.setIndexHead(tableId, levelPages.getFirst());
     }
 
-    private BPNode searchNode(Object valueToFind) {
-        if (root == null) {
-            root = BPPointer.node(catalog.getIndexHead(tableId));
+    /**
+     * Split a level of nodes into groups for their parents, filling each parent up to the capacity in bytes and
+     * keeping the last group at least half full
+     *
+     * @param levelValues the separator before each node on the level, where the first is unused
+     * @param capacity the preferred size of each parent in bytes
+     * @return the amount of children for each parent, in order
+     */
+    private List<Integer> groupSizes(List<Object> levelValues, int capacity) {
+        boolean compressed = locatorType == null && entryType.isString();
+        List<Integer> sizes = new ArrayList<>();
+        int start = 0;
+        while (start < levelValues.size()) {
+            // every parent has at least two children
+            int end = Math.min(start + 2, levelValues.size());
+            int valueBytes = end - start == 2 ? BPNode.valueBytes(levelValues.get(start + 1), compressed) : 0;
+            while (end < levelValues.size()) {
+                int nextBytes = valueBytes + BPNode.valueBytes(levelValues.get(end), compressed);
+                int size = BPNode.encodedSize(levelValues.get(start + 1), levelValues.get(end), nextBytes,
+                        end - start, end - start + 1, compressed);
+                if (size > capacity) {
+                    break;
+                }
+                valueBytes = nextBytes;
+                end++;
+            }
+            sizes.add(end - start);
+            start = end;
         }
-        BPNode node = getNode(root.pageNum);
-        while (node.isInternal()) {
-            int index = node.findLEq(valueToFind);
-            BPPointer pointer;
-            if (index < 0) {
-                // the value was not <= anything, so take the last node
-                pointer = node.pointers.getLast();
-            } else {
-                if (node.values.get(index).equals(valueToFind)) {
-                    // are equal, use the index as-is
-                    pointer = node.pointers.get(index);
+
+        int lastIndex = sizes.size() - 1;
+        if (lastIndex > 0) {
+            int lastStart = levelValues.size() - sizes.get(lastIndex);
+            int previousStart = lastStart - sizes.get(lastIndex - 1);
+            if (sizes.get(lastIndex) < 2 || underflows(groupNode(levelValues, lastStart, levelValues.size()))) {
+                int total = sizes.get(lastIndex - 1) + sizes.get(lastIndex);
+                sizes.removeLast();
+                if (!overflows(groupNode(levelValues, previousStart, levelValues.size()))) {
+                    sizes.set(lastIndex - 1, total);
                 } else {
-                    // must be <, so get the pointer before it
-                    pointer = node.pointers.get(Math.max(0, index - 1));
+                    sizes.set(lastIndex - 1, total - total / 2);
+                    sizes.add(total / 2);
                 }
             }
-            node = getNode(pointer.pageNum);
         }
+        return sizes;
+    }
+
+    /**
+     * @return an unsaved internal node with the children from start to end of a level, for measuring its size
+     */
+    private BPNode groupNode(List<Object> levelValues, int start, int end) {
+        List<BPPointer> pointers = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            pointers.add(BPPointer.nullPtr());
+        }
+        return newNode(-1, new ArrayList<>(levelValues.subList(start + 1, end)), pointers, false);
+    }
 
-        int index = node.values.indexOf(valueToFind);
-        if (index < 0) {
-            // not found
+    @Override
+    public boolean drop() {
+        return storageManager.deleteIndex(tableId);
+    }
 
-            // hack to get around search keys not actually having all values strictly <= to them on the left
-            // due to how node splitting works
-            BPPointer pointer = node.pointers.getLast();
-            if (pointer.isNull()) {
-                index = node.findLEq(valueToFind);
-                return node;
+    /**
+     * @return if the node no longer fits in a page
+     */
+    private boolean overflows(BPNode node) {
+        return node.encodedSize() > pageSize;
+    }
+
+    /**
+     * @return if the node takes up less than half of a page
+     */
+    private boolean underflows(BPNode node) {
+        return node.encodedSize() < pageSize / 2;
+    }
+
+    /**
+     * Find where to split a node so both halves hold about the same amount of bytes
+     *
+     * @param node the node to split
+     * @return the index of the first value of the right half, or of the value moving up for an internal node
+     */
+    private int splitIndex(BPNode node) {
+        boolean compressed = node.compressesStrings();
+        int total = 0;
+        for (Object value : node.values) {
+            total += BPNode.valueBytes(value, compressed);
+        }
+        int half = 0;
+        int bytes = 0;
+        while (half < node.values.size() && bytes < total / 2) {
+            bytes += BPNode.valueBytes(node.values.get(half), compressed);
+            half++;
+        }
+        // both halves keep at least one value, and an internal node also keeps the value moving up
+        int max = node.isLeaf ? node.values.size() - 1 : node.values.size() - 2;
+        return Math.max(1, Math.min(half, max));
+    }
+
+    /**
+     * Descend from the root to the leaf whose range contains the value, without taking any latches.
+     * Each node is read under an optimistic stamp, which is validated after the stamp of its child is taken,
+     * and the descent restarts from the root if any node on the way was written in the meantime.
+     *
+     * @param value the value to search for, or null for the first leaf
+     * @return the leaf with the stamp it was read under, or null if the tree is empty
+     */
+    private LeafRead readLeaf(Object value) {
+        restart:
+        while (true) {
+            long rootStamp = rootLatch.tryOptimisticRead();
+            if (rootStamp == 0) {
+                // the root is being replaced, so wait for it rather than spinning
+                rootLatch.unlockRead(rootLatch.readLock());
+                continue;
             }
-            if (pointer.isNode()) {
-                BPNode nextNode = getNode(pointer.pageNum);
-                index = nextNode.values.indexOf(valueToFind);
-                if (index < 0) {
-                    return node;
+            int rootPageNum = rootPageNum();
+            if (rootPageNum < 0) {
+                if (rootLatch.validate(rootStamp)) {
+                    return null;
                 }
-                node = nextNode;
-            } else {
-                index = node.findLEq(valueToFind);
-                if (index < 0) {
-                    index = node.values.size();
+                continue;
+            }
+            StampedLock latch = latch(rootPageNum);
+            long stamp = latch.tryOptimisticRead();
+            if (!rootLatch.validate(rootStamp)) {
+                continue;
+            }
+            BPNode node = readNode(rootPageNum, latch, stamp);
+            if (node == null) {
+                continue;
+            }
+            if (node.pointers.isEmpty()) {
+                // the head page was reserved but never written
+                return null;
+            }
+
+            boolean isRoot = true;
+            while (node.isInternal()) {
+                int childPageNum = node.pointers.get(childIndex(node, value)).pageNum;
+                StampedLock childLatch = latch(childPageNum);
+                long childStamp = childLatch.tryOptimisticRead();
+                if (!latch.validate(stamp)) {
+                    continue restart;
+                }
+                node = readNode(childPageNum, childLatch, childStamp);
+                if (node == null) {
+                    continue restart;
                 }
+                latch = childLatch;
+                stamp = childStamp;
+                isRoot = false;
             }
+            return new LeafRead(node, latch, stamp, isRoot);
         }
+    }
 
-        BPPointer pointer;
-        if (index + 1 < node.pointers.size()) {
-            pointer = node.pointers.get(index + 1);
-        } else {
-            pointer = node.pointers.get(index);
+    /**
+     * Read the leaf after one read by {@link #readLeaf}. The stamp of the next leaf is taken before the first leaf
+     * is validated, so a merge which discards the next leaf is always detected.
+     *
+     * @param read the leaf, which must have a next leaf
+     * @return the next leaf, or null if either leaf was written in the meantime
+     */
+    private LeafRead readNext(LeafRead read) {
+        int pageNum = read.leaf.pointers.getLast().pageNum;
+        StampedLock latch = latch(pageNum);
+        long stamp = latch.tryOptimisticRead();
+        if (!read.latch.validate(read.stamp)) {
+            return null;
+        }
+        BPNode node = readNode(pageNum, latch, stamp);
+        return node == null ? null : new LeafRead(node, latch, stamp, false);
+    }
+
+    /**
+     * Read a node under an optimistic stamp
+     *
+     * @param pageNum the page of the node
+     * @param latch the latch of the node
+     * @param stamp the stamp taken before reading
+     * @return the node, or null if it was written while being read
+     */
+    private BPNode readNode(int pageNum, StampedLock latch, long stamp) {
+        if (stamp == 0) {
+            return null;
+        }
+        BPNode node;
+        try {
+            node = getNode(pageNum);
+        } catch (RuntimeException e) {
+            // a page which is partially written can fail to decode, which is only an error if nothing wrote to it
+            if (latch.validate(stamp)) {
+                throw e;
+            }
+            return null;
+        }
+        return latch.validate(stamp) ? node : null;
+    }
+
+    /**
+     * Save a leaf which was modified after being read by {@link #readLeaf}, if nothing has written to it since
+     *
+     * @param read the leaf
+     * @return if the leaf was saved, otherwise the operation has to start over
+     */
+    private boolean writeLeaf(LeafRead read) {
+        long stamp = read.latch.tryConvertToWriteLock(read.stamp);
+        if (stamp == 0) {
+            return false;
         }
-        if (pointer.isNode()) {
-            // found a pointer to the right, get the first value there instead
-            return getNode(pointer.pageNum);
+        try {
+            save(read.leaf);
+        } finally {
+            read.latch.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+    /**
+     * Descend from a latched node to the leaf whose range contains the value, latching each node on the way
+     *
+     * @param node the node to start at
+     * @param value the value to search for
+     * @param parents if not null, receives each internal node visited, with the leaf's direct parent last
+     * @param held the latches of the change
+     * @return the leaf
+     */
+    private BPNode findLeaf(BPNode node, Object value, ArrayDeque<BPNode> parents, Latches held) {
+        while (node.isInternal()) {
+            if (parents != null) {
+                parents.addLast(node);
+            }
+            node = held.get(node.pointers.get(childIndex(node, value)).pageNum);
         }
         return node;
     }
 
-    public boolean drop() {
-        return storageManager.deleteIndex(tableId);
+    /**
+     * @param node an internal node
+     * @param value the value to search for, or null for the first child
+     * @return the index of the child whose range contains the value
+     */
+    private static int childIndex(BPNode node, Object value) {
+        if (value == null) {
+            return 0;
+        }
+        int index = node.findGreater(value);
+        // the value was not < anything, so take the last node
+        return index < 0 ? node.values.size() : index;
     }
 
-    private void gatherAllPointers(List<BPPointer> list, BPPointer nodePtr) {
-        BPNode node = getNode(nodePtr.pageNum);
-        list.add(nodePtr);
-        for (BPPointer ptr : node.pointers) {
-            if (ptr.isNull() || ptr.isTable()) {
-                continue;
+    /**
+     * @param held the latches of the change, which the root is added to
+     * @return the latched root node, or null if nothing has been written to the index yet
+     */
+    private BPNode getRootNode(Latches held) {
+        int rootPageNum = rootPageNum();
+        if (rootPageNum < 0) {
+            return null;
+        }
+        BPNode node = held.get(rootPageNum);
+        if (node.pointers.isEmpty()) {
+            // the head page was reserved but never written
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * @return the page of the root, or -1 if the index has no head page
+     */
+    private int rootPageNum() {
+        return catalog.hasIndex(tableId) ? catalog.getIndexHead(tableId) : -1;
+    }
+
+    private void setRoot(int pageNum) {
+        long stamp = rootLatch.writeLock();
+        try {
+            catalog.setIndexHead(tableId, pageNum);
+        } finally {
+            rootLatch.unlockWrite(stamp);
+        }
+    }
+
+    private StampedLock latch(int pageNum) {
+        return latches.computeIfAbsent(pageNum, k -> new StampedLock());
+    }
+
+    private BPNode newNode(int pageNum, List<Object> values, List<BPPointer> pointers, boolean isLeaf) {
+        return new BPNode(tableId, pageNum, values, pointers, entryType, locatorType, isLeaf);
+    }
+
+    private BPNode getNode(int pageNum) {
+        return BPNode.get(storageManager, tableId, pageNum, entryType, locatorType);
+    }
+
+    private void save(BPNode node) {
+        node.save(storageManager);
+    }
+
+    /**
+     * A leaf read without latches, with the stamp it was read under
+     */
+    private static final class LeafRead {
+        private final BPNode leaf;
+        private final StampedLock latch;
+        private final long stamp;
+        private final boolean isRoot;
+
+        private LeafRead(BPNode leaf, StampedLock latch, long stamp, boolean isRoot) {
+            this.leaf = leaf;
+            this.latch = latch;
+            this.stamp = stamp;
+            this.isRoot = isRoot;
+        }
+    }
+
+    /**
+     * The write latches taken by one change to the structure of the tree, which are all held until it is done
+     */
+    private final class Latches {
+        private final Map<Integer, Long> stamps = new LinkedHashMap<>();
+
+        /**
+         * @param pageNum the page of the node
+         * @return the node, read after latching it
+         */
+        private BPNode get(int pageNum) {
+            latch(pageNum);
+            return getNode(pageNum);
+        }
+
+        private void latch(int pageNum) {
+            if (!stamps.containsKey(pageNum)) {
+                stamps.put(pageNum, BPTree.this.latch(pageNum).writeLock());
             }
-            list.add(ptr);
-            if (ptr.isNode()) {
-                gatherAllPointers(list, ptr);
+        }
+
+        private void release() {
+            for (Map.Entry<Integer, Long> entry : stamps.entrySet()) {
+                BPTree.this.latch(entry.getKey()).unlockWrite(entry.getValue());
             }
+            stamps.clear();
         }
     }
 
-    private BPNode getNode(int pageNum) {
-        return BPNode.get(tableId, pageNum, entryType);
+    /**
+     * Iterator over leaf entries which follows the leaf chain until the high bound is passed. Each leaf is read
+     * under an optimistic stamp, and when a leaf changes before the scan moves past it the scan descends again to
+     * continue after the last value it returned.
+     */
+    private class LeafScan<T> implements Iterator<T> {
+        private final Object low;
+        private final Object high;
+        private final Inclusivity inclusivity;
+        private final BiFunction<BPNode, Integer, T> reader;
+        private LeafRead read;
+        private int index;
+        private Object last = null;
+        private boolean done = false;
+
+        private LeafScan(Object low, Object high, Inclusivity inclusivity, BiFunction<BPNode, Integer, T> reader) {
+            this.low = low;
+            this.high = high;
+            this.inclusivity = inclusivity;
+            this.reader = reader;
+            seek();
+        }
+
+        /**
+         * Descend to the leaf to continue from, which is after the last value returned or at the low bound
+         */
+        private void seek() {
+            Object from = last != null ? last : low;
+            read = readLeaf(from);
+            if (read == null) {
+                done = true;
+                return;
+            }
+            if (from == null) {
+                index = 0;
+            } else {
+                BPNode node = read.leaf;
+                index = last == null && inclusivity.includesLow() ? node.findLEq(from) : node.findGreater(from);
+                if (index < 0) {
+                    index = node.values.size();
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (done) {
+                return false;
+            }
+            while (index >= read.leaf.values.size()) {
+                if (read.leaf.pointers.getLast().isNull()) {
+                    done = true;
+                    return false;
+                }
+                LeafRead next = readNext(read);
+                if (next == null) {
+                    seek();
+                    if (done) {
+                        return false;
+                    }
+                    continue;
+                }
+                read = next;
+                index = 0;
+            }
+            if (high != null) {
+                int cmp = BPNode.compare(read.leaf.values.get(index), high);
+                if (cmp > 0 || (cmp == 0 && !inclusivity.includesHigh())) {
+                    done = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = read.leaf.values.get(index);
+            return reader.apply(read.leaf, index++);
+        }
     }
 }
@@ -0,0 +1,422 @@
+package tree;
+
+import catalog.Catalog;
+import page.RecordEntryType;
+import storage.StorageManager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Extendible hash index over the primary key of a table, which finds a key by reading a single bucket page.
+ * It also serves as the set of values in a unique column, where every pointer is a null pointer.
+ * <p>
+ * The directory maps the low global depth bits of each key's hash to a bucket page. A bucket with local depth d
+ * holds every key whose hash shares its low d bits, so it is shared by 2^(global depth - d) directory slots. A full
+ * bucket splits on its next bit, doubling the directory first when its local depth has reached the global depth.
+ * Once the directory no longer fits in the head page's list of directory pages, full buckets grow a chain of
+ * overflow pages instead.
+ * <p>
+ * The head page holds the global depth and the directory pages, and each directory page holds bucket page numbers.
+ * A bucket page holds its local depth, its entry count, the next page of its chain, then each value and pointer.
+ * The directory is kept in memory once read, so use the instance from {@link StorageManager#getIndex}.
+ * Buckets are not merged when they empty out.
+ */
+public class HashIndex implements Index {
+
+    private static final int HEAD_BYTES = Integer.BYTES * 2;
+    private static final int BUCKET_HEADER_BYTES = Integer.BYTES * 3;
+    private static final int POINTER_BYTES = Integer.BYTES * 2;
+
+    private final Catalog catalog;
+    private final StorageManager storageManager;
+
+    /**
+     * The id the index pages are stored under, which is the table id for a primary key index
+     */
+    private final int tableId;
+    private final RecordEntryType entryType;
+    private final int pageSize;
+    private final int maxDepth;
+
+    private boolean loaded = false;
+    private int globalDepth;
+    /**
+     * Bucket page for each hash suffix, or null if the index is empty
+     */
+    private int[] directory;
+    private final List<Integer> directoryPages = new ArrayList<>();
+
+    public HashIndex(StorageManager storageManager, int tableId, RecordEntryType entryType) {
+        this.catalog = storageManager.catalog;
+        this.storageManager = storageManager;
+        this.tableId = tableId;
+        this.entryType = entryType;
+        this.pageSize = catalog.getPageSize();
+        // the head page lists the directory pages, which bounds how far the directory can double
+        long maxSlots = (long) ((pageSize - HEAD_BYTES) / Integer.BYTES) * (pageSize / Integer.BYTES);
+        this.maxDepth = Math.min(30, 63 - Long.numberOfLeadingZeros(Math.max(1, maxSlots)));
+    }
+
+    @Override
+    public synchronized BPPointer get(Object value) {
+        load();
+        if (directory == null) {
+            return null;
+        }
+        Bucket bucket = readBucket(directory[slot(value)]);
+        int index = bucket.indexOf(value);
+        return index < 0 ? null : bucket.pointers.get(index);
+    }
+
+    @Override
+    public synchronized boolean insert(Object value, BPPointer pointer) {
+        if (!pointer.isTable() && !pointer.isNull()) {
+            throw new IllegalArgumentException("Pointer must be a table pointer, or null for a set of values");
+        }
+        return insert(value, pointer, pageSize);
+    }
+
+    /**
+     * @param capacity the bytes a bucket page can fill before it splits
+     */
+    private boolean insert(Object value, BPPointer pointer, int capacity) {
+        load();
+        if (directory == null) {
+            create();
+        }
+        while (true) {
+            Bucket bucket = readBucket(directory[slot(value)]);
+            if (bucket.indexOf(value) >= 0) {
+                return false;
+            }
+            int size = bucket.size() + entryBytes(value);
+            if (size <= capacity || bucket.depth >= maxDepth) {
+                bucket.values.add(value);
+                bucket.pointers.add(pointer);
+                writeBucket(bucket);
+                return true;
+            }
+            split(bucket);
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(Object value) {
+        load();
+        if (directory == null) {
+            return false;
+        }
+        Bucket bucket = readBucket(directory[slot(value)]);
+        int index = bucket.indexOf(value);
+        if (index < 0) {
+            return false;
+        }
+        bucket.values.remove(index);
+        bucket.pointers.remove(index);
+        writeBucket(bucket);
+        return true;
+    }
+
+    @Override
+    public synchronized void move(List<Object> values, int fromPageNum, int toPageNum) {
+        load();
+        if (directory == null) {
+            return;
+        }
+        for (Object value : values) {
+            Bucket bucket = readBucket(directory[slot(value)]);
+            int index = bucket.indexOf(value);
+            if (index < 0) {
+                throw new IllegalArgumentException("Value to move is not in the index: " + value);
+            }
+            BPPointer pointer = bucket.pointers.get(index);
+            if (pointer.pageNum == fromPageNum) {
+                bucket.pointers.set(index, BPPointer.table(toPageNum, pointer.entryNum));
+                writeBucket(bucket);
+            }
+        }
+    }
+
+    /**
+     * Build the index from every entry of the table. Buckets split once they pass the fill factor rather than when
+     * they are full, leaving room for later inserts.
+     */
+    @Override
+    public synchronized void bulkLoad(Iterator<Map.Entry<Object, BPPointer>> entries, double fillFactor) {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
+        }
+        drop();
+        int capacity = Math.max(pageSize / 2, (int) Math.floor(pageSize * fillFactor));
+        while (entries.hasNext()) {
+            Map.Entry<Object, BPPointer> entry = entries.next();
+            if (!insert(entry.getKey(), entry.getValue(), capacity)) {
+                throw new IllegalArgumentException("Bulk load entries contain a duplicate: " + entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean drop() {
+        loaded = false;
+        directory = null;
+        directoryPages.clear();
+        return storageManager.deleteIndex(tableId);
+    }
+
+    /**
+     * Split a bucket on its next bit into itself and a new bucket, doubling the directory if needed
+     */
+    private void split(Bucket bucket) {
+        if (bucket.depth == globalDepth) {
+            grow();
+        }
+        int bit = 1 << bucket.depth;
+        Bucket high = new Bucket(bucket.depth + 1);
+        high.pages.add(catalog.requestNewIndexPageNum());
+        Bucket low = new Bucket(bucket.depth + 1);
+        low.pages.addAll(bucket.pages);
+        for (int i = 0; i < bucket.values.size(); i++) {
+            Bucket target = (hash(bucket.values.get(i)) & bit) == 0 ? low : high;
+            target.values.add(bucket.values.get(i));
+            target.pointers.add(bucket.pointers.get(i));
+        }
+        writeBucket(high);
+        writeBucket(low);
+
+        // the slots of the old bucket with the bit set now lead to the new bucket
+        int pageNum = bucket.pages.getFirst();
+        Set<Integer> changedPages = new TreeSet<>();
+        int perPage = pageSize / Integer.BYTES;
+        for (int i = 0; i < directory.length; i++) {
+            if (directory[i] == pageNum && (i & bit) != 0) {
+                directory[i] = high.pages.getFirst();
+                changedPages.add(i / perPage);
+            }
+        }
+        for (int index : changedPages) {
+            writeDirectoryPage(index);
+        }
+    }
+
+    /**
+     * Double the directory, where each new slot leads to the same bucket as the slot it was copied from
+     */
+    private void grow() {
+        int oldLength = directory.length;
+        int[] grown = new int[oldLength * 2];
+        System.arraycopy(directory, 0, grown, 0, oldLength);
+        System.arraycopy(directory, 0, grown, oldLength, oldLength);
+        directory = grown;
+        globalDepth++;
+
+        int perPage = pageSize / Integer.BYTES;
+        int needed = (directory.length + perPage - 1) / perPage;
+        while (directoryPages.size() < needed) {
+            directoryPages.add(catalog.requestNewIndexPageNum());
+        }
+        // only the pages holding the copied half changed
+        for (int i = oldLength / perPage; i < needed; i++) {
+            writeDirectoryPage(i);
+        }
+        writeHead();
+    }
+
+    /**
+     * Create an empty index with a single bucket
+     */
+    private void create() {
+        // reuse the head page reserved for the table if there is one
+        int head = catalog.hasIndex(tableId) ? catalog.getIndexHead(tableId) : catalog.requestNewIndexPageNum();
+        catalog.setIndexHead(tableId, head);
+        Bucket bucket = new Bucket(0);
+        bucket.pages.add(catalog.requestNewIndexPageNum());
+        writeBucket(bucket);
+
+        globalDepth = 0;
+        directory = new int[]{bucket.pages.getFirst()};
+        directoryPages.add(catalog.requestNewIndexPageNum());
+        writeDirectoryPage(0);
+        writeHead();
+        loaded = true;
+    }
+
+    /**
+     * Read the directory from the head page the first time the index is used
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!catalog.hasIndex(tableId)) {
+            return;
+        }
+        ByteBuffer head = read(catalog.getIndexHead(tableId));
+        int depth = head.getInt();
+        int pageCount = head.getInt();
+        if (pageCount == 0) {
+            // the head page was reserved but never written
+            return;
+        }
+        globalDepth = depth;
+        for (int i = 0; i < pageCount; i++) {
+            directoryPages.add(head.getInt());
+        }
+        directory = new int[1 << depth];
+        int perPage = pageSize / Integer.BYTES;
+        for (int i = 0; i < pageCount; i++) {
+            ByteBuffer buf = read(directoryPages.get(i));
+            for (int j = i * perPage; j < Math.min(directory.length, (i + 1) * perPage); j++) {
+                directory[j] = buf.getInt();
+            }
+        }
+    }
+
+    private void writeHead() {
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        buf.putInt(globalDepth);
+        buf.putInt(directoryPages.size());
+        for (int pageNum : directoryPages) {
+            buf.putInt(pageNum);
+        }
+        storageManager.writeIndexPage(tableId, catalog.getIndexHead(tableId), buf.array());
+    }
+
+    private void writeDirectoryPage(int index) {
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        int perPage = pageSize / Integer.BYTES;
+        for (int i = index * perPage; i < Math.min(directory.length, (index + 1) * perPage); i++) {
+            buf.putInt(directory[i]);
+        }
+        storageManager.writeIndexPage(tableId, directoryPages.get(index), buf.array());
+    }
+
+    /**
+     * Read a bucket and every page of its overflow chain
+     */
+    private Bucket readBucket(int pageNum) {
+        Bucket bucket = null;
+        while (pageNum != -1) {
+            ByteBuffer buf = read(pageNum);
+            int depth = buf.getInt();
+            int count = buf.getInt();
+            int next = buf.getInt();
+            if (bucket == null) {
+                bucket = new Bucket(depth);
+            }
+            bucket.pages.add(pageNum);
+            for (int i = 0; i < count; i++) {
+                bucket.values.add(BPNode.readValue(buf, entryType));
+                bucket.pointers.add(BPPointer.decode(buf));
+            }
+            pageNum = next;
+        }
+        return bucket;
+    }
+
+    /**
+     * Write a bucket over its pages, adding overflow pages when its entries do not fit in one.
+     * Pages left over at the end of a shrunken chain are dropped from it.
+     */
+    private void writeBucket(Bucket bucket) {
+        int index = 0;
+        int pageIndex = 0;
+        do {
+            if (pageIndex == bucket.pages.size()) {
+                bucket.pages.add(catalog.requestNewIndexPageNum());
+            }
+            int start = index;
+            int bytes = BUCKET_HEADER_BYTES;
+            while (index < bucket.values.size() && bytes + entryBytes(bucket.values.get(index)) <= pageSize) {
+                bytes += entryBytes(bucket.values.get(index));
+                index++;
+            }
+            if (index == start && index < bucket.values.size()) {
+                throw new IllegalArgumentException("Value is too large for a hash bucket: " + bucket.values.get(index));
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(pageSize);
+            buf.putInt(bucket.depth);
+            buf.putInt(index - start);
+            // the next page of the chain is filled in below if the bucket continues
+            buf.putInt(-1);
+            for (int i = start; i < index; i++) {
+                BPNode.writeValue(buf, bucket.values.get(i));
+                buf.put(bucket.pointers.get(i).encode());
+            }
+            if (index < bucket.values.size()) {
+                // link to the next page of the chain, which may not exist yet
+                if (pageIndex + 1 == bucket.pages.size()) {
+                    bucket.pages.add(catalog.requestNewIndexPageNum());
+                }
+                buf.putInt(Integer.BYTES * 2, bucket.pages.get(pageIndex + 1));
+            }
+            storageManager.writeIndexPage(tableId, bucket.pages.get(pageIndex), buf.array());
+            pageIndex++;
+        } while (index < bucket.values.size());
+    }
+
+    private ByteBuffer read(int pageNum) {
+        ByteBuffer buf = storageManager.getIndexPage(tableId, pageNum).buf.duplicate();
+        buf.rewind();
+        return buf;
+    }
+
+    private int slot(Object value) {
+        return hash(value) & ((1 << globalDepth) - 1);
+    }
+
+    /**
+     * @return the hash of a value, which stays the same between runs since the directory is stored
+     */
+    private static int hash(Object value) {
+        // spread the high bits into the low bits, which choose the bucket
+        int h = value.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int entryBytes(Object value) {
+        return BPNode.valueBytes(value, false) + POINTER_BYTES;
+    }
+
+    /**
+     * The entries of a bucket, with the pages they are stored on
+     */
+    private static final class Bucket {
+        private final int depth;
+        private final List<Integer> pages = new ArrayList<>();
+        private final List<Object> values = new ArrayList<>();
+        private final List<BPPointer> pointers = new ArrayList<>();
+
+        private Bucket(int depth) {
+            this.depth = depth;
+        }
+
+        private int indexOf(Object value) {
+            for (int i = 0; i < values.size(); i++) {
+                if (BPNode.compare(value, values.get(i)) == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the bytes the bucket would take up on a single page
+         */
+        private int size() {
+            int size = BUCKET_HEADER_BYTES;
+            for (Object value : values) {
+                size += entryBytes(value);
+            }
+            return size;
+        }
+    }
+}
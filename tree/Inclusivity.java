@@ -0,0 +1,32 @@
+package tree;
+
+/**
+ * Which bounds of a range scan are included in the results
+ */
+public enum Inclusivity {
+    BOTH,
+    LOW,
+    HIGH,
+    NEITHER,
+    ;
+
+    public boolean includesLow() {
+        return this == BOTH || this == LOW;
+    }
+
+    public boolean includesHigh() {
+        return this == BOTH || this == HIGH;
+    }
+
+    /**
+     * @param includesLow if the low bound is included
+     * @param includesHigh if the high bound is included
+     * @return the matching inclusivity
+     */
+    public static Inclusivity of(boolean includesLow, boolean includesHigh) {
+        if (includesLow) {
+            return includesHigh ? BOTH : LOW;
+        }
+        return includesHigh ? HIGH : NEITHER;
+    }
+}
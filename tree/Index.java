@@ -0,0 +1,55 @@
+package tree;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index from the primary key of a table to the table pointer of each row.
+ * A {@link BPTree} also supports range scans, while a {@link HashIndex} only finds single keys.
+ */
+public interface Index {
+
+    /**
+     * @param value the primary key
+     * @return the pointer to the row with exactly the primary key, or null if there is none
+     */
+    BPPointer get(Object value);
+
+    /**
+     * @param value the primary key
+     * @param pointer the table pointer of the row
+     * @return if the value was inserted, which fails when it is already present
+     */
+    boolean insert(Object value, BPPointer pointer);
+
+    /**
+     * @param value the primary key
+     * @return if the value was present
+     */
+    boolean delete(Object value);
+
+    /**
+     * Point rows at a new page after a page split moved them there. Each row keeps its slot.
+     *
+     * @param values the primary keys of the rows which moved, in ascending order
+     * @param fromPageNum the page the rows were on
+     * @param toPageNum the page the rows are on now
+     */
+    void move(List<Object> values, int fromPageNum, int toPageNum);
+
+    /**
+     * Replace the contents of the index
+     *
+     * @param entries the (value, table pointer) pairs in strictly ascending value order
+     * @param fillFactor the fraction of each page to fill, in (0, 1]
+     */
+    void bulkLoad(Iterator<Map.Entry<Object, BPPointer>> entries, double fillFactor);
+
+    /**
+     * Delete the pages of the index
+     *
+     * @return if successful
+     */
+    boolean drop();
+}
@@ -0,0 +1,91 @@
+package tree;
+
+import java.util.Objects;
+
+/**
+ * Key of a secondary index: the column value followed by the primary key of the row as a locator, which makes
+ * every key unique even when the column has duplicate values. Null column values sort before everything else.
+ * <p>
+ * Bound keys have no locator and sort before or after every key with the same column value, so they can be used
+ * to scan all rows with a value.
+ */
+public final class IndexKey implements Comparable<IndexKey> {
+
+    public final Object value;
+    public final Object locator;
+    private final int bound;
+
+    private IndexKey(Object value, Object locator, int bound) {
+        this.value = value;
+        this.locator = locator;
+        this.bound = bound;
+    }
+
+    /**
+     * @param value the column value
+     * @param locator the primary key of the row
+     * @return the key for the row
+     */
+    public static IndexKey of(Object value, Object locator) {
+        return new IndexKey(value, Objects.requireNonNull(locator), 0);
+    }
+
+    /**
+     * @param value the column value
+     * @return a key which sorts before every row with the value
+     */
+    public static IndexKey before(Object value) {
+        return new IndexKey(value, null, -1);
+    }
+
+    /**
+     * @param value the column value
+     * @return a key which sorts after every row with the value
+     */
+    public static IndexKey after(Object value) {
+        return new IndexKey(value, null, 1);
+    }
+
+    /**
+     * @return less than 0 for a key before every row with its value, greater than 0 for a key after them, and 0
+     * for the key of a row
+     */
+    int bound() {
+        return bound;
+    }
+
+    @Override
+    public int compareTo(IndexKey other) {
+        int cmp;
+        if (value == null || other.value == null) {
+            cmp = value == null ? (other.value == null ? 0 : -1) : 1;
+        } else {
+            cmp = BPNode.compare(value, other.value);
+        }
+        if (cmp != 0) {
+            return cmp;
+        }
+        if (locator != null && other.locator != null) {
+            return BPNode.compare(locator, other.locator);
+        }
+        return Integer.compare(bound, other.bound);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof IndexKey key && compareTo(key) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(value, locator, bound);
+    }
+
+    @Override
+    public String toString() {
+        if (locator == null) {
+            return (bound < 0 ? "before(" : "after(") + value + ")";
+        }
+        return "(" + value + ", " + locator + ")";
+    }
+}
@@ -0,0 +1,123 @@
+package tree;
+
+/**
+ * A range of primary key values, where a null bound means the range is open on that side
+ */
+public final class KeyRange {
+
+    private static final KeyRange ALL = new KeyRange(null, true, null, true);
+
+    public final Object low;
+    public final boolean lowInclusive;
+    public final Object high;
+    public final boolean highInclusive;
+
+    private KeyRange(Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+        this.low = low;
+        this.lowInclusive = lowInclusive;
+        this.high = high;
+        this.highInclusive = highInclusive;
+    }
+
+    /**
+     * @return the range containing every value
+     */
+    public static KeyRange all() {
+        return ALL;
+    }
+
+    /**
+     * @param value the value
+     * @return the range containing only the value
+     */
+    public static KeyRange equalTo(Object value) {
+        return new KeyRange(value, true, value, true);
+    }
+
+    /**
+     * @param value the high bound
+     * @param inclusive if the bound is included
+     * @return the range of values below the bound
+     */
+    public static KeyRange lessThan(Object value, boolean inclusive) {
+        return new KeyRange(null, true, value, inclusive);
+    }
+
+    /**
+     * @param value the low bound
+     * @param inclusive if the bound is included
+     * @return the range of values above the bound
+     */
+    public static KeyRange greaterThan(Object value, boolean inclusive) {
+        return new KeyRange(value, inclusive, null, true);
+    }
+
+    /**
+     * @param other the other range
+     * @return the range of values in both ranges
+     */
+    public KeyRange intersect(KeyRange other) {
+        Object newLow = low;
+        boolean newLowInclusive = lowInclusive;
+        if (other.low != null) {
+            int cmp = low == null ? -1 : BPNode.compare(low, other.low);
+            if (cmp < 0) {
+                newLow = other.low;
+                newLowInclusive = other.lowInclusive;
+            } else if (cmp == 0) {
+                newLowInclusive = lowInclusive && other.lowInclusive;
+            }
+        }
+
+        Object newHigh = high;
+        boolean newHighInclusive = highInclusive;
+        if (other.high != null) {
+            int cmp = high == null ? 1 : BPNode.compare(high, other.high);
+            if (cmp > 0) {
+                newHigh = other.high;
+                newHighInclusive = other.highInclusive;
+            } else if (cmp == 0) {
+                newHighInclusive = highInclusive && other.highInclusive;
+            }
+        }
+        return new KeyRange(newLow, newLowInclusive, newHigh, newHighInclusive);
+    }
+
+    /**
+     * @return if the range is unbounded on both sides
+     */
+    public boolean isAll() {
+        return low == null && high == null;
+    }
+
+    /**
+     * @return if no value can be within the range
+     */
+    public boolean isEmpty() {
+        if (low == null || high == null) {
+            return false;
+        }
+        int cmp = BPNode.compare(low, high);
+        return cmp > 0 || (cmp == 0 && !(lowInclusive && highInclusive));
+    }
+
+    /**
+     * @return if the range contains exactly one value
+     */
+    public boolean isSingleValue() {
+        return low != null && high != null && lowInclusive && highInclusive && BPNode.compare(low, high) == 0;
+    }
+
+    /**
+     * @return which bounds are included, for use with {@link BPTree#scan}
+     */
+    public Inclusivity inclusivity() {
+        return Inclusivity.of(lowInclusive, highInclusive);
+    }
+
+    @Override
+    public String toString() {
+        return (lowInclusive ? "[" : "(") + (low == null ? "-inf" : low) + ", "
+                + (high == null ? "inf" : high) + (highInclusive ? "]" : ")");
+    }
+}